@@ -26,6 +26,7 @@ public enum ServerSetting {
     version(SettingConstants.SETTING_VERSION, Const.VERSION, true, true, true, false, false),
     uuid(SettingConstants.SETTING_UUID, SettingConstants.SETTING_UUID_DEFAULT, true, true, true, false, false),
     storeDirectory(SettingConstants.SETTING_STORE_DIRECTORY, SettingConstants.STORE_DIRECTORY_DEFAULT, false, true, false, false, false),
+    storageVersion(SettingConstants.SETTING_STORAGE_VERSION, SettingConstants.STORAGE_VERSION_DEFAULT, false, true, false, false, false),
     admin(SettingConstants.SETTING_ADMIN, SettingConstants.SETTING_ADMIN_DEFAULT, false, true, false, false, false),
     token(SettingConstants.SERVER_TOKEN, SettingConstants.API_KEY_DEFAULT, false, true, false, false, false),
     smtp(SettingConstants.SETTING_SMTP, SettingConstants.SETTING_SMTP_DEFAULT, false, true, false, false, false),
@@ -110,6 +111,8 @@ public enum ServerSetting {
     private static class SettingConstants {
 
         static final String STORE_DIRECTORY_DEFAULT = "/tmp";
+        static final String SETTING_STORAGE_VERSION = "blob format";
+        static final String STORAGE_VERSION_DEFAULT = "2";
         static final String SETTING_ADMIN = "admin";
         static final String SETTING_SMTP = "smtp";
         static final String SETTING_SMTP_PASSWORD = "smtp password";
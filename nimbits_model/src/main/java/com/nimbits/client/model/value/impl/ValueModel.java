@@ -171,7 +171,7 @@ public class ValueModel implements Serializable, Comparable<Value>, Value {
 
     @Override
     public AlertType getAlertState() {
-        return AlertType.get(this.st);
+        return this.st == null ? null : AlertType.get(this.st);
     }
 
     @Override
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.api;
+
+import com.google.common.collect.Range;
+import com.nimbits.client.common.Utils;
+import com.nimbits.client.enums.EntityType;
+import com.nimbits.client.enums.ExportType;
+import com.nimbits.client.enums.Parameters;
+import com.nimbits.client.model.entity.Entity;
+import com.nimbits.client.model.user.User;
+import com.nimbits.server.io.BlobStoreImpl;
+import com.nimbits.server.io.SeriesExporter;
+import com.nimbits.server.transaction.entity.dao.EntityDao;
+import com.nimbits.server.transaction.user.dao.UserDao;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.context.support.SpringBeanAutowiringSupport;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams the series of one or more points for a time range, GET /service/v2/export with
+ * <ul>
+ * <li>points - comma separated point keys</li>
+ * <li>sd, ed - start and end of the range in epoch milliseconds, either may be left out</li>
+ * <li>format - an {@link ExportType} name: text_csv (the default), plain, csvSeparateColumns or json</li>
+ * </ul>
+ *
+ * The response has no content length, values are written as the scans yield them so the container sends it
+ * with chunked transfer encoding. Callers authenticate with their token like the other v2 apis.
+ */
+public class ExportApi extends HttpServlet {
+
+    private final Logger logger = Logger.getLogger(ExportApi.class.getName());
+
+    @Autowired
+    private UserDao userDao;
+
+    @Autowired
+    private EntityDao entityDao;
+
+    @Autowired
+    private BlobStoreImpl blobStore;
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        SpringBeanAutowiringSupport.processInjectionBasedOnCurrentContext(this);
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        String token = request.getHeader(Parameters.token.getText());
+        if (token == null) {
+            token = request.getParameter(Parameters.token.getText());
+        }
+        final User user = token == null ? null : userDao.getUserByAuthToken(token);
+        if (user == null) {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "a valid token is required");
+            return;
+        }
+
+        final ExportType type;
+        final Range<Date> range;
+        try {
+            final String format = request.getParameter(Parameters.format.getText());
+            type = Utils.isEmptyString(format) ? ExportType.text_csv : ExportType.valueOf(format);
+            range = range(request.getParameter(Parameters.sd.getText()), request.getParameter(Parameters.ed.getText()));
+        } catch (IllegalArgumentException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+            return;
+        }
+        if (!SeriesExporter.isSupported(type)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "export type " + type + " can not be streamed");
+            return;
+        }
+
+        final List<Entity> points = new ArrayList<>();
+        final String keys = request.getParameter(Parameters.points.getText());
+        if (!Utils.isEmptyString(keys)) {
+            for (final String key : keys.split(",")) {
+                if (Utils.isNotEmpty(key.trim())) {
+                    final List<Entity> found = entityDao.getEntityByKey(user, key.trim(), EntityType.point);
+                    if (found.isEmpty()) {
+                        response.sendError(HttpServletResponse.SC_NOT_FOUND, "point not found: " + key.trim());
+                        return;
+                    }
+                    points.add(found.get(0));
+                }
+            }
+        }
+        if (points.isEmpty()) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "no points given");
+            return;
+        }
+
+        response.setContentType(type.getCode());
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setHeader("Content-Disposition", "attachment; filename=export." + type.getFileExtension());
+        final Writer out = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+        try {
+            new SeriesExporter(blobStore).export(points, range, type, out);
+        } catch (IOException ex) {
+            // usually the client went away, the response is already committed so there is nothing to send
+            logger.log(Level.FINE, "export of " + keys + " ended early", ex);
+        }
+    }
+
+    private static Range<Date> range(final String start, final String end) {
+        if (Utils.isEmptyString(start) && Utils.isEmptyString(end)) {
+            return Range.all();
+        }
+        if (Utils.isEmptyString(start)) {
+            return Range.atMost(new Date(Long.parseLong(end)));
+        }
+        if (Utils.isEmptyString(end)) {
+            return Range.atLeast(new Date(Long.parseLong(start)));
+        }
+        return Range.closed(new Date(Long.parseLong(start)), new Date(Long.parseLong(end)));
+    }
+}
@@ -14,7 +14,9 @@ package com.nimbits.server.io;
 
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Range;
+import com.google.common.util.concurrent.Striped;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
@@ -29,27 +31,154 @@ import com.nimbits.client.model.valueblobstore.ValueBlobStore;
 import com.nimbits.client.model.valueblobstore.ValueBlobStoreFactory;
 import com.nimbits.server.defrag.ValueDayHolder;
 import com.nimbits.server.gson.deserializer.ValueDeserializer;
+import com.nimbits.server.io.segment.EncodingStats;
+import com.nimbits.server.io.segment.Rollup;
+import com.nimbits.server.io.segment.SegmentFormat;
+import com.nimbits.server.io.segment.SegmentReader;
+import com.nimbits.server.io.segment.SegmentWriter;
 import com.nimbits.server.orm.store.ValueBlobStoreEntity;
 import com.nimbits.server.transaction.settings.SettingsService;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.jdo.PersistenceManager;
 import javax.jdo.PersistenceManagerFactory;
 import javax.jdo.Query;
 import javax.jdo.Transaction;
 import java.io.*;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 @Repository
-public class BlobStoreImpl implements BlobStore {
+public class BlobStoreImpl implements BlobStore, ValueScanner {
     private final Logger logger = Logger.getLogger(BlobStoreImpl.class.getName());
 
+    private static final int MAX_PREALLOCATED = 100000;
+
+    private static final long DEFAULT_SEGMENT_CACHE_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * how long a relocated segment's old file is kept for readers that looked it up just before the move
+     */
+    private static final long RETIRE_GRACE_SECONDS = 60;
+
+    /**
+     * how long a day read by consolidateDate holds back the compactor while it waits for its rewrite
+     */
+    private static final long PENDING_RETIREMENT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * rows dropped per transaction when purging expired data
+     */
+    private static final int DELETE_BATCH = 500;
+
     private PersistenceManagerFactory persistenceManagerFactory;
 
+    private final SegmentIndex segmentIndex = new SegmentIndex();
+
+    private SegmentJournal journal;
+
+    /**
+     * opened by {@link #loadSegmentIndex}, instances without a pmf record into memory only
+     */
+    private volatile MemtableLog memtableLog;
+
+    private long segmentCacheBytes = DEFAULT_SEGMENT_CACHE_BYTES;
+
+    private boolean segmentCacheOffHeap;
+
+    private volatile SegmentCache segmentCache;
+
+    private boolean shardedLayout = true;
+
+    private int readerThreads = 8;
+
+    private int readConcurrency = 4;
+
+    private volatile ExecutorService readers;
+
+    private final ScheduledExecutorService retirer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "segment-retirer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * blob keys of segments read by consolidateDate, keyed by entity and day, deleted once the rewritten day is durable
+     */
+    private final ConcurrentMap<String, PendingRetirement> pendingRetirement = new ConcurrentHashMap<>();
+
+    private static final class PendingRetirement {
+
+        private final List<String> keys;
+        private final long since = System.currentTimeMillis();
+
+        private PendingRetirement(final List<String> keys) {
+            this.keys = keys;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - since > PENDING_RETIREMENT_MILLIS;
+        }
+    }
+
+    /**
+     * pack files that lost a segment since startup, the {@link StoreMigrator} drops those left without any
+     */
+    private final Set<String> shrunkPacks = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * serialises consolidateDate and the compactor on the same entity day
+     */
+    private final Striped<Lock> dayLocks = Striped.lock(64);
+
+    /**
+     * value encodings of the segments written for each point since startup
+     */
+    private final ConcurrentMap<String, EncodingStats> encodingStats = new ConcurrentHashMap<>();
+
+    private final Memtables memtables = new Memtables();
+
+    private final ValueScan.SegmentSource segmentSource = new ValueScan.SegmentSource() {
+        @Override
+        public Iterator<Value> open(final ValueBlobStore store, final Range<Date> range, final ScanOrder order) {
+            return openSegment(store, range, order, true);
+        }
+    };
+
+    /**
+     * for reads that only look at timestamps and numbers, segments read block by block skip their notes
+     */
+    private final ValueScan.SegmentSource numericSource = new ValueScan.SegmentSource() {
+        @Override
+        public Iterator<Value> open(final ValueBlobStore store, final Range<Date> range, final ScanOrder order) {
+            return openSegment(store, range, order, false);
+        }
+    };
+
     @Autowired
     private SettingsService settingsService;
 
@@ -68,107 +197,453 @@ public class BlobStoreImpl implements BlobStore {
         this.persistenceManagerFactory = persistenceManagerFactory;
     }
 
-    private boolean validateOwnership(Entity entity, ValueBlobStore e) {
-        return e.getEntityUUID().equals("") || e.getEntityUUID().equals(entity.getUUID());
+    /**
+     * new segments go into hashed per entity directories, see {@link StoreLayout}, false keeps the flat layout
+     */
+    public void setShardedLayout(final boolean shardedLayout) {
+        this.shardedLayout = shardedLayout;
     }
 
-    @Override
-    public List<Value> getTopDataSeries(final Entity entity, final int maxValues, final Date endDate) {
-        PersistenceManager pm = persistenceManagerFactory.getPersistenceManager();
-        try {
+    public void setSegmentCacheBytes(final long segmentCacheBytes) {
+        this.segmentCacheBytes = segmentCacheBytes;
+    }
 
-            final List<Value> retObj = new ArrayList<Value>(maxValues);
+    /**
+     * holds cached segments in direct buffers outside the java heap
+     */
+    public void setSegmentCacheOffHeap(final boolean segmentCacheOffHeap) {
+        this.segmentCacheOffHeap = segmentCacheOffHeap;
+    }
 
-            final Query q = pm.newQuery(ValueBlobStoreEntity.class);
-            q.setFilter("minTimestamp <= t && entity == k");
-            q.declareParameters("String k, Long t");
-            q.setOrdering("minTimestamp desc");
-            q.setRange(0, maxValues);
+    /**
+     * threads shared by every parallel range read
+     */
+    public void setReaderThreads(final int readerThreads) {
+        this.readerThreads = readerThreads;
+    }
 
-            final List<ValueBlobStoreEntity> result = (List<ValueBlobStoreEntity>) q.execute(entity.getKey(), endDate.getTime());
+    /**
+     * how many segments one getDataSegment call reads at once
+     */
+    public void setReadConcurrency(final int readConcurrency) {
+        this.readConcurrency = readConcurrency;
+    }
 
-            for (final ValueBlobStoreEntity e : result) {
-                if (validateOwnership(entity, e)) {
-                    List<Value> values = readValuesFromFile(e.getBlobKey());
-                    logger.info("reading values from blob " + values.size());
-                    for (final Value vx : values) {
-                        if (vx.getTimestamp().getTime() <= endDate.getTime()) {
-                            retObj.add(vx);
+    private ExecutorService getReaders() {
+        if (readers == null) {
+            synchronized (this) {
+                if (readers == null) {
+                    readers = Executors.newFixedThreadPool(readerThreads, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            final Thread thread = new Thread(runnable, "segment-reader");
+                            thread.setDaemon(true);
+                            return thread;
                         }
+                    });
+                }
+            }
+        }
+        return readers;
+    }
 
-                        if (retObj.size() >= maxValues) {
-                            break;
-                        }
-                    }
+    /**
+     * the decoded segment cache, its hit rate and eviction counts are exposed for monitoring
+     */
+    public SegmentCache getSegmentCache() {
+        if (segmentCache == null) {
+            synchronized (this) {
+                if (segmentCache == null) {
+                    segmentCache = new SegmentCache(segmentCacheBytes, segmentCacheOffHeap);
                 }
             }
-            return retObj;
-        } finally {
-           pm.close();
         }
+        return segmentCache;
     }
 
+    /**
+     * @return how the point's segments written since startup encoded their values and the bytes that saved
+     */
+    public EncodingStats getEncodingStats(final String entityKey) {
+        final EncodingStats stats = new EncodingStats();
+        final EncodingStats total = encodingStats.get(entityKey);
+        if (total != null) {
+            stats.merge(total);
+        }
+        return stats;
+    }
 
-    @Override
-    public List<Value> getTopDataSeries(final Entity entity, final int maxValues) {
-        PersistenceManager pm = persistenceManagerFactory.getPersistenceManager();
+    /**
+     * loads every ValueBlobStoreEntity row into the in memory segment index so series reads never query the database
+     */
+    @PostConstruct
+    public void loadSegmentIndex() {
+        if (persistenceManagerFactory == null) {
+            // the component scan also picks this class up, only the instance wired with a pmf serves requests
+            return;
+        }
+        getSegmentIndex();
+        try {
+            getJournal();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "could not open the segment journal", e);
+        }
         try {
+            openMemtableLog(getFolder());
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "could not open the memtable log", e);
+        }
+    }
 
-            final List<Value> retObj = new ArrayList<Value>(maxValues);
+    /**
+     * Opens the memtable log and records what the previous run left unflushed into memtables again, logged under
+     * their new memtables before the old logs are deleted.
+     */
+    void openMemtableLog(final String folder) throws IOException {
+        final MemtableLog log = new MemtableLog(folder);
+        int replayed = 0;
+        for (final MemtableLog.Batch batch : log.getReplayed()) {
+            memtables.add(batch.getEntity(), batch.getValues(), log);
+            replayed += batch.getValues().size();
+        }
+        log.sync();
+        log.dropReplayed();
+        memtableLog = log;
+        if (replayed > 0) {
+            logger.info("replayed " + replayed + " unflushed values into memtables");
+        }
+    }
 
-            final Query q = pm.newQuery(ValueBlobStoreEntity.class);
-            q.setFilter("entity == k");
-            q.declareParameters("String k");
-            q.setOrdering("minTimestamp desc");
-            q.setRange(0, 1000);
+    /**
+     * flushes every memtable before the journal is closed so nothing recorded is lost on a clean shutdown
+     */
+    @PreDestroy
+    public void close() {
+        if (persistenceManagerFactory != null) {
+            try {
+                flushMemtables(0, Long.MAX_VALUE);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "could not flush memtables on shutdown", e);
+            }
+        }
+        closeJournal();
+        final MemtableLog log = memtableLog;
+        if (log != null) {
+            memtableLog = null;
+            try {
+                log.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "could not close the memtable log", e);
+            }
+        }
+    }
 
-            final List<ValueBlobStoreEntity> result = (List<ValueBlobStoreEntity>) q.execute(entity.getKey());
+    public synchronized void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "could not checkpoint the segment journal", e);
+            }
+            journal = null;
+        }
+    }
 
-            for (final ValueBlobStoreEntity e : result) {
-                if (validateOwnership(entity, e)) {
-                    List<Value> values = readValuesFromFile(e.getBlobKey());
-                    logger.info("reading values from blob " + values.size());
-                    for (final Value vx : values) {
-                        retObj.add(vx);
+    /**
+     * the journal for the current store directory, opening it replays anything a crash left in the log
+     */
+    private synchronized SegmentJournal getJournal() throws IOException {
+        final String folder = getFolder();
+        if (journal == null || !journal.getFolder().equals(new File(folder).getPath())) {
+            closeJournal();
+            journal = new SegmentJournal(folder);
+        }
+        return journal;
+    }
 
-                        if (retObj.size() >= maxValues) {
-                            break;
-                        }
+    SegmentIndex getSegmentIndex() {
+        if (!segmentIndex.isLoaded()) {
+            synchronized (segmentIndex) {
+                if (!segmentIndex.isLoaded()) {
+                    PersistenceManager pm = persistenceManagerFactory.getPersistenceManager();
+                    try {
+                        final Query q = pm.newQuery(ValueBlobStoreEntity.class);
+                        final Collection<ValueBlobStore> result = (Collection<ValueBlobStore>) q.execute();
+                        segmentIndex.load(result);
+                        logger.info("loaded segment index with " + result.size() + " segments");
+                    } finally {
+                        pm.close();
                     }
                 }
             }
-            return ImmutableList.copyOf(retObj);
-        } finally {
-           pm.close();
         }
+        return segmentIndex;
+    }
+
+    private boolean validateOwnership(Entity entity, ValueBlobStore e) {
+        return e.getEntityUUID().equals("") || e.getEntityUUID().equals(entity.getUUID());
+    }
+
+    @Override
+    public List<Value> getTopDataSeries(final Entity entity, final int maxValues, final Date endDate) {
+        return top(entity, Range.atMost(endDate), maxValues);
+    }
+
+
+    @Override
+    public List<Value> getTopDataSeries(final Entity entity, final int maxValues) {
+        return ImmutableList.copyOf(top(entity, Range.<Date>all(), maxValues));
+    }
+
+    /**
+     * The newest maxValues values in the range, newest first. A descending scan only opens segments until it has
+     * produced maxValues values, so "last value" reads touch a single block of the newest segment.
+     */
+    private List<Value> top(final Entity entity, final Range<Date> range, final int maxValues) {
+        final List<Value> retObj = new ArrayList<Value>(Math.max(0, Math.min(maxValues, MAX_PREALLOCATED)));
+        final Iterator<Value> scan = scan(entity, range, ScanOrder.descending, maxValues);
+        while (scan.hasNext()) {
+            retObj.add(scan.next());
+        }
+        return retObj;
     }
 
     @Override
     public List<Value> getDataSegment(final Entity entity, final Range<Date> timespan) {
-        PersistenceManager pm = persistenceManagerFactory.getPersistenceManager();
-        try {
-            final List<Value> retObj = new ArrayList<Value>();
-            final Query q = pm.newQuery(ValueBlobStoreEntity.class);
-            q.setFilter("entity == k && minTimestamp <= et && maxTimestamp >= st ");
-            q.declareParameters("String k, Long et, Long st");
-            q.setOrdering("minTimestamp desc");
+        return read(entity, timespan, readConcurrency);
+    }
 
-            final Iterable<ValueBlobStore> result = (Iterable<ValueBlobStore>) q.execute(entity.getKey(), timespan.upperEndpoint().getTime(), timespan.lowerEndpoint().getTime());
-            for (final ValueBlobStore e : result) {    //todo break out of loop when range is met
-                if (validateOwnership(entity, e)) {
-                    List<Value> values = readValuesFromFile(e.getBlobKey());
-                    for (final Value vx : values) {
-                        if (timespan.contains(vx.getTimestamp())) {
-                            retObj.add(vx);
+    @Override
+    public Iterator<Value> scan(final Entity entity, final Range<Date> range, final ScanOrder order, final int limit) {
+        return new ValueScan(findOwned(entity, range), range, order, limit, segmentSource);
+    }
 
-                        }
+    /**
+     * Reads every segment in the range on the shared reader pool, at most concurrency of them at a time including
+     * the calling thread, then merges the decoded segments newest first. Reader tasks that have not started by the
+     * time the caller has worked through the segments itself are cancelled, so a busy pool never holds a read up,
+     * the caller then waits only for the segments other readers are still decoding.
+     */
+    @Override
+    public List<Value> read(final Entity entity, final Range<Date> range, final int concurrency) {
+        final List<ValueBlobStore> owned = findOwned(entity, range);
+        final Map<String, List<Value>> decoded = new ConcurrentHashMap<>();
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(owned.size());
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        final Runnable reader = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < owned.size()) {
+                    final ValueBlobStore store = owned.get(i);
+                    try {
+                        decoded.put(store.getBlobKey(), drain(openSegment(store, range, ScanOrder.descending, true)));
+                    } catch (RuntimeException ex) {
+                        failure.compareAndSet(null, ex);
+                    } finally {
+                        done.countDown();
                     }
                 }
             }
-            return retObj;
+        };
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int i = 1; i < Math.min(concurrency, owned.size()); i++) {
+            futures.add(getReaders().submit(reader));
+        }
+        reader.run();
+        for (final Future<?> future : futures) {
+            future.cancel(false);
+        }
+        try {
+            // a reader that claimed a segment finishes it even if its task was cancelled meanwhile
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while reading " + entity.getKey(), e);
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("could not read " + entity.getKey(), failure.get());
+        }
+        return drain(new ValueScan(owned, range, ScanOrder.descending, Integer.MAX_VALUE, new ValueScan.SegmentSource() {
+            @Override
+            public Iterator<Value> open(final ValueBlobStore store, final Range<Date> range, final ScanOrder order) {
+                return decoded.get(store.getBlobKey()).iterator();
+            }
+        }));
+    }
+
+    /**
+     * the entity's segments and memtable snapshots that overlap the range
+     */
+    private List<ValueBlobStore> findOwned(final Entity entity, final Range<Date> range) {
+        final long start = range.hasLowerBound() ? range.lowerEndpoint().getTime() : Long.MIN_VALUE;
+        final long end = range.hasUpperBound() ? range.upperEndpoint().getTime() : Long.MAX_VALUE;
+        final SegmentIndex index = getSegmentIndex();
+        final List<ValueBlobStore> result;
+        final List<Memtable.Snapshot> recent;
+        memtables.readLock().lock();
+        try {
+            result = index.findOverlapping(entity.getKey(), start, end);
+            recent = memtables.snapshots(entity.getKey(), range);
         } finally {
-            pm.close();
+            memtables.readLock().unlock();
+        }
+        final List<ValueBlobStore> owned = new ArrayList<>(result.size() + recent.size());
+        owned.addAll(recent);
+        for (final ValueBlobStore e : result) {
+            if (validateOwnership(entity, e)) {
+                owned.add(e);
+            }
+        }
+        return owned;
+    }
+
+    private static List<Value> drain(final Iterator<Value> values) {
+        final List<Value> list = new ArrayList<Value>();
+        while (values.hasNext()) {
+            list.add(values.next());
         }
+        return list;
+    }
+
+    @Override
+    public Rollup aggregate(final Entity entity, final Range<Date> range) {
+        final Rollup rollup = new Rollup();
+        for (final ValueBlobStore store : findOwned(entity, range)) {
+            if (store instanceof Memtable.Snapshot) {
+                for (final Value value : ((Memtable.Snapshot) store).getValues()) {
+                    rollup.add(value);
+                }
+                continue;
+            }
+            if (store.getVersion() >= SegmentFormat.VERSION) {
+                try {
+                    final ByteBuffer segment = readFile(store.getBlobKey());
+                    if (SegmentFormat.isSegment(segment)) {
+                        rollup.merge(SegmentReader.aggregate(segment, range));
+                        continue;
+                    }
+                } catch (IOException e) {
+                    logger.warning("could not aggregate segment " + store.getBlobKey() + " " + e.getMessage());
+                    continue;
+                }
+            }
+            for (final Value value : SegmentCache.slice(readSegment(store.getBlobKey(), store.getVersion(), true), range)) {
+                rollup.add(value);
+            }
+        }
+        return rollup;
+    }
+
+    @Override
+    public List<Value> downsample(final Entity entity, final Range<Date> range, final int maxPoints, final DownsampleMode mode) {
+        long start = range.hasLowerBound() ? range.lowerEndpoint().getTime() : Long.MIN_VALUE;
+        long end = range.hasUpperBound() ? range.upperEndpoint().getTime() : Long.MAX_VALUE;
+        final List<ValueBlobStore> owned = findOwned(entity, range);
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (final ValueBlobStore store : owned) {
+            first = Math.min(first, store.getMinTimestamp().getTime());
+            last = Math.max(last, store.getMaxTimestamp().getTime());
+        }
+        if (owned.isEmpty() || maxPoints <= 0) {
+            return Collections.emptyList();
+        }
+        // buckets span the data actually stored, an open ended range would otherwise put everything in one bucket
+        start = range.hasLowerBound() && !range.contains(range.lowerEndpoint()) ? start + 1 : start;
+        end = range.hasUpperBound() && !range.contains(range.upperEndpoint()) ? end - 1 : end;
+        start = Math.max(start, first);
+        end = Math.min(end, last);
+
+        List<Value> points;
+        // a min max bucket gives two points, a single point can only come from lttb
+        if (mode == DownsampleMode.lttb || maxPoints < 2) {
+            final ValueScan scan = new ValueScan(owned, range, ScanOrder.ascending, Integer.MAX_VALUE, numericSource);
+            points = Downsampler.lttb(scan, start, end, maxPoints);
+        } else {
+            final Rollup[] buckets = new Rollup[maxPoints / 2];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new Rollup();
+            }
+            for (final ValueBlobStore store : owned) {
+                rollupBuckets(store, start, end, buckets);
+            }
+            points = Downsampler.minMax(buckets);
+        }
+        Collections.reverse(points);
+        return points;
+    }
+
+    private void rollupBuckets(final ValueBlobStore store, final long start, final long end, final Rollup[] buckets) {
+        if (store instanceof Memtable.Snapshot) {
+            rollupBuckets(((Memtable.Snapshot) store).getValues(), start, end, buckets);
+            return;
+        }
+        if (store.getVersion() >= SegmentFormat.VERSION) {
+            try {
+                final ByteBuffer segment = readFile(store.getBlobKey());
+                if (SegmentFormat.isSegment(segment)) {
+                    SegmentReader.rollupBuckets(segment, start, end, buckets);
+                    return;
+                }
+            } catch (IOException e) {
+                logger.warning("could not downsample segment " + store.getBlobKey() + " " + e.getMessage());
+                return;
+            }
+        }
+        rollupBuckets(readSegment(store.getBlobKey(), store.getVersion(), true), start, end, buckets);
+    }
+
+    private static void rollupBuckets(final List<Value> values, final long start, final long end, final Rollup[] buckets) {
+        for (final Value value : values) {
+            final long timestamp = value.getTimestamp().getTime();
+            if (timestamp >= start && timestamp <= end) {
+                buckets[SegmentReader.bucket(timestamp, start, end, buckets.length)].add(value);
+            }
+        }
+    }
+
+    /**
+     * Opens a single segment for a scan. Cached segments are sliced in memory. Otherwise binary segments decode one
+     * block at a time as the scan consumes them, unless the range takes the whole segment anyway, in which case it
+     * is decoded once and cached. Legacy json segments are always parsed whole and cached.
+     *
+     * @param notes false leaves the notes of segments read block by block undecoded
+     */
+    private Iterator<Value> openSegment(final ValueBlobStore store, final Range<Date> range, final ScanOrder order, final boolean notes) {
+        if (store instanceof Memtable.Snapshot) {
+            final List<Value> values = ((Memtable.Snapshot) store).getValues();
+            return (order == ScanOrder.ascending ? Lists.reverse(values) : values).iterator();
+        }
+        List<Value> values = getSegmentCache().get(store.getBlobKey(), store.getVersion());
+        if (values == null) {
+            if (store.getVersion() >= SegmentFormat.VERSION && !encloses(range, store)) {
+                try {
+                    ByteBuffer segment = readFile(store.getBlobKey());
+                    if (SegmentFormat.isSegment(segment)) {
+                        return SegmentReader.iterate(segment, range, order == ScanOrder.descending, notes);
+                    }
+                } catch (IOException e) {
+                    logger.warning("could not open segment " + store.getBlobKey() + " " + e.getMessage());
+                    return Collections.emptyIterator();
+                }
+            }
+            values = readSegment(store.getBlobKey(), store.getVersion(), true);
+        }
+        values = SegmentCache.slice(values, range);
+        if (order == ScanOrder.ascending) {
+            values = Lists.reverse(values);
+        }
+        return values.iterator();
+    }
+
+    /**
+     * true for a bounded range that takes in the whole segment, unbounded ranges are top n reads that usually stop early
+     */
+    private static boolean encloses(final Range<Date> range, final ValueBlobStore store) {
+        return range.hasLowerBound() && range.hasUpperBound()
+                && range.encloses(Range.closed(store.getMinTimestamp(), store.getMaxTimestamp()));
     }
 
 
@@ -216,6 +691,7 @@ public class BlobStoreImpl implements BlobStore {
 
             //   tx.begin();
             final List<ValueBlobStoreEntity> result = (List<ValueBlobStoreEntity>) q.execute(entity.getKey(), timestamp.getTime());
+            getSegmentIndex().remove(result);
              pm.deletePersistentAll(result);
 
             //  tx.commit();
@@ -243,6 +719,8 @@ public class BlobStoreImpl implements BlobStore {
 
 
 
+        final Lock lock = dayLocks.get(dayKey(entity.getKey(), timestamp));
+        lock.lock();
         try {
 
             final List<ValueBlobStore> result = (List<ValueBlobStore>) q.execute(entity.getKey(), timestamp.getTime());
@@ -250,74 +728,127 @@ public class BlobStoreImpl implements BlobStore {
             final List<Value> values = new ArrayList<>(Const.CONST_DEFAULT_LIST_SIZE);
             for (final ValueBlobStore store : result) {
                 if (validateOwnership(entity, store)) {
-                    values.addAll(readValuesFromFile(store));
+                    values.addAll(readSegment(store.getBlobKey(), store.getVersion(), false));
                 }
             }
 
-            deleteGcs(result);
+            final List<String> keys = new ArrayList<>(result.size());
+            for (final ValueBlobStore store : result) {
+                keys.add(store.getBlobKey());
+            }
+            if (keys.isEmpty()) {
+                pendingRetirement.remove(dayKey(entity.getKey(), timestamp));
+            } else {
+                pendingRetirement.put(dayKey(entity.getKey(), timestamp), new PendingRetirement(keys));
+            }
 
 
             return values;
         }
         catch (Exception ex) {
-             return Collections.emptyList();  //TODO if anything goes wrong with this process you'll lose an entire day's worth of data
+             logger.log(Level.WARNING, "could not consolidate " + entity.getKey(), ex);
+             pendingRetirement.remove(dayKey(entity.getKey(), timestamp));
+             return Collections.emptyList();
 
         } finally {
+            lock.unlock();
             pm.close();
         }
 
 
     }
 
-    @Override
-    public int deleteExpiredData(final Entity entity ) {
-        PersistenceManager pm = persistenceManagerFactory.getPersistenceManager();
-
-
-        int exp = ((Point) entity).getExpire();
-        int deleted = 0;
-        if (exp > 0) {
-            Calendar c = Calendar.getInstance();
-            c.add(Calendar.DATE, exp * -1);
-            try {
-                final Query q = pm.newQuery(ValueBlobStoreEntity.class);
-                q.setFilter("entity == k && maxTimestamp <= et");
-                q.declareParameters("String k, Long et");
-                q.setRange(0,  1000);
-
-
-                final List<ValueBlobStore> result = (List<ValueBlobStore>) q.execute(
-                        entity.getKey(), c.getTime().getTime());
-                deleted = result.size();
-
-                delete(result);
-                pm.deletePersistentAll(result);
+    private static String dayKey(final String entity, final Date day) {
+        return entity + "@" + day.getTime();
+    }
 
-            } finally {
-                pm.close();
+    /**
+     * deletes the files consolidateDate read for this day, only called once the day's replacement is durable
+     */
+    private void retireConsolidated(final String entity, final Date day) {
+        final PendingRetirement pending = pendingRetirement.remove(dayKey(entity, day));
+        if (pending != null) {
+            for (final String key : pending.keys) {
+                deleteBlobStore(key);
             }
+        }
+    }
 
+    /**
+     * Drops every segment of the point that ends before its expire cutoff. Rows are deleted in batches of
+     * DELETE_BATCH, each in its own short transaction so recording values is never held up behind a large purge,
+     * and the files are unlinked in the background once their rows are gone.
+     *
+     * @return the number of segments dropped
+     */
+    @Override
+    public int deleteExpiredData(final Entity entity) {
+        final int exp = ((Point) entity).getExpire();
+        if (exp <= 0) {
+            return 0;
         }
+        final long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(exp);
+        int deleted = 0;
+        int batch;
+        do {
+            batch = deleteExpiredBatch(entity.getKey(), cutoff);
+            deleted += batch;
+        } while (batch == DELETE_BATCH);
         return deleted;
     }
 
-    private String readFile(final String fn) throws IOException {
-        String folder = getFolder();
-
+    private int deleteExpiredBatch(final String entityKey, final long cutoff) {
+        final PersistenceManager pm = persistenceManagerFactory.getPersistenceManager();
+        final List<String> keys = new ArrayList<>();
+        final Transaction tx = pm.currentTransaction();
+        try {
+            tx.begin();
+            final Query q = pm.newQuery(ValueBlobStoreEntity.class);
+            q.setFilter("entity == k && maxTimestamp <= et");
+            q.declareParameters("String k, Long et");
+            q.setRange(0, DELETE_BATCH);
+            final List<ValueBlobStore> result = new ArrayList<>((List<ValueBlobStore>) q.execute(entityKey, cutoff));
+            for (final ValueBlobStore store : result) {
+                keys.add(store.getBlobKey());
+            }
+            getSegmentIndex().remove(result);
+            pm.deletePersistentAll(result);
+            tx.commit();
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            pm.close();
+        }
+        for (final String key : keys) {
+            retireLater(key);
+        }
+        return keys.size();
+    }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(folder + fn))) {
+    private ByteBuffer readFile(final String fn) throws IOException {
+        if (StoreLayout.isPacked(fn)) {
+            return PackFile.map(getFolder() + StoreLayout.packFile(fn), StoreLayout.packOffset(fn), StoreLayout.packLength(fn));
+        }
+        return SegmentReader.map(getFolder() + fn);
+    }
 
-            StringBuilder sb = new StringBuilder();
-            String line = br.readLine();
+    /**
+     * the blob key for a new segment of the entity in the configured layout
+     */
+    private String newBlobKey(final String entityKey, final String entityUUID, final String flatPrefix) {
+        return newBlobKey(entityKey, entityUUID, flatPrefix, false);
+    }
 
-            while (line != null) {
-                sb.append(line);
-                sb.append('\n');
-                line = br.readLine();
-            }
-            return sb.toString();
+    /**
+     * @param delta marks the key as a backfill delta, see {@link StoreLayout#isDelta}
+     */
+    private String newBlobKey(final String entityKey, final String entityUUID, final String flatPrefix, final boolean delta) {
+        final String name = delta ? StoreLayout.DELTA_PREFIX + UUID.randomUUID() : UUID.randomUUID().toString();
+        if (shardedLayout) {
+            return StoreLayout.segmentKey(entityUUID, entityKey, name);
         }
-
+        return flatPrefix == null ? name : flatPrefix + "_" + name;
     }
 
     private String getFolder() {
@@ -340,31 +871,58 @@ public class BlobStoreImpl implements BlobStore {
 
     @Override
     public List<Value> readValuesFromFile(ValueBlobStore store) {
-        return readValuesFromFile(store.getBlobKey());
+        return new ArrayList<>(readSegment(store.getBlobKey(), store.getVersion(), true));
     }
 
+    /**
+     * The whole segment newest value first, from the segment cache when it holds it.
+     *
+     * @param populate false for reads of segments that are about to be rewritten, so they do not push live ones out
+     */
+    private List<Value> readSegment(final String key, final int version, final boolean populate) {
+        final List<Value> cached = getSegmentCache().get(key, version);
+        if (cached != null) {
+            return cached;
+        }
+        final List<Value> models = readValuesFromFile(key, version, null);
+        if (populate && !models.isEmpty()) {
+            getSegmentCache().put(key, version, models);
+        }
+        return models;
+    }
 
 
+    /**
+     * Reads a segment in whichever format its store entity was written with, newest value first. Binary segments
+     * are checked for their header so a store entity with a bad version still falls back to json.
+     *
+     * @param range only values inside the range are returned, binary segments only decode the blocks that overlap it.
+     *              null reads everything.
+     */
+    private List<Value> readValuesFromFile(final String key, final int version, final Range<Date> range) {
 
-    private List<Value> readValuesFromFile(final String key) {
-
-        final Type valueListType = new TypeToken<List<ValueModel>>() {
-        }.getType();
         List<Value> models;
 
 
         try {
 
-            String segment = readFile(key);
-            if (!Utils.isEmptyString(segment)) {
-                models = gson.fromJson(segment, valueListType);
-                if (models != null) {
-                    Collections.sort(models);
-                } else {
-                    models = Collections.emptyList();
-                }
+            ByteBuffer segment = readFile(key);
+            if (version >= SegmentFormat.VERSION && SegmentFormat.isSegment(segment)) {
+                models = SegmentReader.read(segment, range);
+                Collections.reverse(models);
             } else {
-                models = Collections.emptyList();
+                byte[] json = new byte[segment.remaining()];
+                segment.get(json);
+                models = readJson(new String(json, Charset.defaultCharset()));
+                if (range != null) {
+                    List<Value> filtered = new ArrayList<>(models.size());
+                    for (Value value : models) {
+                        if (range.contains(value.getTimestamp())) {
+                            filtered.add(value);
+                        }
+                    }
+                    models = filtered;
+                }
             }
             return models;
         } catch (IllegalArgumentException ex) {
@@ -375,34 +933,278 @@ public class BlobStoreImpl implements BlobStore {
 
     }
 
+    private List<Value> readJson(final String segment) {
+        final Type valueListType = new TypeToken<List<ValueModel>>() {
+        }.getType();
+        List<Value> models;
+        if (!Utils.isEmptyString(segment)) {
+            models = gson.fromJson(segment, valueListType);
+            if (models != null) {
+                Collections.sort(models);
+            } else {
+                models = Collections.emptyList();
+            }
+        } else {
+            models = Collections.emptyList();
+        }
+        return models;
+    }
+
+    /**
+     * Writes a day's worth of values in the configured storage format through the segment journal and returns the
+     * number of bytes written. The segment is durable when this returns.
+     *
+     * @param entity the point the values belong to, its type and precision pick the value encodings. Rewrites of
+     *               existing segments pass null and get the encodings that suit the values.
+     */
+    private long writeSegment(final String fn, final String entityKey, final Entity entity, final Collection<Value> values,
+                              final int version) throws IOException {
+        final byte[] bytes = encodeSegment(fn, entityKey, entity, values, version);
+        getJournal().write(fn, bytes);
+        return bytes.length;
+    }
+
+    private byte[] encodeSegment(final String fn, final String entityKey, final Entity entity, final Collection<Value> values,
+                                 final int version) throws IOException {
+        final byte[] bytes;
+        if (version >= SegmentFormat.VERSION) {
+            final EncodingStats stats = new EncodingStats();
+            if (entity instanceof Point) {
+                final Point point = (Point) entity;
+                bytes = SegmentWriter.write(values, point.getPointType(), point.getPrecision(), stats);
+            } else {
+                bytes = SegmentWriter.write(values, null, -1, stats);
+            }
+            EncodingStats total = encodingStats.get(entityKey);
+            if (total == null) {
+                final EncodingStats created = new EncodingStats();
+                total = encodingStats.putIfAbsent(entityKey, created);
+                if (total == null) {
+                    total = created;
+                }
+            }
+            total.merge(stats);
+            logger.fine("wrote " + fn + " for " + entityKey + ", " + stats);
+        } else {
+            bytes = (gson.toJson(values) + System.lineSeparator()).getBytes(Charset.defaultCharset());
+        }
+        return bytes;
+    }
+
+    /**
+     * The format new segments are written in, {@link BlobStore#storageVersion} selects the legacy json arrays.
+     * Readers dispatch on ValueBlobStore.getVersion() so both formats can sit side by side for the same point.
+     */
+    private int getStorageVersion() {
+        if (settingsService != null) {
+            try {
+                String setting = settingsService.getSetting(ServerSetting.storageVersion);
+                if (setting != null && Integer.parseInt(setting.trim()) == BlobStore.storageVersion) {
+                    return BlobStore.storageVersion;
+                }
+            } catch (NumberFormatException ignored) {
+
+            }
+        }
+        return SegmentFormat.VERSION;
+    }
+
     @Override
     public void deleteGcs(List<ValueBlobStore> result) {
         for (ValueBlobStore store : result) {
-            final String blobKey = store.getBlobKey();
-            File file = new File(getFolder() + blobKey);
-            file.delete();
+            deleteBlobStore(store.getBlobKey());
 
         }
     }
 
+    /**
+     * Packed segments stay in their pack file until the {@link StoreMigrator} rewrites or drops the pack. A
+     * segment file is retired in the journal before it is deleted so a replay after a crash does not restore it.
+     */
     @Override
     public void deleteBlobStore(final String key) {
-        File file = new File(getFolder() + key);
-        file.delete();
+        getSegmentCache().invalidate(key);
+        if (StoreLayout.isPacked(key)) {
+            shrunkPacks.add(StoreLayout.packFile(key));
+        } else {
+            try {
+                getJournal().retire(key);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "could not retire " + key + " in the segment journal", e);
+            }
+            File file = new File(getFolder() + key);
+            file.delete();
+        }
 
     }
 
+    /**
+     * deletes a segment's file after the grace period, for files whose rows already point somewhere else
+     */
+    private void retireLater(final String key) {
+        getSegmentCache().invalidate(key);
+        retirer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                deleteBlobStore(key);
+            }
+        }, RETIRE_GRACE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Adds values to the point's memtable. They are readable straight away and reach a segment on the next flush
+     * that picks the memtable up, a value recorded again for the same timestamp replaces the earlier one. When this
+     * returns the values are forced to the memtable log, so a crash before the flush does not lose them.
+     */
+    public void record(final Entity entity, final List<Value> values) throws IOException {
+        if (!values.isEmpty()) {
+            final MemtableLog log = memtableLog;
+            memtables.add(entity, values, log);
+            if (log != null) {
+                log.sync();
+            }
+        }
+    }
+
+    /**
+     * Reads merge memtables over segments, so a value for a timestamp a memtable still holds only replaces it when
+     * it is recorded into the memtable too, a backfill of it would lose to the memtable and again to its flush.
+     *
+     * @return true if one of the point's memtables holds a value at the timestamp
+     */
+    public boolean isInMemtable(final Entity entity, final long timestamp) {
+        return memtables.contains(entity.getKey(), timestamp);
+    }
+
+    /**
+     * values recorded and not yet flushed, across every point
+     */
+    public long getMemtableSize() {
+        return memtables.size();
+    }
+
+    /**
+     * Flushes every memtable holding at least maxValues values or older than maxAgeMillis, one segment per point
+     * and day. All segments go through the journal with a single force and their rows are stored in one
+     * transaction, so a flush of thousands of points costs about as much I/O as writing one segment. A flush that
+     * fails leaves its memtables readable and the next flush retries them.
+     *
+     * @return the number of segments written
+     */
+    public synchronized int flushMemtables(final int maxValues, final long maxAgeMillis) throws IOException {
+        final long createdBefore = maxAgeMillis == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() - maxAgeMillis;
+        final List<Memtable> sealed = memtables.seal(maxValues, createdBefore);
+        if (sealed.isEmpty()) {
+            return 0;
+        }
+        final Map<String, byte[]> files = new LinkedHashMap<>();
+        final List<ValueBlobStoreEntity> rows = new ArrayList<>();
+        for (final Memtable memtable : sealed) {
+            encodeDays(memtable.getEntity(), memtable.days(), false, files, rows);
+        }
+        storeSegments(files, rows, sealed);
+        final MemtableLog log = memtableLog;
+        if (log != null) {
+            final List<Long> ids = new ArrayList<>(sealed.size());
+            for (final Memtable memtable : sealed) {
+                ids.add(memtable.getId());
+            }
+            // without the tombstones a restart replays values that are already in segments, which only costs a rewrite
+            log.flushed(ids);
+        }
+        logger.fine("flushed " + sealed.size() + " memtables to " + rows.size() + " segments");
+        return rows.size();
+    }
+
+    /**
+     * Writes values that arrive after their days already have segments, such as a device uploading its backlog.
+     * Each day touched gets one small delta segment next to the segments it already has instead of a rewrite of
+     * the day, reads merge the delta in and the {@link SegmentCompactor} folds it into the day later. All deltas
+     * go through the journal with one force and one transaction, so a backfill costs about what it writes no
+     * matter how many days it touches or how large they are.
+     *
+     * @return the number of delta segments written
+     */
+    public int backfill(final Entity entity, final Collection<Value> values) throws IOException {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        final List<Value> ascending = new ArrayList<>(values);
+        Collections.sort(ascending, new Comparator<Value>() {
+            @Override
+            public int compare(final Value a, final Value b) {
+                return a.getTimestamp().compareTo(b.getTimestamp());
+            }
+        });
+        final Map<String, byte[]> files = new LinkedHashMap<>();
+        final List<ValueBlobStoreEntity> rows = new ArrayList<>();
+        encodeDays(entity, Memtable.days(ascending), true, files, rows);
+        storeSegments(files, rows, Collections.<Memtable>emptyList());
+        logger.fine("backfilled " + values.size() + " values of " + entity.getKey() + " in " + rows.size() + " delta segments");
+        return rows.size();
+    }
+
+    /**
+     * encodes one segment per day, each day's values sorted oldest first
+     *
+     * @param deltas true for backfills, their segments get delta keys
+     */
+    private void encodeDays(final Entity entity, final List<List<Value>> days, final boolean deltas,
+                            final Map<String, byte[]> files, final List<ValueBlobStoreEntity> rows) throws IOException {
+        final int version = getStorageVersion();
+        for (final List<Value> day : days) {
+            final String fn = newBlobKey(entity.getKey(), entity.getUUID(), entity.getName().getValue(), deltas);
+            final byte[] bytes = encodeSegment(fn, entity.getKey(), entity, day, version);
+            final Date min = day.get(0).getTimestamp();
+            final ValueBlobStoreEntity row = new ValueBlobStoreEntity(entity.getKey(),
+                    new Date(Memtable.startOfDay(min.getTime())),
+                    day.get(day.size() - 1).getTimestamp(),
+                    min,
+                    fn,
+                    bytes.length,
+                    version,
+                    entity.getUUID());
+            row.validate();
+            files.put(fn, bytes);
+            rows.add(row);
+        }
+    }
+
+    /**
+     * Writes the files with a single journal force and stores their rows in one transaction. The rows become
+     * visible together with the flushed memtables dropping out, if storing them fails the files are deleted again.
+     */
+    private void storeSegments(final Map<String, byte[]> files, final List<ValueBlobStoreEntity> rows,
+                               final List<Memtable> flushed) throws IOException {
+        if (!files.isEmpty()) {
+            getJournal().writeAll(files);
+        }
+        PersistenceManager pm = persistenceManagerFactory.getPersistenceManager();
+        boolean stored = false;
+        try {
+            pm.makePersistentAll(rows);
+            pm.flush();
+            memtables.flushed(flushed, rows, getSegmentIndex());
+            stored = true;
+        } finally {
+            pm.close();
+            if (!stored) {
+                for (final String fn : files.keySet()) {
+                    deleteBlobStore(fn);
+                }
+            }
+        }
+    }
+
     @Override
     public List<ValueBlobStore> createBlobStoreEntity(final Entity entity, final ValueDayHolder holder) throws IOException {
         PersistenceManager pm = persistenceManagerFactory.getPersistenceManager();
-        PrintWriter out = null;
+        boolean stored = false;
         try {
             logger.info("Creating Blobstore for " + holder.getValues().size());
-            final String json = gson.toJson(holder.getValues());
-            String fn = entity.getName().getValue() + "_" + UUID.randomUUID().toString();
-            out = new PrintWriter(getFolder() + fn);
-            out.println(json);
-            out.close();
+            final int version = getStorageVersion();
+            String fn = newBlobKey(entity.getKey(), entity.getUUID(), entity.getName().getValue());
+            final long length = writeSegment(fn, entity.getKey(), entity, holder.getValues(), version);
 
 
             Range<Date> range = holder.getTimeRange();
@@ -414,8 +1216,8 @@ public class BlobStoreImpl implements BlobStore {
                     mostRecentTimeForDay,
                     earliestForDay,
                     fn,
-                    json.length(),
-                    BlobStore.storageVersion,
+                    length,
+                    version,
                     entity.getUUID()
 
             );
@@ -426,14 +1228,19 @@ public class BlobStoreImpl implements BlobStore {
 
             pm.flush();
 
+            getSegmentIndex().add(currentStoreEntity);
+            stored = true;
+            retireConsolidated(entity.getKey(), holder.getStartOfDay());
+
             return ValueBlobStoreFactory.createValueBlobStore(currentStoreEntity);
 
 
         } finally {
-            if (out != null) {
-                out.close();
-            }
             pm.close();
+            if (!stored) {
+                // the consolidated files still hold the day, keep them and stop holding back the compactor
+                pendingRetirement.remove(dayKey(entity.getKey(), holder.getStartOfDay()));
+            }
         }
 
     }
@@ -442,11 +1249,8 @@ public class BlobStoreImpl implements BlobStore {
     public List<ValueBlobStore> mergeTimespan(final Entity entity, final Range<Date> timespan) {
         PersistenceManager pm = persistenceManagerFactory.getPersistenceManager();
 
-        PrintWriter out = null;
         try {
-            String fn = UUID.randomUUID().toString();
-
-            out = new PrintWriter(fn);
+            String fn = newBlobKey(entity.getKey(), entity.getUUID(), null);
 
             final Query q = pm.newQuery(ValueBlobStoreEntity.class);
 
@@ -460,62 +1264,363 @@ public class BlobStoreImpl implements BlobStore {
                     timespan.lowerEndpoint().getTime());
 
 
-            Collection<Value> combined = new ArrayList<Value>();
             Date timestamp = null;
             for (ValueBlobStore store : result) {
                 if (timestamp == null || timestamp.getTime() > store.getTimestamp().getTime()) {
                     timestamp = store.getTimestamp();
 
                 }
-                List<Value> read = readValuesFromFile((store.getBlobKey()));
-                combined.addAll(read);
-                deleteBlobStore(store.getBlobKey());
+            }
+
+            final ValueBlobStore currentStoreEntity = replaceSegments(pm, entity.getKey(), entity.getUUID(), timestamp, fn, result);
+            return ValueBlobStoreFactory.createValueBlobStore(currentStoreEntity);
+        } catch (IOException ex) {
+            return Collections.emptyList();
+
+        } finally {
+            pm.close();
+        }
+
+    }
 
+    /**
+     * Rewrites the given segments of one entity into a single new segment. The new segment is durable before the
+     * old rows are swapped out in one transaction, and the old files are retired after the grace period so reads
+     * that already looked them up finish. The index swaps the segments in one step, so a concurrent read never
+     * finds the day empty. A timestamp held by more than one segment keeps the value of the newest, as scans
+     * return it.
+     */
+    private ValueBlobStoreEntity replaceSegments(final PersistenceManager pm, final String entityKey, final String entityUUID,
+                                                 final Date timestamp, final String fn, final List<? extends ValueBlobStore> result) throws IOException {
+        final List<ValueBlobStore> oldestFirst = new ArrayList<ValueBlobStore>(result);
+        Collections.sort(oldestFirst, new Comparator<ValueBlobStore>() {
+            @Override
+            public int compare(final ValueBlobStore a, final ValueBlobStore b) {
+                return ValueScan.compareAge(a, b);
             }
+        });
+        final Map<Long, Value> byTimestamp = new TreeMap<>();
+        for (ValueBlobStore store : oldestFirst) {
+            for (Value value : readSegment(store.getBlobKey(), store.getVersion(), false)) {
+                byTimestamp.put(value.getTimestamp().getTime(), value);
+            }
+        }
+        Collection<Value> combined = byTimestamp.values();
+
+        long max = 0;
+        long min = 0;
+        for (Value v : combined) {
+            if (v.getTimestamp().getTime() > max) {
+                max = v.getTimestamp().getTime();
+            }
+            if (v.getTimestamp().getTime() < min || min == 0) {
+                min = v.getTimestamp().getTime();
+            }
+        }
 
+        final int version = getStorageVersion();
+        final long length = writeSegment(fn, entityKey, null, combined, version);
 
+
+        ValueBlobStoreEntity currentStoreEntity = new ValueBlobStoreEntity(
+                entityKey,
+                timestamp,
+                new Date(max),
+                new Date(min),
+                fn,
+                length, version, entityUUID);
+
+        currentStoreEntity.validate();
+
+        final List<String> retired = new ArrayList<>(result.size());
+        for (ValueBlobStore store : result) {
+            retired.add(store.getBlobKey());
+        }
+        final Transaction tx = pm.currentTransaction();
+        boolean swapped = false;
+        try {
+            tx.begin();
             pm.deletePersistentAll(result);
+            pm.makePersistent(currentStoreEntity);
+            tx.commit();
+            swapped = true;
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            if (!swapped) {
+                deleteBlobStore(fn);
+            }
+        }
+        getSegmentIndex().replace(result, Collections.singletonList(currentStoreEntity));
+        for (String key : retired) {
+            retireLater(key);
+        }
+        return currentStoreEntity;
+    }
 
+    /**
+     * Merges the given segments of one entity day, used by the {@link SegmentCompactor}. Segments that were deleted
+     * or rewritten since the compactor looked at the index are skipped, and so is a day consolidateDate has read but
+     * not yet rewritten, for up to PENDING_RETIREMENT_MILLIS.
+     *
+     * @return the length of the merged segment, 0 if there was nothing left to merge
+     */
+    long compact(final String entityKey, final Date day, final Collection<? extends ValueBlobStore> stores) throws IOException {
+        final String key = dayKey(entityKey, day);
+        final Lock lock = dayLocks.get(key);
+        lock.lock();
+        PersistenceManager pm = persistenceManagerFactory.getPersistenceManager();
+        try {
+            final PendingRetirement pending = pendingRetirement.get(key);
+            if (pending != null) {
+                if (!pending.isExpired()) {
+                    return 0;
+                }
+                // consolidateDate's caller never rewrote the day, the files stay where they are
+                pendingRetirement.remove(key, pending);
+                logger.fine("gave up waiting for the rewrite of " + key);
+            }
+            final Set<String> wanted = new HashSet<>(stores.size());
+            String entityUUID = null;
+            for (final ValueBlobStore store : stores) {
+                wanted.add(store.getBlobKey());
+                if (entityUUID == null) {
+                    entityUUID = store.getEntityUUID();
+                }
+            }
 
-            long max = 0;
-            long min = 0;
-            for (Value v : combined) {
-                if (v.getTimestamp().getTime() > max) {
-                    max = v.getTimestamp().getTime();
+            final Query q = pm.newQuery(ValueBlobStoreEntity.class);
+            q.setFilter("timestamp == t && entity == k");
+            q.declareParameters("String k, Long t");
+            final List<ValueBlobStoreEntity> rows = (List<ValueBlobStoreEntity>) q.execute(entityKey, day.getTime());
+            final List<ValueBlobStoreEntity> merged = new ArrayList<>(rows.size());
+            for (final ValueBlobStoreEntity row : rows) {
+                final String owner = row.getEntityUUID() == null ? "" : row.getEntityUUID();
+                if (wanted.contains(row.getBlobKey()) && owner.equals(entityUUID)) {
+                    merged.add(row);
                 }
-                if (v.getTimestamp().getTime() < min || min == 0) {
-                    min = v.getTimestamp().getTime();
+            }
+            if (merged.size() < 2) {
+                return 0;
+            }
+            return replaceSegments(pm, entityKey, entityUUID, day, newBlobKey(entityKey, entityUUID, null), merged).getLength();
+        } finally {
+            pm.close();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves a flat layout segment into its sharded directory for the {@link StoreMigrator}. The copy is durable
+     * before the row is swapped, and the old file is retired after a grace period so in flight reads finish.
+     *
+     * @return the bytes copied, 0 if the segment was gone or already moved
+     */
+    long migrateSegment(final ValueBlobStore store) throws IOException {
+        final Lock lock = dayLocks.get(dayKey(store.getEntity(), store.getTimestamp()));
+        lock.lock();
+        PersistenceManager pm = persistenceManagerFactory.getPersistenceManager();
+        try {
+            final ValueBlobStoreEntity row = findRow(pm, store.getBlobKey());
+            if (row == null || StoreLayout.isSharded(row.getBlobKey())) {
+                return 0;
+            }
+            final byte[] bytes = Files.readAllBytes(new File(getFolder() + row.getBlobKey()).toPath());
+            final String key = StoreLayout.segmentKey(row.getEntityUUID(), row.getEntity(), row.getBlobKey());
+            getJournal().write(key, bytes);
+            boolean swapped = false;
+            try {
+                swapRow(pm, row, key, bytes.length);
+                swapped = true;
+            } finally {
+                if (!swapped) {
+                    deleteBlobStore(key);
                 }
             }
+            retireLater(row.getBlobKey());
+            return bytes.length;
+        } finally {
+            pm.close();
+            lock.unlock();
+        }
+    }
 
-            String json = gson.toJson(combined);
-            // byte[] compressed = CompressionImpl.compressBytes(json);
-            out.print(json);
-            out.close();
+    /**
+     * Appends sealed segments of one entity to its current pack file for the {@link StoreMigrator} and points their
+     * rows at the pack. Segments deleted or rewritten while the pack was written are left as dead bytes in the pack.
+     *
+     * @return the number of segments packed
+     */
+    int packSegments(final String entityKey, final String entityUUID, final List<ValueBlobStore> stores) throws IOException {
+        final List<ValueBlobStore> packable = new ArrayList<>(stores.size());
+        for (final ValueBlobStore store : stores) {
+            if (!StoreLayout.isPacked(store.getBlobKey())) {
+                packable.add(store);
+            }
+        }
+        if (packable.isEmpty()) {
+            return 0;
+        }
+        String pack = null;
+        final String directory = StoreLayout.entityDirectory(entityUUID, entityKey) + "/";
+        for (final String live : livePacks(entityKey)) {
+            if (live.startsWith(directory) && (pack == null
+                    || StoreLayout.packGeneration(live) > StoreLayout.packGeneration(pack))) {
+                pack = live;
+            }
+        }
+        if (pack == null) {
+            pack = StoreLayout.packPath(entityUUID, entityKey, System.currentTimeMillis());
+        }
+        return appendToPack(entityKey, pack, packable);
+    }
 
+    /**
+     * Rewrites the entity's packs whose live segments fill less than minLiveRatio of the file. The live segments
+     * move to one new pack and the old ones are deleted after the grace period, once no row points into them.
+     *
+     * @return the bytes given back
+     */
+    long reclaimPacks(final String entityKey, final double minLiveRatio) throws IOException {
+        final Map<String, List<ValueBlobStore>> byPack = new HashMap<>();
+        for (final ValueBlobStore store : getSegmentIndex().getSegments(entityKey)) {
+            if (StoreLayout.isPacked(store.getBlobKey())) {
+                final String pack = StoreLayout.packFile(store.getBlobKey());
+                List<ValueBlobStore> live = byPack.get(pack);
+                if (live == null) {
+                    live = new ArrayList<>();
+                    byPack.put(pack, live);
+                }
+                live.add(store);
+            }
+        }
+        long generation = System.currentTimeMillis();
+        for (final String pack : byPack.keySet()) {
+            generation = Math.max(generation, StoreLayout.packGeneration(pack) + 1);
+        }
+        long reclaimed = 0;
+        for (final Map.Entry<String, List<ValueBlobStore>> e : byPack.entrySet()) {
+            final long size = new File(getFolder() + e.getKey()).length();
+            long liveBytes = 0;
+            for (final ValueBlobStore store : e.getValue()) {
+                liveBytes += StoreLayout.packLength(store.getBlobKey());
+            }
+            if (size == 0 || liveBytes >= size * minLiveRatio) {
+                continue;
+            }
+            appendToPack(entityKey, StoreLayout.siblingPack(e.getKey(), generation), e.getValue());
+            if (!livePacks(entityKey).contains(e.getKey())) {
+                retireLater(e.getKey());
+                reclaimed += size - liveBytes;
+            }
+        }
+        return reclaimed;
+    }
 
-            ValueBlobStore currentStoreEntity = new ValueBlobStoreEntity(
-                    entity.getKey(),
-                    timestamp,
-                    new Date(max),
-                    new Date(min),
-                    fn,
-                    json.length(), BlobStore.storageVersion, entity.getUUID());
+    /**
+     * Deletes, after the grace period, the packs that lost segments and that no row points into anymore.
+     *
+     * @param live every pack file a row pointed into when the caller last looked, packs written since included
+     * @return the number of packs dropped
+     */
+    int dropDeadPacks(final Set<String> live) {
+        int dropped = 0;
+        for (final String pack : new ArrayList<>(shrunkPacks)) {
+            if (!live.contains(pack)) {
+                shrunkPacks.remove(pack);
+                retireLater(pack);
+                dropped++;
+            }
+        }
+        return dropped;
+    }
 
-            currentStoreEntity.validate();
-            pm.makePersistent(currentStoreEntity);
-            pm.flush();
-            return ValueBlobStoreFactory.createValueBlobStore(currentStoreEntity);
-        } catch (IOException ex) {
-            return Collections.emptyList();
+    /**
+     * the pack files the entity's rows point into
+     */
+    Set<String> livePacks(final String entityKey) {
+        final Set<String> packs = new HashSet<>();
+        for (final ValueBlobStore store : getSegmentIndex().getSegments(entityKey)) {
+            if (StoreLayout.isPacked(store.getBlobKey())) {
+                packs.add(StoreLayout.packFile(store.getBlobKey()));
+            }
+        }
+        return packs;
+    }
 
-        } finally {
-            if (out != null) {
-                out.close();
+    /**
+     * copies segments into a pack and swaps each one's row to it, segments whose row went away meanwhile are skipped
+     */
+    private int appendToPack(final String entityKey, final String pack, final List<ValueBlobStore> stores) throws IOException {
+        final List<byte[]> segments = new ArrayList<>(stores.size());
+        final List<Long> days = new ArrayList<>(stores.size());
+        for (final ValueBlobStore store : stores) {
+            final ByteBuffer segment = readFile(store.getBlobKey());
+            final byte[] bytes = new byte[segment.remaining()];
+            segment.get(bytes);
+            segments.add(bytes);
+            days.add(store.getTimestamp().getTime());
+        }
+        final List<PackFile.Entry> entries = PackFile.append(getFolder() + pack, segments, days);
+
+        int packed = 0;
+        for (int i = 0; i < stores.size(); i++) {
+            final ValueBlobStore store = stores.get(i);
+            final Lock lock = dayLocks.get(dayKey(entityKey, store.getTimestamp()));
+            lock.lock();
+            PersistenceManager pm = persistenceManagerFactory.getPersistenceManager();
+            try {
+                final ValueBlobStoreEntity row = findRow(pm, store.getBlobKey());
+                if (row != null) {
+                    final PackFile.Entry entry = entries.get(i);
+                    swapRow(pm, row, StoreLayout.packKey(pack, entry.getOffset(), entry.getLength()), entry.getLength());
+                    retireLater(store.getBlobKey());
+                    packed++;
+                }
+            } finally {
+                pm.close();
+                lock.unlock();
             }
-            pm.close();
         }
+        return packed;
+    }
+
+    private ValueBlobStoreEntity findRow(final PersistenceManager pm, final String blobKey) {
+        final Query q = pm.newQuery(ValueBlobStoreEntity.class);
+        q.setFilter("blobKey == b");
+        q.declareParameters("String b");
+        final List<ValueBlobStoreEntity> rows = (List<ValueBlobStoreEntity>) q.execute(blobKey);
+        return rows.isEmpty() ? null : rows.get(0);
+    }
 
+    /**
+     * Replaces a row with one that points at the same values under a new blob key, in one transaction. The index
+     * swaps the two in one step once the transaction has committed, if it fails the old row stays as it was.
+     */
+    private void swapRow(final PersistenceManager pm, final ValueBlobStoreEntity row, final String blobKey, final long length) {
+        final ValueBlobStoreEntity moved = new ValueBlobStoreEntity(
+                row.getEntity(),
+                row.getTimestamp(),
+                row.getMaxTimestamp(),
+                row.getMinTimestamp(),
+                blobKey,
+                length,
+                row.getVersion() == null ? BlobStore.storageVersion : row.getVersion(),
+                row.getEntityUUID());
+        moved.validate();
+        final Transaction tx = pm.currentTransaction();
+        try {
+            tx.begin();
+            pm.deletePersistent(row);
+            pm.makePersistent(moved);
+            tx.commit();
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+        }
+        getSegmentIndex().replace(Collections.singletonList(row), Collections.singletonList(moved));
     }
 
     @Override
@@ -534,6 +1639,7 @@ public class BlobStoreImpl implements BlobStore {
             tx.begin();
             ValueBlobStore st = s.get(0);
             final ValueBlobStore result =   pm.getObjectById(ValueBlobStoreEntity.class, st.getId());
+            getSegmentIndex().remove(Collections.singletonList(result));
             pm.deletePersistent(result);
 
             tx.commit();
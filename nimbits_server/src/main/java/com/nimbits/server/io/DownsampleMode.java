@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+/**
+ * how {@link ValueScanner#downsample} reduces a range to a bounded number of points
+ */
+public enum DownsampleMode {
+
+    /**
+     * largest triangle three buckets, keeps the raw values that best preserve the shape of the line
+     */
+    lttb,
+
+    /**
+     * the min and max of every time bucket, keeps spikes and answers from block rollups where it can,
+     * a request for a single point is answered with lttb
+     */
+    minMax
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.value.impl.ValueFactory;
+import com.nimbits.server.io.segment.Rollup;
+import com.nimbits.server.io.segment.SegmentReader;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reduces a time range of values to a bounded number of points for charts. Both modes cut the range into equal
+ * width time buckets, so gaps in the data stay gaps on the chart.
+ */
+public final class Downsampler {
+
+    private Downsampler() {
+    }
+
+    /**
+     * Largest triangle three buckets over a stream of values. The first value of the first bucket and the last
+     * value of the last bucket are kept, every bucket in between keeps the value that forms the largest triangle
+     * with the value kept before it and the average of the next non empty bucket. Only two buckets of values are
+     * held at a time.
+     *
+     * @param ascending values between start and end, oldest first
+     * @return at most maxPoints values, oldest first
+     */
+    public static List<Value> lttb(final Iterator<Value> ascending, final long start, final long end, final int maxPoints) {
+        final List<Value> result = new ArrayList<Value>(Math.max(0, maxPoints));
+        if (maxPoints <= 0) {
+            return result;
+        }
+        List<Value> pending = null;
+        List<Value> filling = new ArrayList<Value>();
+        int fillingBucket = -1;
+        while (ascending.hasNext()) {
+            final Value value = ascending.next();
+            if (Double.isNaN(value.getDoubleValue())) {
+                continue;
+            }
+            final int bucket = SegmentReader.bucket(value.getTimestamp().getTime(), start, end, maxPoints);
+            if (bucket != fillingBucket && !filling.isEmpty()) {
+                if (pending != null) {
+                    result.add(select(result.isEmpty() ? null : result.get(result.size() - 1), pending, filling, start));
+                }
+                pending = filling;
+                filling = new ArrayList<Value>();
+            }
+            fillingBucket = bucket;
+            filling.add(value);
+        }
+        if (pending != null) {
+            result.add(select(result.isEmpty() ? null : result.get(result.size() - 1), pending, filling, start));
+            pending = filling;
+        } else {
+            pending = filling;
+        }
+        if (!pending.isEmpty()) {
+            if (result.isEmpty() && pending.size() > 1 && maxPoints > 1) {
+                result.add(pending.get(0));
+            }
+            result.add(pending.get(pending.size() - 1));
+        }
+        return result;
+    }
+
+    /**
+     * @param previous the value kept from the bucket before, null for the first bucket which keeps its first value
+     */
+    private static Value select(final Value previous, final List<Value> bucket, final List<Value> next, final long start) {
+        if (previous == null) {
+            return bucket.get(0);
+        }
+        double nextTime = 0;
+        double nextValue = 0;
+        for (final Value value : next) {
+            nextTime += value.getTimestamp().getTime() - start;
+            nextValue += value.getDoubleValue();
+        }
+        nextTime /= next.size();
+        nextValue /= next.size();
+
+        final double previousTime = previous.getTimestamp().getTime() - start;
+        final double previousValue = previous.getDoubleValue();
+        Value selected = bucket.get(0);
+        double largest = -1;
+        for (final Value value : bucket) {
+            final double area = Math.abs((previousTime - nextTime) * (value.getDoubleValue() - previousValue)
+                    - (previousTime - (value.getTimestamp().getTime() - start)) * (nextValue - previousValue));
+            if (area > largest) {
+                largest = area;
+                selected = value;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Turns bucket rollups into chart points. A bucket with several values becomes its min and max, placed at the
+     * bucket's first and last timestamps in the order that follows the bucket's trend.
+     *
+     * @return the points oldest first
+     */
+    public static List<Value> minMax(final Rollup[] buckets) {
+        final List<Value> result = new ArrayList<Value>(buckets.length * 2);
+        for (final Rollup bucket : buckets) {
+            if (bucket.getCount() == 0) {
+                continue;
+            }
+            final Date first = new Date(bucket.getFirstTimestamp());
+            if (bucket.getCount() == 1 || bucket.getFirstTimestamp() == bucket.getLastTimestamp()) {
+                result.add(ValueFactory.createValueModel(bucket.getFirst(), first));
+                continue;
+            }
+            final Date last = new Date(bucket.getLastTimestamp());
+            if (bucket.getLast() >= bucket.getFirst()) {
+                result.add(ValueFactory.createValueModel(bucket.getMin(), first));
+                result.add(ValueFactory.createValueModel(bucket.getMax(), last));
+            } else {
+                result.add(ValueFactory.createValueModel(bucket.getMax(), first));
+                result.add(ValueFactory.createValueModel(bucket.getMin(), last));
+            }
+        }
+        return result;
+    }
+}
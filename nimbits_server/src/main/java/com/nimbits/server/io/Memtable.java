@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import com.google.common.collect.Range;
+import com.nimbits.client.model.entity.Entity;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.valueblobstore.ValueBlobStore;
+import com.nimbits.server.io.segment.SegmentFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Recently recorded values of one point, sorted by timestamp in a skip list so recording never waits on file I/O
+ * and reads of recent data never open a segment. A value recorded again for the same timestamp replaces the
+ * earlier one. Once sealed for a flush a memtable takes no more values, writers move on to a fresh one.
+ */
+class Memtable {
+
+    private static final AtomicLong IDS = new AtomicLong();
+
+    private final long id = IDS.incrementAndGet();
+
+    private final String entityKey;
+
+    private final long created = System.currentTimeMillis();
+
+    private final ConcurrentSkipListMap<Long, Value> values = new ConcurrentSkipListMap<>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * recorders hold the read lock while adding, sealing takes the write lock
+     */
+    private final ReadWriteLock sealLock = new ReentrantReadWriteLock();
+
+    private volatile Entity entity;
+
+    private boolean sealed;
+
+    Memtable(final Entity entity) {
+        this.entityKey = entity.getKey();
+        this.entity = entity;
+    }
+
+    /**
+     * Appends the values to the log, if there is one, and then adds them. The log record is written under the
+     * seal lock, so it always belongs to the memtable that takes the values and the memtable's tombstone covers it.
+     *
+     * @return how many of the values were new, -1 if the memtable was sealed and took none of them
+     */
+    int add(final Entity entity, final Collection<Value> recorded, final MemtableLog log) throws IOException {
+        sealLock.readLock().lock();
+        try {
+            if (sealed) {
+                return -1;
+            }
+            if (log != null) {
+                log.append(id, entity, recorded);
+            }
+            this.entity = entity;
+            int added = 0;
+            for (final Value value : recorded) {
+                if (values.put(value.getTimestamp().getTime(), value) == null) {
+                    added++;
+                }
+            }
+            size.addAndGet(added);
+            return added;
+        } finally {
+            sealLock.readLock().unlock();
+        }
+    }
+
+    void seal() {
+        sealLock.writeLock().lock();
+        try {
+            sealed = true;
+        } finally {
+            sealLock.writeLock().unlock();
+        }
+    }
+
+    boolean contains(final long timestamp) {
+        return values.containsKey(timestamp);
+    }
+
+    long getId() {
+        return id;
+    }
+
+    String getEntityKey() {
+        return entityKey;
+    }
+
+    Entity getEntity() {
+        return entity;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return the values grouped by the local day they fall on, each day oldest first
+     */
+    List<List<Value>> days() {
+        return days(values.values());
+    }
+
+    /**
+     * @param ascending values sorted oldest first
+     * @return the values grouped by the local day they fall on
+     */
+    static List<List<Value>> days(final Iterable<Value> ascending) {
+        final List<List<Value>> days = new ArrayList<>();
+        List<Value> day = null;
+        long dayEnd = Long.MIN_VALUE;
+        for (final Value value : ascending) {
+            final long timestamp = value.getTimestamp().getTime();
+            if (day == null || timestamp >= dayEnd) {
+                day = new ArrayList<>();
+                days.add(day);
+                dayEnd = startOfNextDay(timestamp);
+            }
+            day.add(value);
+        }
+        return days;
+    }
+
+    static long startOfDay(final long timestamp) {
+        final Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(timestamp);
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        return c.getTimeInMillis();
+    }
+
+    private static long startOfNextDay(final long timestamp) {
+        final Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(startOfDay(timestamp));
+        c.add(Calendar.DATE, 1);
+        return c.getTimeInMillis();
+    }
+
+    /**
+     * @return the values inside the range as a segment a {@link ValueScan} can merge, null if there are none
+     */
+    Snapshot snapshot(final Range<Date> range) {
+        final long start = range.hasLowerBound() ? range.lowerEndpoint().getTime() : Long.MIN_VALUE;
+        final long end = range.hasUpperBound() ? range.upperEndpoint().getTime() : Long.MAX_VALUE;
+        if (start > end) {
+            return null;
+        }
+        final ConcurrentNavigableMap<Long, Value> inside = values.subMap(start, true, end, true).descendingMap();
+        final List<Value> newestFirst = new ArrayList<>();
+        for (final Map.Entry<Long, Value> entry : inside.entrySet()) {
+            if (range.contains(entry.getValue().getTimestamp())) {
+                newestFirst.add(entry.getValue());
+            }
+        }
+        return newestFirst.isEmpty() ? null : new Snapshot(entity, newestFirst);
+    }
+
+    /**
+     * A memtable's values at one moment, passed through the read path alongside the segment index entries. It has
+     * no blob behind it, readers take the values straight from {@link #getValues}.
+     */
+    static final class Snapshot implements ValueBlobStore {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final AtomicLong SEQUENCE = new AtomicLong();
+
+        private final long id = SEQUENCE.incrementAndGet();
+        private final String entity;
+        private final String entityUUID;
+        private final List<Value> values;
+
+        private Snapshot(final Entity entity, final List<Value> newestFirst) {
+            this.entity = entity.getKey();
+            this.entityUUID = entity.getUUID() == null ? "" : entity.getUUID();
+            this.values = newestFirst;
+        }
+
+        /**
+         * @return the values newest first
+         */
+        List<Value> getValues() {
+            return values;
+        }
+
+        @Override
+        public long getId() {
+            return -id;
+        }
+
+        @Override
+        public String getEntity() {
+            return entity;
+        }
+
+        @Override
+        public Date getTimestamp() {
+            return getMinTimestamp();
+        }
+
+        @Override
+        public Date getMaxTimestamp() {
+            return values.get(0).getTimestamp();
+        }
+
+        @Override
+        public Date getMinTimestamp() {
+            return values.get(values.size() - 1).getTimestamp();
+        }
+
+        @Override
+        public String getBlobKey() {
+            return "memtable:" + id;
+        }
+
+        @Override
+        public long getLength() {
+            return 0;
+        }
+
+        @Override
+        public void validate() {
+        }
+
+        @Override
+        public Integer getVersion() {
+            return SegmentFormat.VERSION;
+        }
+
+        @Override
+        public String getEntityUUID() {
+            return entityUUID;
+        }
+
+        @Override
+        public int compareTo(final ValueBlobStore that) {
+            return this.getTimestamp().compareTo(that.getTimestamp());
+        }
+    }
+}
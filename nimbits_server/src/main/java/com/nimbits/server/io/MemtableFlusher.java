@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically flushes the memtables of {@link BlobStoreImpl} to segments. A memtable is flushed once it holds
+ * maxValues values or is maxAgeSeconds old, and when all memtables together hold more than maxTotalValues every
+ * one of them is flushed to bound the memory they take. Each pass flushes all due points in one batch.
+ */
+public class MemtableFlusher {
+
+    private final Logger logger = Logger.getLogger(MemtableFlusher.class.getName());
+
+    private BlobStoreImpl blobStore;
+
+    private long intervalSeconds = 5;
+
+    private int maxValues = 4096;
+
+    private long maxAgeSeconds = 300;
+
+    private long maxTotalValues = 2000000;
+
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicLong flushes = new AtomicLong();
+
+    private final AtomicLong segmentsWritten = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile long lastFlush;
+
+    public void setBlobStore(final BlobStoreImpl blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    public void setIntervalSeconds(final long intervalSeconds) {
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    public void setMaxValues(final int maxValues) {
+        this.maxValues = maxValues;
+    }
+
+    public void setMaxAgeSeconds(final long maxAgeSeconds) {
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    public void setMaxTotalValues(final long maxTotalValues) {
+        this.maxTotalValues = maxTotalValues;
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "memtable-flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Exception ex) {
+                    failures.incrementAndGet();
+                    logger.log(Level.WARNING, "memtable flush failed", ex);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * the store flushes whatever is left itself when it closes
+     */
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * @return the number of segments written
+     */
+    public int flush() throws Exception {
+        final int written;
+        if (blobStore.getMemtableSize() > maxTotalValues) {
+            written = blobStore.flushMemtables(0, 0);
+        } else {
+            written = blobStore.flushMemtables(maxValues, TimeUnit.SECONDS.toMillis(maxAgeSeconds));
+        }
+        flushes.incrementAndGet();
+        segmentsWritten.addAndGet(written);
+        lastFlush = System.currentTimeMillis();
+        return written;
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public long getSegmentsWritten() {
+        return segmentsWritten.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public Date getLastFlush() {
+        return lastFlush == 0 ? null : new Date(lastFlush);
+    }
+}
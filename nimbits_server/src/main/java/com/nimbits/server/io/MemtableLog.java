@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import com.nimbits.client.enums.EntityType;
+import com.nimbits.client.enums.point.PointType;
+import com.nimbits.client.model.entity.Entity;
+import com.nimbits.client.model.entity.EntityModelFactory;
+import com.nimbits.client.model.entity.EntityNameImpl;
+import com.nimbits.client.model.point.Point;
+import com.nimbits.client.model.point.PointModelFactory;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.server.io.segment.SegmentReader;
+import com.nimbits.server.io.segment.SegmentWriter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Write ahead log for memtables. Every batch recorded into a memtable is appended here and forced before the
+ * recorder is acknowledged, so values that were only in memory when the process died are replayed into memtables
+ * on the next start. Once a flush has stored a memtable's segments a tombstone for the memtable is logged and
+ * replay skips its batches.
+ *
+ * The {@link SegmentJournal} empties its log at every checkpoint, while a memtable can stay unflushed for longer
+ * than that, so memtable batches go to a log of their own. It is written in generations, memtable.&lt;n&gt;.wal,
+ * and rolls over to a new file once the current one is large. An older generation is deleted when every memtable
+ * it holds batches of has been flushed and every generation before it is gone, so a tombstone is never dropped
+ * while a batch it retires is still on disk.
+ *
+ * Concurrent recorders share fsyncs the same way the segment journal's writers do (group commit).
+ */
+public class MemtableLog implements Closeable {
+
+    static final String LOG_PREFIX = "memtable.";
+
+    static final String LOG_SUFFIX = ".wal";
+
+    private static final int BATCH_MAGIC = 0x4E424D42; // NBMB
+
+    private static final int TOMBSTONE_MAGIC = 0x4E424D54; // NBMT
+
+    private static final long DEFAULT_ROLL_BYTES = 64L * 1024 * 1024;
+
+    private final Logger logger = Logger.getLogger(MemtableLog.class.getName());
+
+    private final Path folder;
+
+    private final long rollBytes;
+
+    private final Object appendLock = new Object();
+
+    private final Object syncLock = new Object();
+
+    /**
+     * open generations oldest first, with the memtables each holds unflushed batches of
+     */
+    private final Map<Long, Set<Long>> unflushed = new LinkedHashMap<>();
+
+    private final Map<Long, FileChannel> channels = new LinkedHashMap<>();
+
+    /**
+     * generations left by the previous run, deleted once their batches are recorded again
+     */
+    private final List<Path> previous = new ArrayList<>();
+
+    private final List<Batch> replayed = new ArrayList<>();
+
+    private long generation;
+
+    private FileChannel log;
+
+    private volatile long appended;
+
+    private long synced;
+
+    private volatile long syncCount;
+
+    public MemtableLog(final String folder) throws IOException {
+        this(folder, DEFAULT_ROLL_BYTES);
+    }
+
+    public MemtableLog(final String folder, final long rollBytes) throws IOException {
+        this.folder = Paths.get(folder);
+        this.rollBytes = rollBytes;
+        Files.createDirectories(this.folder);
+        final TreeMap<Long, Path> generations = generations();
+        replay(generations.values());
+        previous.addAll(generations.values());
+        generation = generations.isEmpty() ? 0 : generations.lastKey();
+        roll();
+    }
+
+    /**
+     * a batch read back from the log at startup
+     */
+    static final class Batch {
+
+        private final Entity entity;
+
+        private final List<Value> values;
+
+        private Batch(final Entity entity, final List<Value> values) {
+            this.entity = entity;
+            this.values = values;
+        }
+
+        Entity getEntity() {
+            return entity;
+        }
+
+        List<Value> getValues() {
+            return values;
+        }
+    }
+
+    /**
+     * @return the batches of every memtable the previous run did not flush, in the order they were recorded
+     */
+    List<Batch> getReplayed() {
+        return replayed;
+    }
+
+    /**
+     * Deletes the logs of the previous run. Call once the replayed batches are recorded and synced again.
+     */
+    void dropReplayed() throws IOException {
+        for (final Path path : previous) {
+            Files.deleteIfExists(path);
+        }
+        previous.clear();
+        replayed.clear();
+        syncDirectory();
+    }
+
+    /**
+     * number of times the log was forced, lower than the number of batches when commits were grouped
+     */
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * Appends a batch of the memtable's values. It is not durable until {@link #sync} returns.
+     */
+    void append(final long memtable, final Entity entity, final Collection<Value> values) throws IOException {
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(header);
+        out.writeUTF(entity.getKey());
+        out.writeUTF(entity.getUUID() == null ? "" : entity.getUUID());
+        out.writeUTF(entity.getName() == null ? "" : entity.getName().getValue());
+        if (entity instanceof Point && ((Point) entity).getPointType() != null) {
+            out.writeInt(((Point) entity).getPointType().getCode());
+            out.writeInt(((Point) entity).getPrecision());
+        } else {
+            out.writeInt(-1);
+            out.writeInt(-1);
+        }
+        out.flush();
+        append(BATCH_MAGIC, memtable, header.toByteArray(), SegmentWriter.write(values));
+    }
+
+    /**
+     * Blocks until every batch appended so far is forced. A recorder calls this after appending, when it returns
+     * the batch survives a crash.
+     */
+    void sync() throws IOException {
+        final long sequence = appended;
+        synchronized (syncLock) {
+            if (synced < sequence) {
+                final long target;
+                final FileChannel channel;
+                synchronized (appendLock) {
+                    target = appended;
+                    channel = log;
+                }
+                // a roll forced the generations before this one, only the current file can hold unsynced batches
+                channel.force(false);
+                syncCount++;
+                synced = target;
+            }
+        }
+    }
+
+    /**
+     * Logs tombstones for memtables whose segments are stored and deletes the generations nothing needs anymore.
+     */
+    void flushed(final Collection<Long> memtables) throws IOException {
+        if (memtables.isEmpty()) {
+            return;
+        }
+        for (final long memtable : memtables) {
+            append(TOMBSTONE_MAGIC, memtable, null, null);
+        }
+        sync();
+        final List<Path> deleted = new ArrayList<>();
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                for (final Set<Long> open : unflushed.values()) {
+                    open.removeAll(memtables);
+                }
+                final Iterator<Map.Entry<Long, Set<Long>>> generations = unflushed.entrySet().iterator();
+                while (generations.hasNext()) {
+                    final Map.Entry<Long, Set<Long>> entry = generations.next();
+                    if (entry.getKey() == generation || !entry.getValue().isEmpty()) {
+                        break;
+                    }
+                    generations.remove();
+                    channels.remove(entry.getKey()).close();
+                    deleted.add(path(entry.getKey()));
+                }
+            }
+        }
+        for (final Path path : deleted) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * closes the log, its files are deleted when every memtable was flushed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                boolean empty = true;
+                for (final Set<Long> open : unflushed.values()) {
+                    empty &= open.isEmpty();
+                }
+                for (final Map.Entry<Long, FileChannel> entry : channels.entrySet()) {
+                    entry.getValue().close();
+                    if (empty) {
+                        Files.deleteIfExists(path(entry.getKey()));
+                    }
+                }
+                channels.clear();
+                unflushed.clear();
+            }
+        }
+    }
+
+    private void append(final int magic, final long memtable, final byte[] header, final byte[] values) throws IOException {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer id = ByteBuffer.allocate(8).putLong(0, memtable);
+        crc.update(id.array());
+        if (header != null) {
+            crc.update(header);
+            crc.update(values);
+        }
+        final ByteBuffer record = ByteBuffer.allocate(4 + 8 + (header == null ? 0 : 4 + header.length + 4 + values.length) + 8);
+        record.putInt(magic);
+        record.putLong(memtable);
+        if (header != null) {
+            record.putInt(header.length);
+            record.put(header);
+            record.putInt(values.length);
+            record.put(values);
+        }
+        record.putLong(crc.getValue());
+        record.flip();
+        synchronized (appendLock) {
+            while (record.hasRemaining()) {
+                log.write(record);
+            }
+            if (header != null) {
+                unflushed.get(generation).add(memtable);
+            }
+            appended++;
+            if (log.size() >= rollBytes) {
+                roll();
+            }
+        }
+    }
+
+    /**
+     * starts the next generation, the current one is forced first so a sync only ever has to force the newest file
+     */
+    private void roll() throws IOException {
+        if (log != null) {
+            log.force(false);
+        }
+        generation++;
+        log = FileChannel.open(path(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        channels.put(generation, log);
+        unflushed.put(generation, new HashSet<Long>());
+        syncDirectory();
+    }
+
+    private Path path(final long generation) {
+        return folder.resolve(LOG_PREFIX + generation + LOG_SUFFIX);
+    }
+
+    /**
+     * @return the log files in the folder by generation
+     */
+    private TreeMap<Long, Path> generations() throws IOException {
+        final TreeMap<Long, Path> generations = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                try {
+                    generations.put(Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length())), file);
+                } catch (NumberFormatException ignored) {
+                    // not one of ours
+                }
+            }
+        }
+        return generations;
+    }
+
+    /**
+     * Reads the batches of every memtable without a tombstone. A torn or corrupt record ends its file, it was
+     * never acknowledged to a recorder.
+     */
+    private void replay(final Collection<Path> paths) throws IOException {
+        final Map<Long, List<Batch>> batches = new LinkedHashMap<>();
+        for (final Path path : paths) {
+            final long size = Files.size(path);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                while (true) {
+                    final int magic;
+                    final long memtable;
+                    final byte[] header;
+                    final byte[] values;
+                    try {
+                        magic = in.readInt();
+                        if (magic != BATCH_MAGIC && magic != TOMBSTONE_MAGIC) {
+                            break;
+                        }
+                        memtable = in.readLong();
+                        final CRC32 crc = new CRC32();
+                        crc.update(ByteBuffer.allocate(8).putLong(0, memtable).array());
+                        if (magic == BATCH_MAGIC) {
+                            header = readChunk(in, size);
+                            values = header == null ? null : readChunk(in, size);
+                            if (values == null) {
+                                break;
+                            }
+                            crc.update(header);
+                            crc.update(values);
+                        } else {
+                            header = null;
+                            values = null;
+                        }
+                        if (in.readLong() != crc.getValue()) {
+                            break;
+                        }
+                    } catch (EOFException ex) {
+                        break;
+                    }
+                    if (header == null) {
+                        batches.remove(memtable);
+                        continue;
+                    }
+                    List<Batch> memtableBatches = batches.get(memtable);
+                    if (memtableBatches == null) {
+                        memtableBatches = new ArrayList<>();
+                        batches.put(memtable, memtableBatches);
+                    }
+                    memtableBatches.add(new Batch(entity(header), SegmentReader.read(ByteBuffer.wrap(values))));
+                }
+            }
+        }
+        int count = 0;
+        for (final List<Batch> memtableBatches : batches.values()) {
+            for (final Batch batch : memtableBatches) {
+                replayed.add(batch);
+                count += batch.getValues().size();
+            }
+        }
+        if (count > 0) {
+            logger.info("replaying " + count + " unflushed values from " + paths.size() + " memtable logs");
+        }
+    }
+
+    /**
+     * @return an entity carrying what a flush needs to write the point's segments
+     */
+    private static Entity entity(final byte[] header) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+        final String key = in.readUTF();
+        final String uuid = in.readUTF();
+        final String name = in.readUTF();
+        final int pointType = in.readInt();
+        final int precision = in.readInt();
+        // the name was checked when the point was created, the factory's check would only reject it for changed rules
+        Entity entity = EntityModelFactory.createEntity(new EntityNameImpl(name), EntityType.point);
+        if (pointType >= 0) {
+            final Point point = PointModelFactory.createPoint(entity);
+            point.setPointType(PointType.get(pointType));
+            point.setPrecision(precision);
+            entity = point;
+        }
+        entity.setKey(key);
+        entity.setUUID(uuid);
+        return entity;
+    }
+
+    /**
+     * @return the length prefixed bytes, or null when the length cannot be right for a log of this size
+     */
+    private static byte[] readChunk(final DataInputStream in, final long logSize) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > logSize) {
+            return null;
+        }
+        final byte[] chunk = new byte[length];
+        in.readFully(chunk);
+        return chunk;
+    }
+
+    /**
+     * makes new and deleted generations durable, not every platform allows opening a directory so a failure here
+     * is only logged
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            logger.fine("could not sync directory " + folder + " " + ex.getMessage());
+        }
+    }
+}
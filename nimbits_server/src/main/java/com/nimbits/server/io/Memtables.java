@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import com.google.common.collect.Range;
+import com.nimbits.client.model.entity.Entity;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.valueblobstore.ValueBlobStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The memtables of every point. A flush seals the memtables it takes, which stay readable on the flushing list
+ * until their segments are in the {@link SegmentIndex}. Readers look up memtables and index entries under the read
+ * lock and a finished flush swaps one for the other under the write lock, so a read never sees a value twice or
+ * misses one in between.
+ */
+class Memtables {
+
+    private final ConcurrentMap<String, Memtable> live = new ConcurrentHashMap<>();
+
+    private final List<Memtable> flushing = new ArrayList<>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * adds the values to the entity's live memtable, appending them to the log first when one is given
+     */
+    void add(final Entity entity, final Collection<Value> values, final MemtableLog log) throws IOException {
+        while (true) {
+            Memtable memtable = live.get(entity.getKey());
+            if (memtable == null) {
+                final Memtable created = new Memtable(entity);
+                memtable = live.putIfAbsent(entity.getKey(), created);
+                if (memtable == null) {
+                    memtable = created;
+                }
+            }
+            final int added = memtable.add(entity, values, log);
+            if (added >= 0) {
+                size.addAndGet(added);
+                return;
+            }
+            // sealed by a flush after the lookup, the flush has already replaced it
+            live.remove(entity.getKey(), memtable);
+        }
+    }
+
+    /**
+     * values held by all memtables, live and flushing
+     */
+    long size() {
+        return size.get();
+    }
+
+    /**
+     * Seals every memtable with at least maxValues values or older than createdBefore and moves them to the
+     * flushing list.
+     *
+     * @return every flushing memtable, including those a failed flush left behind
+     */
+    List<Memtable> seal(final int maxValues, final long createdBefore) {
+        lock.writeLock().lock();
+        try {
+            for (final Map.Entry<String, Memtable> entry : live.entrySet()) {
+                final Memtable memtable = entry.getValue();
+                if (memtable.size() >= maxValues || memtable.getCreated() < createdBefore) {
+                    memtable.seal();
+                    live.remove(entry.getKey(), memtable);
+                    flushing.add(memtable);
+                }
+            }
+            return new ArrayList<>(flushing);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * makes the flushed segments visible and drops their memtables in one step
+     */
+    void flushed(final List<Memtable> memtables, final List<? extends ValueBlobStore> segments, final SegmentIndex index) {
+        lock.writeLock().lock();
+        try {
+            for (final ValueBlobStore segment : segments) {
+                index.add(segment);
+            }
+            flushing.removeAll(memtables);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (final Memtable memtable : memtables) {
+            size.addAndGet(-memtable.size());
+        }
+    }
+
+    /**
+     * @return true if a live or flushing memtable of the entity holds a value at the timestamp
+     */
+    boolean contains(final String entityKey, final long timestamp) {
+        lock.readLock().lock();
+        try {
+            for (final Memtable memtable : flushing) {
+                if (memtable.getEntityKey().equals(entityKey) && memtable.contains(timestamp)) {
+                    return true;
+                }
+            }
+            final Memtable memtable = live.get(entityKey);
+            return memtable != null && memtable.contains(timestamp);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * held while a reader looks up memtables and index entries together
+     */
+    Lock readLock() {
+        return lock.readLock();
+    }
+
+    /**
+     * @return the values of the entity's memtables inside the range, one snapshot per memtable. Call with the read
+     * lock held.
+     */
+    List<Memtable.Snapshot> snapshots(final String entityKey, final Range<Date> range) {
+        final List<Memtable.Snapshot> snapshots = new ArrayList<>(1);
+        for (final Memtable memtable : flushing) {
+            if (memtable.getEntityKey().equals(entityKey)) {
+                add(snapshots, memtable.snapshot(range));
+            }
+        }
+        final Memtable memtable = live.get(entityKey);
+        if (memtable != null) {
+            add(snapshots, memtable.snapshot(range));
+        }
+        return snapshots;
+    }
+
+    private static void add(final List<Memtable.Snapshot> snapshots, final Memtable.Snapshot snapshot) {
+        if (snapshot != null) {
+            snapshots.add(snapshot);
+        }
+    }
+}
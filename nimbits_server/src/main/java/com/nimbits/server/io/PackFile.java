@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Append only file holding many sealed segments of one entity, so a point with years of history costs one inode
+ * instead of one per day. Every append writes its segments after the end of the file followed by a new footer
+ * that indexes every segment in the pack, and forces the file before returning. A crash mid append leaves a torn
+ * tail, the next append writes past it and starts a fresh footer.
+ *
+ * <pre>
+ * segment bytes ...
+ * footer:  int count, per segment: long offset, int length, long day
+ * trailer: long footerOffset, int magic
+ * </pre>
+ *
+ * Segments are addressed by offset and length through their blob key, see {@link StoreLayout#packKey}, so reads
+ * never need the footer. It is there to list and verify a pack's contents.
+ */
+public final class PackFile {
+
+    private static final int MAGIC = 0x4E42504B; // NBPK
+
+    private static final int ENTRY_SIZE = 20;
+
+    private static final int TRAILER_SIZE = 12;
+
+    private PackFile() {
+    }
+
+    public static final class Entry {
+
+        private final long offset;
+        private final int length;
+        private final long day;
+
+        public Entry(final long offset, final int length, final long day) {
+            this.offset = offset;
+            this.length = length;
+            this.day = day;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public long getDay() {
+            return day;
+        }
+    }
+
+    /**
+     * Appends segments and a new footer and forces the pack to disk. Appends to one pack must not run concurrently.
+     *
+     * @param days the day each segment holds, parallel to segments
+     * @return the entries written, in the order of segments
+     */
+    public static List<Entry> append(final String path, final List<byte[]> segments, final List<Long> days) throws IOException {
+        final Path file = Paths.get(path);
+        Files.createDirectories(file.getParent());
+        final List<Entry> entries = new ArrayList<>();
+        try {
+            entries.addAll(readIndex(path));
+        } catch (IOException torn) {
+            // a torn append, the blob keys still address every earlier segment so the new footer starts over
+        }
+        final List<Entry> appended = new ArrayList<>(segments.size());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long position = channel.size();
+            for (int i = 0; i < segments.size(); i++) {
+                final byte[] segment = segments.get(i);
+                writeFully(channel, ByteBuffer.wrap(segment), position);
+                final Entry entry = new Entry(position, segment.length, days.get(i));
+                appended.add(entry);
+                entries.add(entry);
+                position += segment.length;
+            }
+            final ByteBuffer footer = ByteBuffer.allocate(4 + entries.size() * ENTRY_SIZE + TRAILER_SIZE);
+            footer.putInt(entries.size());
+            for (final Entry entry : entries) {
+                footer.putLong(entry.offset);
+                footer.putInt(entry.length);
+                footer.putLong(entry.day);
+            }
+            footer.putLong(position);
+            footer.putInt(MAGIC);
+            footer.flip();
+            writeFully(channel, footer, position);
+            channel.force(true);
+        }
+        return appended;
+    }
+
+    /**
+     * @return every segment in the pack from its last footer, empty when the pack does not exist yet
+     */
+    public static List<Entry> readIndex(final String path) throws IOException {
+        final Path file = Paths.get(path);
+        if (!Files.exists(file)) {
+            return Collections.emptyList();
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < TRAILER_SIZE) {
+                throw new IOException("pack file " + path + " has no footer");
+            }
+            final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            readFully(channel, trailer, size - TRAILER_SIZE);
+            final long footerOffset = trailer.getLong(0);
+            if (trailer.getInt(8) != MAGIC || footerOffset < 0 || footerOffset > size - TRAILER_SIZE - 4) {
+                throw new IOException("pack file " + path + " has a corrupt footer");
+            }
+            final ByteBuffer footer = ByteBuffer.allocate((int) (size - TRAILER_SIZE - footerOffset));
+            readFully(channel, footer, footerOffset);
+            final int count = footer.getInt(0);
+            final List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0, at = 4; i < count; i++, at += ENTRY_SIZE) {
+                entries.add(new Entry(footer.getLong(at), footer.getInt(at + 8), footer.getLong(at + 12)));
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * maps one segment of a pack read only
+     */
+    public static ByteBuffer map(final String path, final long offset, final long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long at = position;
+        while (buffer.hasRemaining()) {
+            at += channel.write(buffer, at);
+        }
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long at = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, at);
+            if (read < 0) {
+                throw new IOException("unexpected end of pack file");
+            }
+            at += read;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Range;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.server.io.segment.SegmentFormat;
+import com.nimbits.server.io.segment.SegmentReader;
+import com.nimbits.server.io.segment.SegmentWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared cache of decoded segments, newest value first, keyed by blob key and storage version and bounded by an
+ * estimate of the bytes held rather than the number of segments.
+ *
+ * In off heap mode a segment is held re-encoded in the binary segment format inside a direct ByteBuffer, so a
+ * large working set costs the GC nothing and a hit pays for a block decode instead of file I/O and, for legacy
+ * json segments, a parse.
+ */
+public class SegmentCache {
+
+    /**
+     * rough heap cost of one decoded value with its Date, location and data objects
+     */
+    private static final int VALUE_BYTES = 160;
+
+    private final boolean offHeap;
+
+    private final Cache<Key, Object> cache;
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    public SegmentCache(final long maxBytes, final boolean offHeap) {
+        this.offHeap = offHeap;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Key, Object>() {
+                    @Override
+                    public int weigh(final Key key, final Object value) {
+                        return weight(value);
+                    }
+                })
+                .removalListener(new RemovalListener<Key, Object>() {
+                    @Override
+                    public void onRemoval(final RemovalNotification<Key, Object> notification) {
+                        bytes.addAndGet(-weight(notification.getValue()));
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * @return the cached segment newest value first, or null if it is not cached
+     */
+    public List<Value> get(final String blobKey, final int version) {
+        final Object cached = cache.getIfPresent(new Key(blobKey, version));
+        if (cached instanceof ByteBuffer) {
+            try {
+                final List<Value> values = SegmentReader.read(((ByteBuffer) cached).duplicate());
+                Collections.reverse(values);
+                return values;
+            } catch (IOException e) {
+                cache.invalidate(new Key(blobKey, version));
+                return null;
+            }
+        }
+        @SuppressWarnings("unchecked") // put only stores a ByteBuffer or a List<Value>
+        final List<Value> values = (List<Value>) cached;
+        return values;
+    }
+
+    /**
+     * @param newestFirst the whole segment, newest value first
+     */
+    public void put(final String blobKey, final int version, final List<Value> newestFirst) {
+        final Object entry;
+        if (offHeap) {
+            final byte[] encoded;
+            try {
+                encoded = SegmentWriter.write(newestFirst);
+            } catch (IOException e) {
+                return;
+            }
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.length);
+            buffer.put(encoded);
+            buffer.flip();
+            entry = buffer.asReadOnlyBuffer();
+        } else {
+            entry = Collections.unmodifiableList(newestFirst);
+        }
+        bytes.addAndGet(weight(entry));
+        cache.put(new Key(blobKey, version), entry);
+    }
+
+    /**
+     * drops every version of the segment
+     */
+    public void invalidate(final String blobKey) {
+        for (int version = 0; version <= SegmentFormat.VERSION; version++) {
+            cache.invalidate(new Key(blobKey, version));
+        }
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long getEntries() {
+        return cache.size();
+    }
+
+    /**
+     * estimated bytes held, heap or direct depending on the mode
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    /**
+     * @param newestFirst values sorted newest first
+     * @return the contiguous run of values inside the range, found with two binary searches
+     */
+    static List<Value> slice(final List<Value> newestFirst, final Range<Date> range) {
+        if (range == null) {
+            return newestFirst;
+        }
+        int low = 0;
+        int high = newestFirst.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (isAbove(newestFirst.get(mid).getTimestamp(), range)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        final int from = low;
+        high = newestFirst.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (isBelow(newestFirst.get(mid).getTimestamp(), range)) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return newestFirst.subList(from, low);
+    }
+
+    private static boolean isAbove(final Date timestamp, final Range<Date> range) {
+        return range.hasUpperBound() && timestamp.compareTo(range.upperEndpoint()) >= 0 && !range.contains(timestamp);
+    }
+
+    private static boolean isBelow(final Date timestamp, final Range<Date> range) {
+        return range.hasLowerBound() && timestamp.compareTo(range.lowerEndpoint()) <= 0 && !range.contains(timestamp);
+    }
+
+    private static int weight(final Object entry) {
+        if (entry instanceof ByteBuffer) {
+            return ((ByteBuffer) entry).capacity();
+        }
+        final List<?> values = (List<?>) entry;
+        return (int) Math.min(Integer.MAX_VALUE, (long) values.size() * VALUE_BYTES);
+    }
+
+    private static final class Key {
+
+        private final String blobKey;
+        private final int version;
+
+        private Key(final String blobKey, final int version) {
+            this.blobKey = blobKey;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return version == key.version && blobKey.equals(key.blobKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * blobKey.hashCode() + version;
+        }
+    }
+}
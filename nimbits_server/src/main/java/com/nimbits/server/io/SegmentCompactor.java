@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.nimbits.client.model.valueblobstore.ValueBlobStore;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background size tiered compaction of value segments. Points that record values in many small batches end up
+ * with lots of tiny segments per day, and every read of that day opens all of them. A periodic scan of the
+ * {@link SegmentIndex} queues each entity day that has more than maxSegmentsPerDay segments, or more than one
+ * segment under smallSegmentBytes, and a bounded pool of workers merges the smallest segments of the day
+ * through {@link BlobStoreImpl#compact}. Segments already at maxMergedBytes are left alone.
+ *
+ * The largest segment of a day is its base, the rest are deltas. A day with late values written by
+ * {@link BlobStoreImpl#backfill} is merged into one segment once its deltas add up to foldRatio of its base or
+ * there are maxDeltasPerDay of them, as long as the whole day fits in maxMergedBytes. Days that only grew by
+ * memtable flushes are never folded, today would otherwise be rewritten every few flushes, and get the size
+ * tiered merge instead. Next to a base at maxMergedBytes maxDeltasPerDay deltas are merged with each other, so a
+ * large day is not rewritten for every few small writes. Until then reads merge the deltas in.
+ *
+ * Workers share a rate limiter on the bytes they read and write so compaction does not starve foreground I/O.
+ */
+public class SegmentCompactor {
+
+    private static final long KB = 1024;
+
+    private final Logger logger = Logger.getLogger(SegmentCompactor.class.getName());
+
+    private BlobStoreImpl blobStore;
+
+    private int maxSegmentsPerDay = 8;
+
+    private long smallSegmentBytes = 64 * KB;
+
+    private long maxMergedBytes = 64 * KB * KB;
+
+    private double foldRatio = 0.1;
+
+    private int maxDeltasPerDay = 4;
+
+    private int threads = 2;
+
+    private long kilobytesPerSecond = 8 * KB;
+
+    private long scanIntervalSeconds = 300;
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService workers;
+
+    private RateLimiter rateLimiter;
+
+    private final Set<String> queued = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final AtomicLong scans = new AtomicLong();
+
+    private final AtomicLong daysCompacted = new AtomicLong();
+
+    private final AtomicLong segmentsMerged = new AtomicLong();
+
+    private final AtomicLong deltasFolded = new AtomicLong();
+
+    private final AtomicLong bytesRewritten = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile long lastScan;
+
+    public void setBlobStore(final BlobStoreImpl blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    public void setMaxSegmentsPerDay(final int maxSegmentsPerDay) {
+        this.maxSegmentsPerDay = maxSegmentsPerDay;
+    }
+
+    public void setSmallSegmentBytes(final long smallSegmentBytes) {
+        this.smallSegmentBytes = smallSegmentBytes;
+    }
+
+    public void setMaxMergedBytes(final long maxMergedBytes) {
+        this.maxMergedBytes = maxMergedBytes;
+    }
+
+    public void setFoldRatio(final double foldRatio) {
+        this.foldRatio = foldRatio;
+    }
+
+    public void setMaxDeltasPerDay(final int maxDeltasPerDay) {
+        this.maxDeltasPerDay = maxDeltasPerDay;
+    }
+
+    public void setThreads(final int threads) {
+        this.threads = threads;
+    }
+
+    public void setKilobytesPerSecond(final long kilobytesPerSecond) {
+        this.kilobytesPerSecond = kilobytesPerSecond;
+    }
+
+    public void setScanIntervalSeconds(final long scanIntervalSeconds) {
+        this.scanIntervalSeconds = scanIntervalSeconds;
+    }
+
+    @PostConstruct
+    public void start() {
+        rateLimiter = RateLimiter.create(kilobytesPerSecond);
+        workers = Executors.newFixedThreadPool(threads, daemon("segment-compactor"));
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemon("segment-compactor-scan"));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scan();
+                } catch (RuntimeException ex) {
+                    logger.log(Level.WARNING, "segment compaction scan failed", ex);
+                }
+            }
+        }, scanIntervalSeconds, scanIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * queues every entity day that needs compacting and is not already queued
+     *
+     * @return the number of days queued by this scan
+     */
+    public int scan() {
+        final SegmentIndex index = blobStore.getSegmentIndex();
+        int added = 0;
+        for (final String entity : index.getEntities()) {
+            final Map<Long, List<ValueBlobStore>> days = new HashMap<>();
+            for (final ValueBlobStore store : index.getSegments(entity)) {
+                final long day = store.getTimestamp().getTime();
+                List<ValueBlobStore> list = days.get(day);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    days.put(day, list);
+                }
+                list.add(store);
+            }
+            for (final Map.Entry<Long, List<ValueBlobStore>> day : days.entrySet()) {
+                final List<ValueBlobStore> plan = plan(day.getValue());
+                final String key = entity + "@" + day.getKey();
+                if (!plan.isEmpty() && queued.add(key)) {
+                    workers.execute(new Job(key, entity, new Date(day.getKey()), plan, plan.size() == day.getValue().size()));
+                    added++;
+                }
+            }
+        }
+        scans.incrementAndGet();
+        lastScan = System.currentTimeMillis();
+        if (added > 0) {
+            logger.info("segment compaction queued " + added + " days, backlog " + queued.size()
+                    + ", compacted " + daysCompacted.get() + " days so far");
+        }
+        return added;
+    }
+
+    /**
+     * Picks the segments of one day to merge, the whole day when it has backfilled deltas due for folding and fits
+     * in maxMergedBytes, the deltas alone when there are many of them next to a base at maxMergedBytes, and
+     * otherwise the smallest segments of similar size up to maxMergedBytes.
+     *
+     * @return the segments to merge, empty if the day does not need compacting
+     */
+    List<ValueBlobStore> plan(final List<ValueBlobStore> day) {
+        if (day.size() > 1) {
+            ValueBlobStore base = day.get(0);
+            long total = 0;
+            for (final ValueBlobStore store : day) {
+                total += store.getLength();
+                if (store.getLength() > base.getLength()) {
+                    base = store;
+                }
+            }
+            boolean backfilled = false;
+            for (final ValueBlobStore store : day) {
+                backfilled |= store != base && StoreLayout.isDelta(store.getBlobKey());
+            }
+            final long deltaBytes = total - base.getLength();
+            if (backfilled && total <= maxMergedBytes
+                    && (deltaBytes >= base.getLength() * foldRatio || day.size() - 1 >= maxDeltasPerDay)) {
+                return new ArrayList<>(day);
+            }
+            if (day.size() - 1 >= maxDeltasPerDay && base.getLength() >= maxMergedBytes && day.size() > 2) {
+                final List<ValueBlobStore> deltas = new ArrayList<>(day.size() - 1);
+                for (final ValueBlobStore store : day) {
+                    if (store != base) {
+                        deltas.add(store);
+                    }
+                }
+                return deltas;
+            }
+        }
+        final List<ValueBlobStore> candidates = new ArrayList<>(day.size());
+        int small = 0;
+        for (final ValueBlobStore store : day) {
+            if (store.getLength() < maxMergedBytes) {
+                candidates.add(store);
+                if (store.getLength() < smallSegmentBytes) {
+                    small++;
+                }
+            }
+        }
+        if (day.size() <= maxSegmentsPerDay && small < 2) {
+            return Collections.emptyList();
+        }
+        Collections.sort(candidates, new Comparator<ValueBlobStore>() {
+            @Override
+            public int compare(final ValueBlobStore a, final ValueBlobStore b) {
+                return a.getLength() < b.getLength() ? -1 : a.getLength() > b.getLength() ? 1 : 0;
+            }
+        });
+        final List<ValueBlobStore> plan = new ArrayList<>(candidates.size());
+        long total = 0;
+        for (final ValueBlobStore store : candidates) {
+            // a segment more than twice what is merged so far belongs to a larger tier, merging it now would
+            // rewrite it again for every few small flushes
+            if (total + store.getLength() > maxMergedBytes || plan.size() >= 2 && store.getLength() > 2 * total) {
+                break;
+            }
+            total += store.getLength();
+            plan.add(store);
+        }
+        return plan.size() < 2 ? Collections.<ValueBlobStore>emptyList() : plan;
+    }
+
+    /**
+     * entity days queued or being compacted
+     */
+    public int getBacklog() {
+        return queued.size();
+    }
+
+    public long getScans() {
+        return scans.get();
+    }
+
+    public long getDaysCompacted() {
+        return daysCompacted.get();
+    }
+
+    public long getSegmentsMerged() {
+        return segmentsMerged.get();
+    }
+
+    /**
+     * delta segments merged into the base of their day
+     */
+    public long getDeltasFolded() {
+        return deltasFolded.get();
+    }
+
+    public long getBytesRewritten() {
+        return bytesRewritten.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public Date getLastScan() {
+        return lastScan == 0 ? null : new Date(lastScan);
+    }
+
+    private void throttle(final long bytes) {
+        rateLimiter.acquire((int) Math.min(Integer.MAX_VALUE, Math.max(1, bytes / KB)));
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            private final AtomicLong count = new AtomicLong();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        };
+    }
+
+    private final class Job implements Runnable {
+
+        private final String key;
+        private final String entity;
+        private final Date day;
+        private final List<ValueBlobStore> plan;
+        private final boolean folds;
+
+        private Job(final String key, final String entity, final Date day, final List<ValueBlobStore> plan, final boolean folds) {
+            this.key = key;
+            this.entity = entity;
+            this.day = day;
+            this.plan = plan;
+            this.folds = folds;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long read = 0;
+                for (final ValueBlobStore store : plan) {
+                    read += store.getLength();
+                }
+                throttle(read);
+                final long written = blobStore.compact(entity, day, plan);
+                if (written > 0) {
+                    throttle(written);
+                    daysCompacted.incrementAndGet();
+                    segmentsMerged.addAndGet(plan.size());
+                    if (folds) {
+                        deltasFolded.addAndGet(plan.size() - 1);
+                    }
+                    bytesRewritten.addAndGet(read + written);
+                }
+            } catch (Exception ex) {
+                failures.incrementAndGet();
+                logger.log(Level.WARNING, "could not compact " + key, ex);
+            } finally {
+                queued.remove(key);
+            }
+        }
+    }
+}
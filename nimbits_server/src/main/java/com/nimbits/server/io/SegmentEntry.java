@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import com.nimbits.client.model.valueblobstore.ValueBlobStore;
+
+import java.util.Date;
+
+/**
+ * Immutable copy of a ValueBlobStoreEntity row held by the {@link SegmentIndex}, detached from any PersistenceManager.
+ */
+public class SegmentEntry implements ValueBlobStore {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long id;
+    private final String entity;
+    private final long timestamp;
+    private final long maxTimestamp;
+    private final long minTimestamp;
+    private final String blobKey;
+    private final long length;
+    private final int version;
+    private final String entityUUID;
+
+    public SegmentEntry(final ValueBlobStore store) {
+        this.id = store.getId();
+        this.entity = store.getEntity();
+        this.timestamp = store.getTimestamp() == null ? store.getMinTimestamp().getTime() : store.getTimestamp().getTime();
+        this.maxTimestamp = store.getMaxTimestamp().getTime();
+        this.minTimestamp = store.getMinTimestamp().getTime();
+        this.blobKey = store.getBlobKey();
+        this.length = store.getLength();
+        this.version = store.getVersion() == null ? 0 : store.getVersion();
+        this.entityUUID = store.getEntityUUID() == null ? "" : store.getEntityUUID();
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String getEntity() {
+        return entity;
+    }
+
+    @Override
+    public Date getTimestamp() {
+        return new Date(timestamp);
+    }
+
+    @Override
+    public Date getMaxTimestamp() {
+        return new Date(maxTimestamp);
+    }
+
+    @Override
+    public Date getMinTimestamp() {
+        return new Date(minTimestamp);
+    }
+
+    long getMin() {
+        return minTimestamp;
+    }
+
+    long getMax() {
+        return maxTimestamp;
+    }
+
+    @Override
+    public String getBlobKey() {
+        return blobKey;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public void validate() {
+    }
+
+    @Override
+    public Integer getVersion() {
+        return version;
+    }
+
+    @Override
+    public String getEntityUUID() {
+        return entityUUID;
+    }
+
+    @Override
+    public int compareTo(final ValueBlobStore that) {
+        return this.getTimestamp().compareTo(that.getTimestamp());
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import com.nimbits.client.model.valueblobstore.ValueBlobStore;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In memory index of every value segment, keyed by entity key. Each entity holds its segments in an array
+ * sorted by min timestamp together with a running max of the max timestamps, so the segments overlapping a
+ * range are found with two binary searches instead of a database query.
+ *
+ * Readers work on an immutable snapshot per entity, writers copy the entity's arrays under a lock and merge the
+ * changed segments into place instead of sorting again. The ValueBlobStoreEntity table stays the source of
+ * truth, BlobStoreImpl mirrors every insert and delete here.
+ */
+public class SegmentIndex {
+
+    private static final Comparator<SegmentEntry> BY_MIN_TIMESTAMP = new Comparator<SegmentEntry>() {
+        @Override
+        public int compare(final SegmentEntry a, final SegmentEntry b) {
+            return a.getMin() < b.getMin() ? -1 : a.getMin() > b.getMin() ? 1 : 0;
+        }
+    };
+
+    private final ConcurrentMap<String, Segments> entities = new ConcurrentHashMap<>();
+
+    private volatile boolean loaded;
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * replaces the whole index with the given rows
+     */
+    public synchronized void load(final Iterable<? extends ValueBlobStore> stores) {
+        final Map<String, List<SegmentEntry>> grouped = new HashMap<>();
+        for (final ValueBlobStore store : stores) {
+            List<SegmentEntry> list = grouped.get(store.getEntity());
+            if (list == null) {
+                list = new ArrayList<>();
+                grouped.put(store.getEntity(), list);
+            }
+            list.add(new SegmentEntry(store));
+        }
+        entities.clear();
+        for (final Map.Entry<String, List<SegmentEntry>> entry : grouped.entrySet()) {
+            entities.put(entry.getKey(), new Segments(entry.getValue()));
+        }
+        loaded = true;
+    }
+
+    /**
+     * adds or replaces the segment with the store's blob key
+     */
+    public void add(final ValueBlobStore store) {
+        replace(Collections.<ValueBlobStore>emptyList(), Collections.singletonList(store));
+    }
+
+    public void remove(final Collection<? extends ValueBlobStore> stores) {
+        replace(stores, Collections.<ValueBlobStore>emptyList());
+    }
+
+    /**
+     * Removes the old segments and adds the new ones in one step, a reader sees either all of the old segments
+     * or all of the new ones of an entity. A new segment replaces any segment with the same blob key.
+     */
+    public synchronized void replace(final Collection<? extends ValueBlobStore> removed,
+                                     final Collection<? extends ValueBlobStore> added) {
+        final Map<String, Set<String>> keys = new HashMap<>();
+        final Map<String, List<SegmentEntry>> entries = new HashMap<>();
+        for (final ValueBlobStore store : removed) {
+            keysOf(keys, store.getEntity()).add(store.getBlobKey());
+        }
+        for (final ValueBlobStore store : added) {
+            keysOf(keys, store.getEntity()).add(store.getBlobKey());
+            List<SegmentEntry> list = entries.get(store.getEntity());
+            if (list == null) {
+                list = new ArrayList<>();
+                entries.put(store.getEntity(), list);
+            }
+            list.add(new SegmentEntry(store));
+        }
+        for (final Map.Entry<String, Set<String>> entry : keys.entrySet()) {
+            final Segments current = entities.get(entry.getKey());
+            final List<SegmentEntry> insert = entries.get(entry.getKey());
+            final Segments updated = (current == null ? Segments.EMPTY : current)
+                    .with(entry.getValue(), insert == null ? Collections.<SegmentEntry>emptyList() : insert);
+            if (updated.byMin.length == 0) {
+                entities.remove(entry.getKey());
+            } else {
+                entities.put(entry.getKey(), updated);
+            }
+        }
+    }
+
+    private static Set<String> keysOf(final Map<String, Set<String>> keys, final String entity) {
+        Set<String> set = keys.get(entity);
+        if (set == null) {
+            set = new HashSet<>();
+            keys.put(entity, set);
+        }
+        return set;
+    }
+
+    /**
+     * @return segments with minTimestamp <= end and maxTimestamp >= start, newest first
+     */
+    public List<ValueBlobStore> findOverlapping(final String entity, final long start, final long end) {
+        final Segments segments = entities.get(entity);
+        if (segments == null) {
+            return Collections.emptyList();
+        }
+        final int high = segments.upperBound(end);
+        final int low = segments.firstEndingAtOrAfter(start);
+        final List<ValueBlobStore> result = new ArrayList<>(Math.max(high - low, 0));
+        for (int i = high - 1; i >= low; i--) {
+            if (segments.byMin[i].getMax() >= start) {
+                result.add(segments.byMin[i]);
+            }
+        }
+        return result;
+    }
+
+    public Set<String> getEntities() {
+        return new HashSet<>(entities.keySet());
+    }
+
+    /**
+     * @return every segment of the entity ordered by min timestamp
+     */
+    public List<ValueBlobStore> getSegments(final String entity) {
+        final Segments segments = entities.get(entity);
+        return segments == null ? Collections.<ValueBlobStore>emptyList() : Collections.<ValueBlobStore>unmodifiableList(Arrays.asList(segments.byMin));
+    }
+
+    public int size(final String entity) {
+        final Segments segments = entities.get(entity);
+        return segments == null ? 0 : segments.byMin.length;
+    }
+
+    private static final class Segments {
+
+        private final SegmentEntry[] byMin;
+
+        private final long[] minTimestamps;
+
+        /**
+         * runningMax[i] is the largest max timestamp in byMin[0..i], it is non-decreasing so it can be searched
+         */
+        private final long[] runningMax;
+
+        private static final Segments EMPTY = new Segments(new SegmentEntry[0]);
+
+        private Segments(final List<SegmentEntry> entries) {
+            this(sorted(entries));
+        }
+
+        /**
+         * @param byMin entries already in min timestamp order
+         */
+        private Segments(final SegmentEntry[] byMin) {
+            this.byMin = byMin;
+            minTimestamps = new long[byMin.length];
+            runningMax = new long[byMin.length];
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < byMin.length; i++) {
+                minTimestamps[i] = byMin[i].getMin();
+                max = Math.max(max, byMin[i].getMax());
+                runningMax[i] = max;
+            }
+        }
+
+        private static SegmentEntry[] sorted(final List<SegmentEntry> entries) {
+            final SegmentEntry[] array = entries.toArray(new SegmentEntry[entries.size()]);
+            Arrays.sort(array, BY_MIN_TIMESTAMP);
+            return array;
+        }
+
+        /**
+         * a copy without the segments with the given blob keys and with the added ones inserted in place, one pass
+         * over the existing segments instead of a sort
+         */
+        private Segments with(final Set<String> removedKeys, final List<SegmentEntry> added) {
+            final SegmentEntry[] insert = sorted(added);
+            final SegmentEntry[] merged = new SegmentEntry[byMin.length + insert.length];
+            int size = 0;
+            int next = 0;
+            for (final SegmentEntry existing : byMin) {
+                if (removedKeys.contains(existing.getBlobKey())) {
+                    continue;
+                }
+                while (next < insert.length && insert[next].getMin() < existing.getMin()) {
+                    merged[size++] = insert[next++];
+                }
+                merged[size++] = existing;
+            }
+            while (next < insert.length) {
+                merged[size++] = insert[next++];
+            }
+            return new Segments(size == merged.length ? merged : Arrays.copyOf(merged, size));
+        }
+
+        /**
+         * @return the index of the first segment whose min timestamp is after timestamp
+         */
+        private int upperBound(final long timestamp) {
+            int low = 0;
+            int high = minTimestamps.length;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (minTimestamps[mid] <= timestamp) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return the index of the first segment that has itself or a predecessor ending at or after timestamp
+         */
+        private int firstEndingAtOrAfter(final long timestamp) {
+            int low = 0;
+            int high = runningMax.length;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (runningMax[mid] < timestamp) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
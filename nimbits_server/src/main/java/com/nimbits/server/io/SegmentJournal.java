@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Write ahead log for segment files. A segment is appended to the log and the log is forced before the segment
+ * is published under its real name with a temp file and an atomic rename, so once write returns the segment
+ * survives a crash and callers may retire the segments it replaces.
+ *
+ * Concurrent writers share fsyncs: the thread that forces the log covers every record appended so far, writers
+ * that appended while it ran find their record already synced (group commit). Published segment files are only forced at a
+ * checkpoint, after which the log is truncated. On open the log is replayed so a segment whose file never made
+ * it to disk, or made it with other contents, is rewritten.
+ *
+ * A segment that is deleted before the next checkpoint is first retired with {@link #retire}, which logs a
+ * tombstone, so replay does not bring back files that consolidation, compaction or retention already dropped.
+ */
+public class SegmentJournal implements Closeable {
+
+    static final String LOG_NAME = "segments.wal";
+
+    static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int RECORD_MAGIC = 0x4E42574C; // NBWL
+
+    private static final int TOMBSTONE_MAGIC = 0x4E425452; // NBTR
+
+    private static final long DEFAULT_CHECKPOINT_BYTES = 64L * 1024 * 1024;
+
+    private final Logger logger = Logger.getLogger(SegmentJournal.class.getName());
+
+    private final Path folder;
+
+    private final FileChannel log;
+
+    private final long checkpointBytes;
+
+    /**
+     * writers hold the read lock from append to publish, a checkpoint takes the write lock before truncating
+     */
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+    private final Object appendLock = new Object();
+
+    private final Object syncLock = new Object();
+
+    private final List<Path> unsynced = new ArrayList<>();
+
+    /**
+     * names written since the last checkpoint, only those need a tombstone when they are deleted
+     */
+    private final Set<String> logged = new HashSet<>();
+
+    private volatile long appended;
+
+    private long synced;
+
+    private volatile long syncCount;
+
+    public SegmentJournal(final String folder) throws IOException {
+        this(folder, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    public SegmentJournal(final String folder, final long checkpointBytes) throws IOException {
+        this.folder = Paths.get(folder);
+        this.checkpointBytes = checkpointBytes;
+        Files.createDirectories(this.folder);
+        final int replayed = replay();
+        if (replayed > 0) {
+            logger.info("restored " + replayed + " segments from " + LOG_NAME);
+        }
+        log = FileChannel.open(this.folder.resolve(LOG_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        syncDirectory(this.folder);
+    }
+
+    public String getFolder() {
+        return folder.toString();
+    }
+
+    /**
+     * number of times the log was forced, lower than the number of writes when commits were grouped
+     */
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * Durably writes a segment file. When this returns the segment is in the forced log and visible under its
+     * name in the folder.
+     */
+    public void write(final String fn, final byte[] bytes) throws IOException {
+        writeAll(Collections.singletonMap(fn, bytes));
+    }
+
+    /**
+     * Durably writes several segment files with a single force of the log, for flushes that write many small
+     * segments at once.
+     */
+    public void writeAll(final Map<String, byte[]> segments) throws IOException {
+        checkpointLock.readLock().lock();
+        try {
+            long sequence = 0;
+            for (final Map.Entry<String, byte[]> segment : segments.entrySet()) {
+                sequence = append(RECORD_MAGIC, segment.getKey(), segment.getValue());
+            }
+            awaitSync(sequence);
+            final List<Path> published = new ArrayList<>(segments.size());
+            for (final Map.Entry<String, byte[]> segment : segments.entrySet()) {
+                published.add(publish(segment.getKey(), segment.getValue()));
+            }
+            synchronized (unsynced) {
+                unsynced.addAll(published);
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        if (log.size() >= checkpointBytes) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Records that a segment is about to be deleted. Call before deleting the file, when this returns the
+     * tombstone is forced and a replay will not restore the segment. Segments not written since the last
+     * checkpoint are not in the log and cost nothing.
+     */
+    public void retire(final String fn) throws IOException {
+        checkpointLock.readLock().lock();
+        try {
+            final boolean inLog;
+            synchronized (appendLock) {
+                inLog = logged.remove(fn);
+            }
+            if (inLog) {
+                awaitSync(append(TOMBSTONE_MAGIC, fn, null));
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * forces every segment published since the last checkpoint and empties the log
+     */
+    public void checkpoint() throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            final List<Path> files;
+            synchronized (unsynced) {
+                files = new ArrayList<>(unsynced);
+                unsynced.clear();
+            }
+            final Set<Path> directories = new HashSet<>();
+            for (final Path file : files) {
+                force(file);
+                // sharded segments may have created their directories, those entries need syncing too
+                for (Path directory = file.getParent(); directory != null && directory.startsWith(folder); directory = directory.getParent()) {
+                    directories.add(directory);
+                }
+            }
+            directories.add(folder);
+            for (final Path directory : directories) {
+                syncDirectory(directory);
+            }
+            synchronized (appendLock) {
+                logged.clear();
+                log.truncate(0);
+                log.position(0);
+                log.force(true);
+            }
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            log.close();
+        }
+    }
+
+    private long append(final int magic, final String fn, final byte[] bytes) throws IOException {
+        final byte[] name = fn.getBytes(StandardCharsets.UTF_8);
+        final CRC32 crc = new CRC32();
+        crc.update(name);
+        if (bytes != null) {
+            crc.update(bytes);
+        }
+        final ByteBuffer record = ByteBuffer.allocate(4 + 4 + name.length + (bytes == null ? 0 : 4 + bytes.length) + 8);
+        record.putInt(magic);
+        record.putInt(name.length);
+        record.put(name);
+        if (bytes != null) {
+            record.putInt(bytes.length);
+            record.put(bytes);
+        }
+        record.putLong(crc.getValue());
+        record.flip();
+        synchronized (appendLock) {
+            while (record.hasRemaining()) {
+                log.write(record);
+            }
+            if (bytes == null) {
+                logged.remove(fn);
+            } else {
+                logged.add(fn);
+            }
+            return ++appended;
+        }
+    }
+
+    /**
+     * Blocks until the record with the given sequence is forced. Appends do not take syncLock, so while one
+     * thread forces the log others keep appending and the next force covers all of them at once.
+     */
+    private void awaitSync(final long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (synced < sequence) {
+                final long target = appended;
+                log.force(false);
+                syncCount++;
+                synced = target;
+            }
+        }
+    }
+
+    private Path publish(final String fn, final byte[] bytes) throws IOException {
+        final Path target = folder.resolve(fn);
+        final Path temp = folder.resolve(fn + TEMP_SUFFIX);
+        Files.createDirectories(target.getParent());
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return target;
+    }
+
+    /**
+     * a record read back from the log, bytes is null for a tombstone
+     */
+    private interface RecordVisitor {
+        void visit(int index, String fn, byte[] bytes) throws IOException;
+    }
+
+    /**
+     * Rewrites every segment in the log whose file is missing or whose contents differ from the logged bytes,
+     * unless a later tombstone retired it. A torn or corrupt record ends the replay, it was never acknowledged to
+     * a writer.
+     */
+    private int replay() throws IOException {
+        final Path path = folder.resolve(LOG_NAME);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        // the first pass finds the last record of every name, only that one counts
+        final Map<String, Integer> last = new HashMap<>();
+        readLog(path, new RecordVisitor() {
+            @Override
+            public void visit(final int index, final String fn, final byte[] bytes) {
+                last.put(fn, bytes == null ? -1 - index : index);
+            }
+        });
+        final int[] restored = {0};
+        final List<Path> published = new ArrayList<>();
+        readLog(path, new RecordVisitor() {
+            @Override
+            public void visit(final int index, final String fn, final byte[] bytes) throws IOException {
+                if (bytes == null || last.get(fn) != index) {
+                    return;
+                }
+                final Path target = folder.resolve(fn);
+                if (!Files.exists(target) || Files.size(target) != bytes.length || crc(Files.readAllBytes(target)) != crc(bytes)) {
+                    published.add(publish(fn, bytes));
+                    restored[0]++;
+                } else {
+                    published.add(target);
+                }
+            }
+        });
+        for (final Path file : published) {
+            force(file);
+            syncDirectory(file.getParent());
+        }
+        return restored[0];
+    }
+
+    private static void readLog(final Path path, final RecordVisitor visitor) throws IOException {
+        final long size = Files.size(path);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            for (int index = 0; ; index++) {
+                final byte[] name;
+                final byte[] bytes;
+                try {
+                    final int magic = in.readInt();
+                    if (magic != RECORD_MAGIC && magic != TOMBSTONE_MAGIC) {
+                        break;
+                    }
+                    name = readChunk(in, size);
+                    if (name == null) {
+                        break;
+                    }
+                    if (magic == RECORD_MAGIC) {
+                        bytes = readChunk(in, size);
+                        if (bytes == null) {
+                            break;
+                        }
+                    } else {
+                        bytes = null;
+                    }
+                    final CRC32 crc = new CRC32();
+                    crc.update(name);
+                    if (bytes != null) {
+                        crc.update(bytes);
+                    }
+                    if (in.readLong() != crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException ex) {
+                    break;
+                }
+                visitor.visit(index, new String(name, StandardCharsets.UTF_8), bytes);
+            }
+        }
+    }
+
+    private static long crc(final byte[] bytes) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    /**
+     * @return the length prefixed bytes, or null when the length cannot be right for a log of this size
+     */
+    private static byte[] readChunk(final DataInputStream in, final long logSize) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > logSize) {
+            return null;
+        }
+        final byte[] chunk = new byte[length];
+        in.readFully(chunk);
+        return chunk;
+    }
+
+    private static void force(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (NoSuchFileException ignored) {
+            // retired since it was published
+        }
+    }
+
+    /**
+     * makes renames durable, not every platform allows opening a directory so a failure here is only logged
+     */
+    private void syncDirectory(final Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            logger.fine("could not sync directory " + directory + " " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import com.google.common.collect.Range;
+import com.google.gson.stream.JsonWriter;
+import com.nimbits.client.enums.ExportType;
+import com.nimbits.client.model.entity.Entity;
+import com.nimbits.client.model.value.Value;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes the series of one or more points straight from their scans, a value is rendered and passed to the
+ * writer as the scan yields it so memory use does not depend on the length of the range.
+ *
+ * <ul>
+ * <li>csv and plain - a <code>name,timestamp,value,note</code> row per value, point after point</li>
+ * <li>csvSeparateColumns - a row per distinct timestamp with a value column per point, joined by merging the
+ * points' ascending scans, a point without a value at that timestamp leaves its column empty</li>
+ * <li>json - an object with an array of values per point name, a value that is not a finite number is written as
+ * null since json has no literal for it</li>
+ * </ul>
+ *
+ * A point requested more than once is exported once. Points are labelled by name, a point whose name an earlier
+ * point already has is labelled by its key instead so json members and csv columns stay unique.
+ *
+ * The writer is flushed every FLUSH_ROWS rows, so a servlet response goes out in chunks while the scans run.
+ */
+public class SeriesExporter {
+
+    private static final int FLUSH_ROWS = 1000;
+
+    private final ValueScanner scanner;
+
+    public SeriesExporter(final ValueScanner scanner) {
+        this.scanner = scanner;
+    }
+
+    /**
+     * @return true for the export types that can be streamed
+     */
+    public static boolean isSupported(final ExportType type) {
+        return type == ExportType.text_csv || type == ExportType.plain || type == ExportType.csvSeparateColumns
+                || type == ExportType.json;
+    }
+
+    /**
+     * @return the number of values written
+     */
+    public long export(final List<? extends Entity> points, final Range<Date> range, final ExportType type,
+                       final Writer out) throws IOException {
+        final List<Entity> distinct = new ArrayList<>(points.size());
+        final Set<String> keys = new HashSet<>();
+        final List<String> labels = new ArrayList<>(points.size());
+        final Set<String> used = new HashSet<>();
+        for (final Entity point : points) {
+            if (keys.add(point.getKey())) {
+                distinct.add(point);
+                final String name = point.getName().getValue();
+                labels.add(used.add(name) ? name : point.getKey());
+            }
+        }
+        final long written;
+        switch (type) {
+            case csvSeparateColumns:
+                written = columns(distinct, labels, range, out);
+                break;
+            case json:
+                written = json(distinct, labels, range, out);
+                break;
+            case text_csv:
+            case plain:
+                written = rows(distinct, labels, range, out);
+                break;
+            default:
+                throw new IllegalArgumentException("export type " + type + " can not be streamed");
+        }
+        out.flush();
+        return written;
+    }
+
+    private long rows(final List<Entity> points, final List<String> labels, final Range<Date> range,
+                      final Writer out) throws IOException {
+        final ValueFormatter formatter = new ValueFormatter(ExportType.text_csv);
+        final StringBuilder row = new StringBuilder(128);
+        out.write("name," + formatter.header() + "\n");
+        long written = 0;
+        for (int i = 0; i < points.size(); i++) {
+            final Iterator<Value> scan = scanner.scan(points.get(i), range, ScanOrder.ascending, Integer.MAX_VALUE);
+            while (scan.hasNext()) {
+                row.setLength(0);
+                ValueFormatter.appendCsvField(row, labels.get(i));
+                row.append(',');
+                formatter.append(row, scan.next());
+                out.append(row);
+                if (++written % FLUSH_ROWS == 0) {
+                    out.flush();
+                }
+            }
+        }
+        return written;
+    }
+
+    private long columns(final List<Entity> points, final List<String> labels, final Range<Date> range,
+                         final Writer out) throws IOException {
+        final StringBuilder row = new StringBuilder(64 + points.size() * 16);
+        row.append("timestamp");
+        final List<Iterator<Value>> scans = new ArrayList<>(points.size());
+        final Value[] heads = new Value[points.size()];
+        for (int i = 0; i < points.size(); i++) {
+            row.append(',');
+            ValueFormatter.appendCsvField(row, labels.get(i));
+            final Iterator<Value> scan = scanner.scan(points.get(i), range, ScanOrder.ascending, Integer.MAX_VALUE);
+            scans.add(scan);
+            heads[i] = scan.hasNext() ? scan.next() : null;
+        }
+        out.append(row).append('\n');
+
+        long written = 0;
+        long rows = 0;
+        while (true) {
+            long timestamp = Long.MAX_VALUE;
+            for (final Value head : heads) {
+                if (head != null) {
+                    timestamp = Math.min(timestamp, head.getTimestamp().getTime());
+                }
+            }
+            if (timestamp == Long.MAX_VALUE) {
+                break;
+            }
+            row.setLength(0);
+            row.append(timestamp);
+            for (int i = 0; i < heads.length; i++) {
+                row.append(',');
+                if (heads[i] != null && heads[i].getTimestamp().getTime() == timestamp) {
+                    row.append(heads[i].getDoubleValue());
+                    written++;
+                    heads[i] = scans.get(i).hasNext() ? scans.get(i).next() : null;
+                }
+            }
+            out.append(row).append('\n');
+            if (++rows % FLUSH_ROWS == 0) {
+                out.flush();
+            }
+        }
+        return written;
+    }
+
+    private long json(final List<Entity> points, final List<String> labels, final Range<Date> range,
+                      final Writer out) throws IOException {
+        final JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        long written = 0;
+        for (int i = 0; i < points.size(); i++) {
+            json.name(labels.get(i));
+            json.beginArray();
+            final Iterator<Value> scan = scanner.scan(points.get(i), range, ScanOrder.ascending, Integer.MAX_VALUE);
+            while (scan.hasNext()) {
+                final Value value = scan.next();
+                json.beginObject();
+                json.name("t").value(value.getTimestamp().getTime());
+                final double d = value.getDoubleValue();
+                if (Double.isNaN(d) || Double.isInfinite(d)) {
+                    json.name("d").nullValue();
+                } else {
+                    json.name("d").value(d);
+                }
+                final String note = value.getData() == null ? null : value.getData().getContent();
+                if (note != null && !note.isEmpty()) {
+                    json.name("dx").value(note);
+                }
+                json.endObject();
+                if (++written % FLUSH_ROWS == 0) {
+                    json.flush();
+                }
+            }
+            json.endArray();
+        }
+        json.endObject();
+        json.flush();
+        return written;
+    }
+}
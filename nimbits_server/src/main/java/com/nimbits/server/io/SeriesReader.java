@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Pulls the values out of a series body, a point or an array of points as the v2 api serializes them, without
+ * building the point and value models. Values are copied into one reused {@link ValueBatch} and handed on each
+ * time it fills or a point ends, so the heap used does not depend on the size of the body.
+ *
+ * A point's key (or id) has to come before its values, as it does in what the model serializes. Other point
+ * fields are skipped. Values are read by the rules of ValueDeserializer, a missing or 0 timestamp means now.
+ */
+public class SeriesReader {
+
+    /**
+     * takes the batches as they fill, the batch is reused once accept returns
+     */
+    public interface Sink {
+        void accept(ValueBatch batch) throws IOException;
+    }
+
+    private final int batchSize;
+
+    public SeriesReader(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the number of values read
+     */
+    public long read(final Reader body, final Sink sink) throws IOException {
+        final JsonReader json = new JsonReader(body);
+        final ValueBatch batch = new ValueBatch(batchSize);
+        long count = 0;
+        if (json.peek() == JsonToken.BEGIN_ARRAY) {
+            json.beginArray();
+            while (json.hasNext()) {
+                count += point(json, batch, sink);
+            }
+            json.endArray();
+        } else {
+            count += point(json, batch, sink);
+        }
+        return count;
+    }
+
+    private long point(final JsonReader json, final ValueBatch batch, final Sink sink) throws IOException {
+        String key = null;
+        long count = 0;
+        json.beginObject();
+        while (json.hasNext()) {
+            final String name = json.nextName();
+            if (("key".equals(name) || "id".equals(name)) && json.peek() == JsonToken.STRING) {
+                final String found = json.nextString();
+                if (key == null || "key".equals(name)) {
+                    key = found;
+                }
+            } else if ("values".equals(name) && json.peek() == JsonToken.BEGIN_ARRAY) {
+                if (key == null) {
+                    throw new IOException("a point's key must come before its values at " + json.getPath());
+                }
+                batch.reset(key);
+                json.beginArray();
+                while (json.hasNext()) {
+                    value(json, batch);
+                    count++;
+                    if (batch.isFull()) {
+                        sink.accept(batch);
+                        batch.reset(key);
+                    }
+                }
+                json.endArray();
+                if (batch.size() > 0) {
+                    sink.accept(batch);
+                    batch.reset(key);
+                }
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        return count;
+    }
+
+    private static void value(final JsonReader json, final ValueBatch batch) throws IOException {
+        long timestamp = 0;
+        double value = 0;
+        double lat = Double.NaN;
+        double lng = Double.NaN;
+        String note = null;
+        json.beginObject();
+        while (json.hasNext()) {
+            final String name = json.nextName();
+            if (json.peek() == JsonToken.NULL) {
+                json.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "t":
+                    timestamp = json.nextLong();
+                    break;
+                case "d":
+                    value = json.nextDouble();
+                    break;
+                case "lt":
+                    lat = json.nextDouble();
+                    break;
+                case "lg":
+                    lng = json.nextDouble();
+                    break;
+                case "dx":
+                    note = json.nextString();
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+        // as ValueDeserializer does, a value without a timestamp was taken now
+        batch.add(timestamp > 0 ? timestamp : System.currentTimeMillis(), value, lat, lng, note);
+    }
+}
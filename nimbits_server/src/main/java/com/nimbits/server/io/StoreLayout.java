@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Blob keys are paths relative to the store directory. The original layout put every segment straight into that
+ * directory as pointName_uuid. The sharded layout puts each entity's segments in its own directory two hashed
+ * levels down, aa/bb/entityUUID/uuid, so no directory grows past a few thousand entries.
+ *
+ * A key of the form path@offset+length points at a segment inside an append only {@link PackFile}. An entity's
+ * first pack is values.pack, a pack written later to replace one is values.generation.pack so a retired pack's
+ * name is never written again.
+ */
+public final class StoreLayout {
+
+    static final String PACK_NAME = "values.pack";
+
+    /**
+     * starts the file name of a segment written by a backfill, so the compactor can tell late deltas from flushes
+     */
+    static final String DELTA_PREFIX = "delta-";
+
+    private static final char PACK_SEPARATOR = '@';
+
+    private static final char LENGTH_SEPARATOR = '+';
+
+    private StoreLayout() {
+    }
+
+    /**
+     * @param entityUUID the owning entity's uuid, legacy entities without one are placed by their key
+     */
+    public static String entityDirectory(final String entityUUID, final String entityKey) {
+        final String name = entityUUID == null || entityUUID.isEmpty() ? "_" + hash(entityKey) : entityUUID;
+        final String hash = hash(name);
+        return hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/" + name;
+    }
+
+    public static String segmentKey(final String entityUUID, final String entityKey, final String name) {
+        return entityDirectory(entityUUID, entityKey) + "/" + name;
+    }
+
+    public static String packPath(final String entityUUID, final String entityKey) {
+        return packPath(entityUUID, entityKey, 0);
+    }
+
+    public static String packPath(final String entityUUID, final String entityKey, final long generation) {
+        return siblingPack(entityDirectory(entityUUID, entityKey) + "/" + PACK_NAME, generation);
+    }
+
+    /**
+     * the pack of the given generation in the same directory as a pack
+     */
+    public static String siblingPack(final String packFile, final long generation) {
+        final String directory = packFile.substring(0, packFile.lastIndexOf('/') + 1);
+        return directory + (generation == 0 ? PACK_NAME : "values." + generation + ".pack");
+    }
+
+    /**
+     * @return the generation a pack file was written in, 0 for an entity's first pack
+     */
+    public static long packGeneration(final String packFile) {
+        final String name = packFile.substring(packFile.lastIndexOf('/') + 1);
+        if (PACK_NAME.equals(name)) {
+            return 0;
+        }
+        return Long.parseLong(name.substring("values.".length(), name.length() - ".pack".length()));
+    }
+
+    /**
+     * @return true if the key names a delta segment written by a backfill, packed segments never count as one
+     */
+    public static boolean isDelta(final String blobKey) {
+        if (isPacked(blobKey)) {
+            return false;
+        }
+        final int start = Math.max(blobKey.lastIndexOf('/'), blobKey.lastIndexOf('_')) + 1;
+        return blobKey.startsWith(DELTA_PREFIX, start);
+    }
+
+    public static boolean isSharded(final String blobKey) {
+        return blobKey.indexOf('/') >= 0;
+    }
+
+    public static boolean isPacked(final String blobKey) {
+        final int at = blobKey.lastIndexOf(PACK_SEPARATOR);
+        return at > blobKey.lastIndexOf('/') && isSharded(blobKey) && blobKey.indexOf(LENGTH_SEPARATOR, at) > at;
+    }
+
+    public static String packKey(final String packPath, final long offset, final long length) {
+        return packPath + PACK_SEPARATOR + offset + LENGTH_SEPARATOR + length;
+    }
+
+    /**
+     * @return the pack file a packed key points into
+     */
+    public static String packFile(final String blobKey) {
+        return blobKey.substring(0, blobKey.lastIndexOf(PACK_SEPARATOR));
+    }
+
+    public static long packOffset(final String blobKey) {
+        return Long.parseLong(blobKey.substring(blobKey.lastIndexOf(PACK_SEPARATOR) + 1, blobKey.lastIndexOf(LENGTH_SEPARATOR)));
+    }
+
+    public static long packLength(final String blobKey) {
+        return Long.parseLong(blobKey.substring(blobKey.lastIndexOf(LENGTH_SEPARATOR) + 1));
+    }
+
+    private static String hash(final String value) {
+        final CRC32 crc = new CRC32();
+        crc.update(value.getBytes(StandardCharsets.UTF_8));
+        return String.format("%08x", crc.getValue());
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.nimbits.client.model.valueblobstore.ValueBlobStore;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Online migration of the blob store to the sharded layout. Each pass moves every flat layout segment into its
+ * entity's hashed directory and, when packAfterDays is set, appends each entity's sealed days to its pack file.
+ * Packs that compaction and deletes have left mostly dead are rewritten, and packs left without a live segment
+ * are dropped.
+ * Points keep recording and reading throughout, every move is a durable copy followed by a row swap under the
+ * same per day lock the compactor uses, and the old file is only deleted after a grace period.
+ */
+public class StoreMigrator {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private final Logger logger = Logger.getLogger(StoreMigrator.class.getName());
+
+    private BlobStoreImpl blobStore;
+
+    private boolean enabled;
+
+    private int packAfterDays;
+
+    private double minLiveRatio = 0.5;
+
+    private long kilobytesPerSecond = 8 * 1024;
+
+    private long intervalSeconds = 3600;
+
+    private ScheduledExecutorService scheduler;
+
+    private RateLimiter rateLimiter;
+
+    private final AtomicLong migrated = new AtomicLong();
+
+    private final AtomicLong packed = new AtomicLong();
+
+    private final AtomicLong reclaimed = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile long remaining = -1;
+
+    public void setBlobStore(final BlobStoreImpl blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * days older than this are packed, 0 leaves every segment in its own file
+     */
+    public void setPackAfterDays(final int packAfterDays) {
+        this.packAfterDays = packAfterDays;
+    }
+
+    /**
+     * a pack whose live segments fill less than this share of the file is rewritten
+     */
+    public void setMinLiveRatio(final double minLiveRatio) {
+        this.minLiveRatio = minLiveRatio;
+    }
+
+    public void setKilobytesPerSecond(final long kilobytesPerSecond) {
+        this.kilobytesPerSecond = kilobytesPerSecond;
+    }
+
+    public void setIntervalSeconds(final long intervalSeconds) {
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    @PostConstruct
+    public void start() {
+        rateLimiter = RateLimiter.create(kilobytesPerSecond);
+        if (!enabled) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "store-migrator");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runOnce();
+                } catch (RuntimeException ex) {
+                    logger.log(Level.WARNING, "store migration pass failed", ex);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * one migration pass over every entity in the segment index
+     */
+    public synchronized void runOnce() {
+        final SegmentIndex index = blobStore.getSegmentIndex();
+        final long sealedBefore = System.currentTimeMillis() - (packAfterDays + 1) * DAY;
+        long flat = 0;
+        final Set<String> livePacks = new HashSet<>();
+        for (final String entity : index.getEntities()) {
+            final List<ValueBlobStore> sealed = new ArrayList<>();
+            String entityUUID = null;
+            for (final ValueBlobStore store : index.getSegments(entity)) {
+                if (!StoreLayout.isSharded(store.getBlobKey())) {
+                    flat++;
+                    if (migrate(store)) {
+                        flat--;
+                    }
+                } else if (packAfterDays > 0 && !StoreLayout.isPacked(store.getBlobKey())
+                        && store.getTimestamp().getTime() < sealedBefore) {
+                    if (entityUUID == null) {
+                        entityUUID = store.getEntityUUID();
+                    }
+                    if (store.getEntityUUID().equals(entityUUID)) {
+                        sealed.add(store);
+                    }
+                }
+            }
+            if (!sealed.isEmpty()) {
+                pack(entity, entityUUID, sealed);
+            }
+            reclaim(entity);
+            livePacks.addAll(blobStore.livePacks(entity));
+        }
+        final int dropped = blobStore.dropDeadPacks(livePacks);
+        remaining = flat;
+        logger.info("store migration pass done, moved " + migrated.get() + " segments, packed " + packed.get()
+                + " and reclaimed " + reclaimed.get() + " pack bytes so far, dropped " + dropped + " dead packs, "
+                + flat + " flat segments remain");
+    }
+
+    private boolean migrate(final ValueBlobStore store) {
+        try {
+            throttle(store.getLength());
+            if (blobStore.migrateSegment(store) > 0) {
+                migrated.incrementAndGet();
+            }
+            return true;
+        } catch (Exception ex) {
+            failures.incrementAndGet();
+            logger.log(Level.WARNING, "could not migrate segment " + store.getBlobKey(), ex);
+            return false;
+        }
+    }
+
+    private void pack(final String entity, final String entityUUID, final List<ValueBlobStore> sealed) {
+        try {
+            long bytes = 0;
+            for (final ValueBlobStore store : sealed) {
+                bytes += store.getLength();
+            }
+            throttle(bytes);
+            packed.addAndGet(blobStore.packSegments(entity, entityUUID, sealed));
+        } catch (Exception ex) {
+            failures.incrementAndGet();
+            logger.log(Level.WARNING, "could not pack segments of " + entity, ex);
+        }
+    }
+
+    private void reclaim(final String entity) {
+        try {
+            reclaimed.addAndGet(blobStore.reclaimPacks(entity, minLiveRatio));
+        } catch (Exception ex) {
+            failures.incrementAndGet();
+            logger.log(Level.WARNING, "could not rewrite the packs of " + entity, ex);
+        }
+    }
+
+    private void throttle(final long bytes) {
+        rateLimiter.acquire((int) Math.min(Integer.MAX_VALUE, Math.max(1, bytes / 1024)));
+    }
+
+    public long getMigrated() {
+        return migrated.get();
+    }
+
+    public long getPacked() {
+        return packed.get();
+    }
+
+    /**
+     * bytes of dead segments given back by rewriting packs
+     */
+    public long getReclaimed() {
+        return reclaimed.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * flat layout segments left after the last pass, -1 before the first pass
+     */
+    public long getRemaining() {
+        return remaining;
+    }
+}
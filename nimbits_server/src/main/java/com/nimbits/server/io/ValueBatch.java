@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import java.util.Arrays;
+
+/**
+ * A fixed size run of values of one point held in parallel primitive arrays, so a batch costs the same heap
+ * however many times it is filled. A value without a location has NaN for lat and lng, and one without a number
+ * has 0, as {@link com.nimbits.client.model.value.Value#getDoubleValue} would report it.
+ */
+public final class ValueBatch {
+
+    private final long[] timestamps;
+    private final double[] values;
+    private final double[] lats;
+    private final double[] lngs;
+    private final String[] notes;
+    private String key;
+    private int size;
+
+    public ValueBatch(final int capacity) {
+        timestamps = new long[capacity];
+        values = new double[capacity];
+        lats = new double[capacity];
+        lngs = new double[capacity];
+        notes = new String[capacity];
+    }
+
+    /**
+     * empties the batch for the values of the given point
+     */
+    public void reset(final String key) {
+        Arrays.fill(notes, 0, size, null);
+        this.key = key;
+        size = 0;
+    }
+
+    public void add(final long timestamp, final double value, final double lat, final double lng, final String note) {
+        timestamps[size] = timestamp;
+        values[size] = value;
+        lats[size] = lat;
+        lngs[size] = lng;
+        notes[size] = note;
+        size++;
+    }
+
+    public boolean isFull() {
+        return size == timestamps.length;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long timestamp(final int i) {
+        return timestamps[i];
+    }
+
+    public double value(final int i) {
+        return values[i];
+    }
+
+    public double lat(final int i) {
+        return lats[i];
+    }
+
+    public double lng(final int i) {
+        return lngs[i];
+    }
+
+    public String note(final int i) {
+        return notes[i];
+    }
+
+    /**
+     * @return true if the timestamps never go backwards
+     */
+    public boolean isAscending() {
+        for (int i = 1; i < size; i++) {
+            if (timestamps[i] < timestamps[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
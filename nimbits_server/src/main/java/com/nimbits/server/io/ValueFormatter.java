@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import com.google.gson.stream.JsonWriter;
+import com.nimbits.client.enums.ExportType;
+import com.nimbits.client.model.location.Location;
+import com.nimbits.client.model.value.Value;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Renders values one line at a time for exports and dumps, so a series can be written while it is scanned.
+ * Csv lines are <code>timestamp,value,note</code> with the timestamp in epoch milliseconds, json lines hold one
+ * value each with the <code>t, d, dx, lt, lg</code> fields the value deserializer reads. Both read back through the
+ * bulk importer.
+ */
+public final class ValueFormatter {
+
+    private final boolean json;
+
+    /**
+     * @param type {@link ExportType#json} for json lines, anything else for csv
+     */
+    public ValueFormatter(final ExportType type) {
+        this.json = type == ExportType.json;
+    }
+
+    /**
+     * @return the extension files in this format get
+     */
+    public String getExtension() {
+        return json ? "json" : "csv";
+    }
+
+    /**
+     * @return the first line of a file in this format, null if it has none
+     */
+    public String header() {
+        return json ? null : "timestamp,value,note";
+    }
+
+    public void append(final StringBuilder out, final Value value) {
+        if (json) {
+            appendJson(out, value);
+        } else {
+            out.append(value.getTimestamp().getTime()).append(',').append(value.getDoubleValue()).append(',');
+            appendCsvField(out, value.getData() == null ? null : value.getData().getContent());
+        }
+        out.append('\n');
+    }
+
+    private static void appendJson(final StringBuilder out, final Value value) {
+        final StringWriter line = new StringWriter(64);
+        final JsonWriter json = new JsonWriter(line);
+        try {
+            json.beginObject();
+            json.name("t").value(value.getTimestamp().getTime());
+            json.name("d").value(value.getDoubleValue());
+            final String note = value.getData() == null ? null : value.getData().getContent();
+            if (note != null && !note.isEmpty()) {
+                json.name("dx").value(note);
+            }
+            final Location location = value.getLocation();
+            if (location != null && !location.isEmpty()) {
+                json.name("lt").value(location.getLat());
+                json.name("lg").value(location.getLng());
+            }
+            json.endObject();
+            json.flush();
+        } catch (IOException ex) {
+            // a StringWriter does not throw
+            throw new IllegalStateException(ex);
+        }
+        out.append(line.getBuffer());
+    }
+
+    /**
+     * appends a field, quoted if it holds a separator, quote or line break
+     */
+    public static void appendCsvField(final StringBuilder out, final String field) {
+        if (field == null || field.isEmpty()) {
+            return;
+        }
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0) {
+            out.append(field);
+        } else {
+            out.append('"').append(field.replace("\"", "\"\"")).append('"');
+        }
+    }
+}
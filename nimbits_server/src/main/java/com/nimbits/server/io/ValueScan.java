@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import com.google.common.collect.Range;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.valueblobstore.ValueBlobStore;
+
+import java.util.*;
+
+/**
+ * K-way merge over the segments of one entity. Segments are queued in the order the scan reaches them (min
+ * timestamp for ascending scans, max timestamp for descending ones) and a segment is only opened when it could
+ * hold the next value, so segments that overlap are merged correctly and the rest stay closed until needed.
+ *
+ * A timestamp is returned once. When segments hold values for the same timestamp, such as a re-sent series or a
+ * backfill over a day that was already written, the value from the newest segment wins, as it does in a memtable.
+ */
+public class ValueScan implements Iterator<Value> {
+
+    /**
+     * opens one segment as an iterator over its values inside the range, in scan order
+     */
+    public interface SegmentSource {
+        Iterator<Value> open(ValueBlobStore store, Range<Date> range, ScanOrder order);
+    }
+
+    private final SegmentSource source;
+    private final Range<Date> range;
+    private final ScanOrder order;
+    private final int limit;
+    private final List<ValueBlobStore> pending;
+    private final PriorityQueue<Cursor> open;
+    private int nextPending;
+    private int returned;
+    private int segmentsOpened;
+
+    public ValueScan(final Collection<ValueBlobStore> segments, final Range<Date> range, final ScanOrder order,
+                     final int limit, final SegmentSource source) {
+        this.source = source;
+        this.range = range;
+        this.order = order;
+        this.limit = limit;
+        this.pending = new ArrayList<>(segments);
+        Collections.sort(pending, new Comparator<ValueBlobStore>() {
+            @Override
+            public int compare(final ValueBlobStore a, final ValueBlobStore b) {
+                return order == ScanOrder.ascending
+                        ? a.getMinTimestamp().compareTo(b.getMinTimestamp())
+                        : b.getMaxTimestamp().compareTo(a.getMaxTimestamp());
+            }
+        });
+        this.open = new PriorityQueue<>(Math.max(1, Math.min(pending.size(), 16)), new Comparator<Cursor>() {
+            @Override
+            public int compare(final Cursor a, final Cursor b) {
+                final int c = a.current.getTimestamp().compareTo(b.current.getTimestamp());
+                if (c != 0) {
+                    return order == ScanOrder.ascending ? c : -c;
+                }
+                return compareAge(b.store, a.store);
+            }
+        });
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (returned >= limit) {
+            return false;
+        }
+        fill();
+        return !open.isEmpty();
+    }
+
+    @Override
+    public Value next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final Cursor cursor = open.poll();
+        final Value value = cursor.current;
+        if (cursor.advance()) {
+            open.add(cursor);
+        }
+        // every segment that could hold this timestamp is open, older values for it sit right behind
+        final long timestamp = value.getTimestamp().getTime();
+        while (!open.isEmpty() && open.peek().current.getTimestamp().getTime() == timestamp) {
+            final Cursor older = open.poll();
+            if (older.advance()) {
+                open.add(older);
+            }
+        }
+        returned++;
+        return value;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return how many segment files this scan has opened so far
+     */
+    public int getSegmentsOpened() {
+        return segmentsOpened;
+    }
+
+    /**
+     * opens queued segments until the next one could not hold a value ahead of the current head of the merge
+     */
+    private void fill() {
+        while (nextPending < pending.size() && (open.isEmpty() || reaches(pending.get(nextPending), open.peek().current))) {
+            final ValueBlobStore store = pending.get(nextPending++);
+            final Cursor cursor = new Cursor(store, source.open(store, range, order));
+            segmentsOpened++;
+            if (cursor.advance()) {
+                open.add(cursor);
+            }
+        }
+    }
+
+    private boolean reaches(final ValueBlobStore store, final Value head) {
+        return order == ScanOrder.ascending
+                ? store.getMinTimestamp().getTime() <= head.getTimestamp().getTime()
+                : store.getMaxTimestamp().getTime() >= head.getTimestamp().getTime();
+    }
+
+    /**
+     * Orders segments by when they were written. Rows get increasing ids, memtable snapshots have negative ids
+     * and hold values newer than any segment.
+     *
+     * @return a positive number if a was written after b
+     */
+    static int compareAge(final ValueBlobStore a, final ValueBlobStore b) {
+        final long x = a.getId();
+        final long y = b.getId();
+        if ((x < 0) != (y < 0)) {
+            return x < 0 ? 1 : -1;
+        }
+        return x < 0 ? Long.compare(-x, -y) : Long.compare(x, y);
+    }
+
+    private static final class Cursor {
+        private final ValueBlobStore store;
+        private final Iterator<Value> values;
+        private Value current;
+
+        private Cursor(final ValueBlobStore store, final Iterator<Value> values) {
+            this.store = store;
+            this.values = values;
+        }
+
+        private boolean advance() {
+            current = values.hasNext() ? values.next() : null;
+            return current != null;
+        }
+    }
+}
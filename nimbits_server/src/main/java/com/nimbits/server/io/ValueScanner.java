@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io;
+
+import com.google.common.collect.Range;
+import com.nimbits.client.model.entity.Entity;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.server.io.segment.Rollup;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Streaming reads over a point's stored values, implemented by the blob store next to {@link BlobStore}.
+ */
+public interface ValueScanner {
+
+    /**
+     * Lazily yields the values of an entity inside the range in time order across all of its segments. Segment
+     * files are only opened once the merge reaches them, so a scan that hits its limit or the end of the range
+     * never touches the remaining segments.
+     *
+     * @param limit the most values to return, Integer.MAX_VALUE for all of them
+     */
+    Iterator<Value> scan(Entity entity, Range<Date> range, ScanOrder order, int limit);
+
+    /**
+     * Every value of an entity inside the range, newest first like {@link BlobStore#getDataSegment}, with up to
+     * concurrency segments read and decoded in parallel. Long exports pass 1 or 2 to leave the shared reader
+     * threads to interactive reads.
+     */
+    List<Value> read(Entity entity, Range<Date> range, int concurrency);
+
+    /**
+     * Aggregates the values of an entity inside the range, see {@link Rollup#get} for every summary type. Binary
+     * segments answer from their per block rollups and only decode the blocks at the edges of the range.
+     */
+    Rollup aggregate(Entity entity, Range<Date> range);
+
+    /**
+     * At most maxPoints values that draw the same chart as every value in the range, newest first like
+     * {@link BlobStore#getDataSegment}.
+     */
+    List<Value> downsample(Entity entity, Range<Date> range, int maxPoints, DownsampleMode mode);
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io.segment;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a column written by {@link BitOutput} straight out of a segment buffer without copying it.
+ */
+class BitInput {
+
+    private final ByteBuffer buffer;
+
+    private final int start;
+
+    private final int end;
+
+    private long bitPosition;
+
+    BitInput(final ByteBuffer buffer, final int start, final int length) {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = start + length;
+    }
+
+    boolean readBit() {
+        return readBits(1) == 1;
+    }
+
+    long readBits(final int bits) {
+        long result = 0;
+        int remaining = bits;
+        while (remaining > 0) {
+            int byteIndex = start + (int) (bitPosition >>> 3);
+            if (byteIndex >= end) {
+                throw new BufferUnderflowException();
+            }
+            int available = 8 - (int) (bitPosition & 7);
+            int take = Math.min(available, remaining);
+            int chunk = ((buffer.get(byteIndex) & 0xFF) >>> (available - take)) & ((1 << take) - 1);
+            result = (result << take) | chunk;
+            bitPosition += take;
+            remaining -= take;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io.segment;
+
+import java.util.Arrays;
+
+/**
+ * Growable big-endian bit stream used to pack a single segment column.
+ */
+class BitOutput {
+
+    private byte[] buffer;
+
+    private long bitPosition;
+
+    BitOutput(final int initialBytes) {
+        this.buffer = new byte[Math.max(initialBytes, 16)];
+    }
+
+    void writeBit(final boolean bit) {
+        writeBits(bit ? 1 : 0, 1);
+    }
+
+    /**
+     * writes the lowest {@code bits} bits of value, most significant first
+     */
+    void writeBits(final long value, final int bits) {
+        ensureCapacity(bitPosition + bits);
+        int remaining = bits;
+        while (remaining > 0) {
+            int byteIndex = (int) (bitPosition >>> 3);
+            int free = 8 - (int) (bitPosition & 7);
+            int take = Math.min(free, remaining);
+            int chunk = (int) ((value >>> (remaining - take)) & ((1 << take) - 1));
+            buffer[byteIndex] |= (byte) (chunk << (free - take));
+            bitPosition += take;
+            remaining -= take;
+        }
+    }
+
+    int byteLength() {
+        return (int) ((bitPosition + 7) >>> 3);
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, byteLength());
+    }
+
+    private void ensureCapacity(final long bits) {
+        int needed = (int) ((bits + 7) >>> 3);
+        if (needed > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+        }
+    }
+}
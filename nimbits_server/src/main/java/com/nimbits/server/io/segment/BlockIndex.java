@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io.segment;
+
+import java.nio.ByteBuffer;
+
+import static com.nimbits.server.io.segment.SegmentFormat.*;
+
+/**
+ * Offsets and time bounds of every block in a segment. Blocks are written in timestamp order so
+ * the max timestamps are non-decreasing and can be binary searched.
+ */
+final class BlockIndex {
+
+    final int[] offsets;
+
+    final int[] counts;
+
+    final long[] minTimestamps;
+
+    final long[] maxTimestamps;
+
+    /**
+     * absolute position of the first block rollup, -1 for segments written without them
+     */
+    int rollupOffset = -1;
+
+    /**
+     * absolute position of the text section, -1 for segments that store their notes inline
+     */
+    int textOffset = -1;
+
+    private BlockIndex(final int blockCount) {
+        offsets = new int[blockCount];
+        counts = new int[blockCount];
+        minTimestamps = new long[blockCount];
+        maxTimestamps = new long[blockCount];
+    }
+
+    /**
+     * loads the index from the footer, segments written without one have their block headers walked instead
+     */
+    static BlockIndex read(final ByteBuffer buffer) {
+        final int base = buffer.position();
+        final int flags = buffer.get(base + 5);
+        final int blockCount = buffer.getInt(base + 6);
+        final BlockIndex index = new BlockIndex(blockCount);
+
+        if ((flags & FLAG_BLOCK_INDEX) != 0) {
+            final int trailer = buffer.limit() - TRAILER_SIZE;
+            if (buffer.getInt(trailer + 4) != FOOTER_MAGIC) {
+                throw new IndexOutOfBoundsException("segment footer is missing");
+            }
+            int entry = base + buffer.getInt(trailer);
+            for (int i = 0; i < blockCount; i++) {
+                index.offsets[i] = base + buffer.getInt(entry);
+                index.counts[i] = buffer.getInt(entry + 4);
+                index.minTimestamps[i] = buffer.getLong(entry + 8);
+                index.maxTimestamps[i] = buffer.getLong(entry + 16);
+                entry += FOOTER_ENTRY_SIZE;
+            }
+            if ((flags & FLAG_ROLLUPS) != 0) {
+                index.rollupOffset = entry;
+            }
+            if ((flags & FLAG_TEXT) != 0) {
+                index.textOffset = base + buffer.getInt(trailer - 4);
+            }
+        } else {
+            int offset = base + HEADER_SIZE;
+            for (int i = 0; i < blockCount; i++) {
+                index.offsets[i] = offset;
+                index.counts[i] = buffer.getInt(offset + 4);
+                index.minTimestamps[i] = buffer.getLong(offset + 8);
+                index.maxTimestamps[i] = buffer.getLong(offset + 16);
+                offset += 4 + buffer.getInt(offset);
+            }
+        }
+        return index;
+    }
+
+    boolean hasRollups() {
+        return rollupOffset >= 0;
+    }
+
+    Rollup rollup(final ByteBuffer buffer, final int block) {
+        return Rollup.read(buffer, rollupOffset + block * Rollup.SIZE, minTimestamps[block], maxTimestamps[block]);
+    }
+
+    int size() {
+        return offsets.length;
+    }
+
+    int valueCount() {
+        int total = 0;
+        for (final int count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return the first block that could hold a value at or after timestamp, or size() if there is none
+     */
+    int firstBlockEndingAtOrAfter(final long timestamp) {
+        int low = 0;
+        int high = offsets.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (maxTimestamps[mid] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the last block that could hold a value at or before timestamp, or -1 if there is none
+     */
+    int lastBlockStartingAtOrBefore(final long timestamp) {
+        int low = 0;
+        int high = offsets.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (minTimestamps[mid] <= timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io.segment;
+
+/**
+ * Delta-of-delta timestamp column. The first timestamp is stored raw, after that the change in the
+ * gap between samples is zig-zag encoded into one of six buckets, so regularly sampled points cost a
+ * single bit per value. A codec instance carries the stream state and is used for one column only.
+ *
+ * <pre>
+ * 0      dod == 0
+ * 10     7 bits
+ * 110    9 bits
+ * 1110   12 bits
+ * 11110  32 bits
+ * 11111  64 bits
+ * </pre>
+ */
+class DeltaOfDeltaCodec {
+
+    private static final int[] BUCKET_BITS = {0, 7, 9, 12, 32, 64};
+
+    private boolean first = true;
+
+    private long previous;
+
+    private long previousDelta;
+
+    void encode(final BitOutput out, final long timestamp) {
+        if (first) {
+            out.writeBits(timestamp, 64);
+            first = false;
+        } else {
+            long delta = timestamp - previous;
+            long dod = delta - previousDelta;
+            long zigZag = (dod << 1) ^ (dod >> 63);
+            if (zigZag == 0) {
+                out.writeBit(false);
+            } else if (zigZag < 0 || zigZag >= (1L << 32)) {
+                out.writeBits(0b11111, 5);
+                out.writeBits(zigZag, 64);
+            } else if (zigZag < (1L << 7)) {
+                out.writeBits(0b10, 2);
+                out.writeBits(zigZag, 7);
+            } else if (zigZag < (1L << 9)) {
+                out.writeBits(0b110, 3);
+                out.writeBits(zigZag, 9);
+            } else if (zigZag < (1L << 12)) {
+                out.writeBits(0b1110, 4);
+                out.writeBits(zigZag, 12);
+            } else {
+                out.writeBits(0b11110, 5);
+                out.writeBits(zigZag, 32);
+            }
+            previousDelta = delta;
+        }
+        previous = timestamp;
+    }
+
+    long decode(final BitInput in) {
+        if (first) {
+            previous = in.readBits(64);
+            first = false;
+            return previous;
+        }
+        int bucket = 0;
+        while (bucket < BUCKET_BITS.length - 1 && in.readBit()) {
+            bucket++;
+        }
+        long dod = 0;
+        if (bucket > 0) {
+            long zigZag = in.readBits(BUCKET_BITS[bucket]);
+            dod = (zigZag >>> 1) ^ -(zigZag & 1);
+        }
+        previousDelta += dod;
+        previous += previousDelta;
+        return previous;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io.segment;
+
+/**
+ * How the value columns of written blocks were encoded and how many bytes that saved over plain xor compression.
+ * Filled in by {@link SegmentWriter}, one instance can be merged into another to total the segments of a point.
+ */
+public class EncodingStats {
+
+    private long xorBlocks;
+
+    private long runLengthBlocks;
+
+    private long deltaBlocks;
+
+    private long quantizedBlocks;
+
+    private long xorBytes;
+
+    private long encodedBytes;
+
+    synchronized void add(final ValueEncoding.Encoded encoded, final int xorLength) {
+        switch (encoded.encoding) {
+            case ValueEncoding.RUN_LENGTH:
+                runLengthBlocks++;
+                break;
+            case ValueEncoding.DELTA:
+                if (encoded.scale == 0) {
+                    deltaBlocks++;
+                } else {
+                    quantizedBlocks++;
+                }
+                break;
+            default:
+                xorBlocks++;
+        }
+        xorBytes += xorLength;
+        encodedBytes += encoded.bytes.length;
+    }
+
+    public synchronized void merge(final EncodingStats other) {
+        synchronized (other) {
+            xorBlocks += other.xorBlocks;
+            runLengthBlocks += other.runLengthBlocks;
+            deltaBlocks += other.deltaBlocks;
+            quantizedBlocks += other.quantizedBlocks;
+            xorBytes += other.xorBytes;
+            encodedBytes += other.encodedBytes;
+        }
+    }
+
+    public synchronized long getXorBlocks() {
+        return xorBlocks;
+    }
+
+    public synchronized long getRunLengthBlocks() {
+        return runLengthBlocks;
+    }
+
+    /**
+     * blocks of whole numbers, typically cumulative counters
+     */
+    public synchronized long getDeltaBlocks() {
+        return deltaBlocks;
+    }
+
+    /**
+     * blocks of decimals stored as scaled whole numbers
+     */
+    public synchronized long getQuantizedBlocks() {
+        return quantizedBlocks;
+    }
+
+    /**
+     * bytes the value columns would have taken as xor
+     */
+    public synchronized long getXorBytes() {
+        return xorBytes;
+    }
+
+    public synchronized long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    public synchronized long getSavedBytes() {
+        return xorBytes - encodedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "value columns " + encodedBytes + " bytes, " + getSavedBytes() + " saved over xor (blocks: xor " + xorBlocks
+                + ", run length " + runLengthBlocks + ", delta " + deltaBlocks + ", quantized " + quantizedBlocks + ")";
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io.segment;
+
+import com.nimbits.client.enums.SummaryType;
+import com.nimbits.client.model.value.Value;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Count, power sums, extremes and first / last value of a run of values, enough to answer every
+ * {@link SummaryType}. Rollups of neighbouring blocks or segments combine without touching the values, which is
+ * how range aggregates skip decoding every block that lies wholly inside the range.
+ *
+ * NaN values are not counted. The moments come from raw power sums, so series with a huge mean relative to their
+ * spread lose some precision in variance and skewness.
+ */
+public final class Rollup {
+
+    static final int SIZE = 8 + 7 * 8;
+
+    private long count;
+    private double sum;
+    private double sumSq;
+    private double sumCube;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double first = Double.NaN;
+    private double last = Double.NaN;
+    private long firstTimestamp = Long.MAX_VALUE;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getMin() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    public double getMax() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    public double getFirst() {
+        return first;
+    }
+
+    public double getLast() {
+        return last;
+    }
+
+    /**
+     * timestamp of the first value, for block rollups the start of the block
+     */
+    public long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    /**
+     * timestamp of the last value, for block rollups the end of the block
+     */
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public void add(final Value value) {
+        add(value.getTimestamp().getTime(), value.getDoubleValue());
+    }
+
+    public void add(final long timestamp, final double d) {
+        if (Double.isNaN(d)) {
+            return;
+        }
+        count++;
+        sum += d;
+        sumSq += d * d;
+        sumCube += d * d * d;
+        min = Math.min(min, d);
+        max = Math.max(max, d);
+        if (timestamp < firstTimestamp) {
+            firstTimestamp = timestamp;
+            first = d;
+        }
+        if (timestamp >= lastTimestamp) {
+            lastTimestamp = timestamp;
+            last = d;
+        }
+    }
+
+    public void merge(final Rollup other) {
+        if (other.count == 0) {
+            return;
+        }
+        count += other.count;
+        sum += other.sum;
+        sumSq += other.sumSq;
+        sumCube += other.sumCube;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        if (other.firstTimestamp < firstTimestamp) {
+            firstTimestamp = other.firstTimestamp;
+            first = other.first;
+        }
+        if (other.lastTimestamp >= lastTimestamp) {
+            lastTimestamp = other.lastTimestamp;
+            last = other.last;
+        }
+    }
+
+    /**
+     * @return the summary over everything added, NaN when there are too few values for it. Variance, standard
+     * deviation and skewness are the bias corrected sample statistics.
+     */
+    public double get(final SummaryType type) {
+        if (count == 0) {
+            return type == SummaryType.sum ? 0.0 : Double.NaN;
+        }
+        final double n = count;
+        final double mean = sum / n;
+        switch (type) {
+            case average:
+                return mean;
+            case sum:
+                return sum;
+            case min:
+                return min;
+            case max:
+                return max;
+            case delta:
+                return last - first;
+            case variance:
+                return variance(n, mean);
+            case standardDeviation:
+                return Math.sqrt(variance(n, mean));
+            case skewness:
+                if (count < 3) {
+                    return Double.NaN;
+                }
+                final double m3 = sumCube - 3 * mean * sumSq + 2 * n * mean * mean * mean;
+                final double s = Math.sqrt(variance(n, mean));
+                return n / ((n - 1) * (n - 2)) * m3 / (s * s * s);
+            default:
+                return Double.NaN;
+        }
+    }
+
+    private double variance(final double n, final double mean) {
+        if (count < 2) {
+            return count == 1 ? 0.0 : Double.NaN;
+        }
+        return Math.max(0.0, (sumSq - n * mean * mean) / (n - 1));
+    }
+
+    void write(final DataOutputStream out) throws IOException {
+        out.writeLong(count);
+        out.writeDouble(sum);
+        out.writeDouble(sumSq);
+        out.writeDouble(sumCube);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeDouble(first);
+        out.writeDouble(last);
+    }
+
+    /**
+     * reads a block rollup, the block's time bounds stand in for the first and last timestamps
+     */
+    static Rollup read(final ByteBuffer buffer, final int offset, final long minTimestamp, final long maxTimestamp) {
+        final Rollup rollup = new Rollup();
+        rollup.count = buffer.getLong(offset);
+        rollup.sum = buffer.getDouble(offset + 8);
+        rollup.sumSq = buffer.getDouble(offset + 16);
+        rollup.sumCube = buffer.getDouble(offset + 24);
+        rollup.min = buffer.getDouble(offset + 32);
+        rollup.max = buffer.getDouble(offset + 40);
+        rollup.first = buffer.getDouble(offset + 48);
+        rollup.last = buffer.getDouble(offset + 56);
+        if (rollup.count > 0) {
+            rollup.firstTimestamp = minTimestamp;
+            rollup.lastTimestamp = maxTimestamp;
+        }
+        return rollup;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io.segment;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of a version 2 value segment.
+ *
+ * A segment is a header followed by blocks of up to {@link #BLOCK_SIZE} values sorted by timestamp.
+ * Each block stores its columns separately: delta-of-delta timestamps and the double values are
+ * always present, location, alert state and note columns are only written when a block needs them.
+ *
+ * <pre>
+ * header:  int magic, byte version, byte flags, int blockCount
+ * block:   int length, int count, long minTimestamp, long maxTimestamp, byte columns,
+ *          then one (int length, bytes) pair per column in column bit order
+ * text:    int rawLength, int deflatedLength, deflated (varint count, per entry: varint length, utf-8 bytes)
+ * footer:  per block: int offset, int count, long minTimestamp, long maxTimestamp
+ * rollups: per block: long count, double sum, sumOfSquares, sumOfCubes, min, max, first, last
+ * text at: int textOffset
+ * trailer: int footerOffset, int footerMagic
+ * </pre>
+ *
+ * The footer is only present when the header has {@link #FLAG_BLOCK_INDEX} set, it lets a reader binary search
+ * the blocks that overlap a time range without touching the rest of the file. The rollups follow the footer
+ * entries when {@link #FLAG_ROLLUPS} is also set, see {@link Rollup}.
+ *
+ * The low bits of a block's columns byte flag its optional columns, bits 4 to 6 hold the encoding of its value
+ * column, see {@link ValueEncoding}. Blocks written before those encodings existed have them clear, which is xor.
+ *
+ * The text section and its offset are only written with {@link #FLAG_TEXT} set. Then the note column of a block
+ * holds one varint per value, 0 for no note and otherwise the position plus one of the note in the segment's
+ * deflated text dictionary, so repeated notes are stored once and numeric reads never inflate them. Without the
+ * flag the column holds every note inline as a varint length and utf-8 bytes.
+ */
+public final class SegmentFormat {
+
+    /**
+     * the storage version recorded on ValueBlobStoreEntity rows that point at a binary segment, version 1
+     * segments are gson json arrays.
+     */
+    public static final int VERSION = 2;
+
+    static final int MAGIC = 0x4E425347; // NBSG
+
+    static final int HEADER_SIZE = 10;
+
+    static final int BLOCK_HEADER_SIZE = 25;
+
+    static final int BLOCK_SIZE = 1024;
+
+    static final int FLAG_BLOCK_INDEX = 1;
+
+    static final int FLAG_ROLLUPS = 2;
+
+    static final int FLAG_TEXT = 4;
+
+    static final int FOOTER_MAGIC = 0x4E424958; // NBIX
+
+    static final int FOOTER_ENTRY_SIZE = 24;
+
+    static final int TRAILER_SIZE = 8;
+
+    static final int COLUMN_LOCATION = 1;
+
+    static final int COLUMN_ALERT = 2;
+
+    static final int COLUMN_NOTE = 4;
+
+    private SegmentFormat() {
+    }
+
+    /**
+     * @return true if the buffer starts with a binary segment header, legacy json segments start with '['
+     */
+    public static boolean isSegment(final ByteBuffer buffer) {
+        return buffer.remaining() >= HEADER_SIZE && buffer.getInt(buffer.position()) == MAGIC;
+    }
+
+}
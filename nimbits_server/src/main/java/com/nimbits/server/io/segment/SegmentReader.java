@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io.segment;
+
+import com.google.common.collect.Range;
+import com.nimbits.client.enums.AlertType;
+import com.nimbits.client.model.common.SimpleValue;
+import com.nimbits.client.model.location.Location;
+import com.nimbits.client.model.location.LocationFactory;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.value.ValueData;
+import com.nimbits.client.model.value.impl.ValueDataModel;
+import com.nimbits.client.model.value.impl.ValueFactory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static com.nimbits.server.io.segment.SegmentFormat.*;
+
+/**
+ * Decodes a version 2 segment written by {@link SegmentWriter}. Values are returned oldest first.
+ */
+public final class SegmentReader {
+
+    private SegmentReader() {
+    }
+
+    /**
+     * maps a segment file read only, the mapping stays valid after the channel is closed
+     */
+    public static ByteBuffer map(final String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    public static List<Value> read(final ByteBuffer buffer) throws IOException {
+        return read(buffer, null);
+    }
+
+    public static List<Value> read(final ByteBuffer buffer, final Range<Date> range) throws IOException {
+        return read(buffer, range, true);
+    }
+
+    /**
+     * Decodes only the blocks that overlap the range and drops the values outside it from the edge blocks.
+     *
+     * @param range the time range to read, null reads the whole segment
+     * @param notes false skips the note column, every value comes back with empty data
+     */
+    public static List<Value> read(final ByteBuffer buffer, final Range<Date> range, final boolean notes) throws IOException {
+        if (!isSegment(buffer)) {
+            throw new IOException("not a value segment");
+        }
+        final int version = buffer.get(buffer.position() + 4);
+        if (version > VERSION) {
+            throw new IOException("unsupported segment version " + version);
+        }
+        try {
+            final BlockIndex index = BlockIndex.read(buffer);
+            final TextDictionary text = notes ? new TextDictionary(buffer, index.textOffset) : null;
+            int block = 0;
+            long upper = Long.MAX_VALUE;
+            if (range != null && range.hasLowerBound()) {
+                block = index.firstBlockEndingAtOrAfter(range.lowerEndpoint().getTime());
+            }
+            if (range != null && range.hasUpperBound()) {
+                upper = range.upperEndpoint().getTime();
+            }
+
+            final List<Value> values = new ArrayList<Value>(range == null ? index.valueCount() : BLOCK_SIZE);
+            for (; block < index.size() && index.minTimestamps[block] <= upper; block++) {
+                if (range == null || range.encloses(blockRange(index, block))) {
+                    decodeBlock(buffer, index.offsets[block], values, text);
+                } else {
+                    final List<Value> edge = new ArrayList<Value>(index.counts[block]);
+                    decodeBlock(buffer, index.offsets[block], edge, text);
+                    for (final Value value : edge) {
+                        if (range.contains(value.getTimestamp())) {
+                            values.add(value);
+                        }
+                    }
+                }
+            }
+            return values;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            throw new IOException("corrupt value segment", ex);
+        }
+    }
+
+    public static Iterator<Value> iterate(final ByteBuffer buffer, final Range<Date> range, final boolean descending) throws IOException {
+        return iterate(buffer, range, descending, true);
+    }
+
+    /**
+     * Lazily walks the values inside the range one block at a time, so a caller that stops early only pays for
+     * the blocks it actually consumed.
+     *
+     * @param range      the time range to read, null reads the whole segment
+     * @param descending true to walk newest first
+     * @param notes      false skips the note column, every value comes back with empty data
+     */
+    public static Iterator<Value> iterate(final ByteBuffer buffer, final Range<Date> range, final boolean descending,
+                                          final boolean notes) throws IOException {
+        if (!isSegment(buffer)) {
+            throw new IOException("not a value segment");
+        }
+        try {
+            final BlockIndex index = BlockIndex.read(buffer);
+            return new BlockIterator(buffer, index, range, descending, notes ? new TextDictionary(buffer, index.textOffset) : null);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            throw new IOException("corrupt value segment", ex);
+        }
+    }
+
+    /**
+     * Aggregates the values inside the range. Blocks wholly inside the range contribute their stored rollup, only the
+     * blocks at the edges of the range are decoded. Segments written before rollups existed decode every block that
+     * overlaps the range.
+     *
+     * @param range the time range to aggregate, null takes the whole segment
+     */
+    public static Rollup aggregate(final ByteBuffer buffer, final Range<Date> range) throws IOException {
+        if (!isSegment(buffer)) {
+            throw new IOException("not a value segment");
+        }
+        try {
+            final BlockIndex index = BlockIndex.read(buffer);
+            int block = 0;
+            int last = index.size() - 1;
+            if (range != null && range.hasLowerBound()) {
+                block = index.firstBlockEndingAtOrAfter(range.lowerEndpoint().getTime());
+            }
+            if (range != null && range.hasUpperBound()) {
+                last = index.lastBlockStartingAtOrBefore(range.upperEndpoint().getTime());
+            }
+
+            final Rollup rollup = new Rollup();
+            final List<Value> decoded = new ArrayList<Value>(BLOCK_SIZE);
+            for (; block <= last; block++) {
+                final boolean enclosed = range == null || range.encloses(blockRange(index, block));
+                if (enclosed && index.hasRollups()) {
+                    rollup.merge(index.rollup(buffer, block));
+                } else {
+                    decoded.clear();
+                    decodeBlock(buffer, index.offsets[block], decoded, null);
+                    for (final Value value : decoded) {
+                        if (enclosed || range.contains(value.getTimestamp())) {
+                            rollup.add(value);
+                        }
+                    }
+                }
+            }
+            return rollup;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            throw new IOException("corrupt value segment", ex);
+        }
+    }
+
+    /**
+     * Rolls the values between start and end, inclusive, up into equal width time buckets. A block that falls
+     * wholly inside one bucket contributes its stored rollup without being decoded.
+     *
+     * @param buckets one rollup per bucket, added to in place so several segments can share them
+     */
+    public static void rollupBuckets(final ByteBuffer buffer, final long start, final long end, final Rollup[] buckets) throws IOException {
+        if (!isSegment(buffer)) {
+            throw new IOException("not a value segment");
+        }
+        try {
+            final BlockIndex index = BlockIndex.read(buffer);
+            final int last = index.lastBlockStartingAtOrBefore(end);
+            final List<Value> decoded = new ArrayList<Value>(BLOCK_SIZE);
+            for (int block = index.firstBlockEndingAtOrAfter(start); block <= last; block++) {
+                final long min = index.minTimestamps[block];
+                final long max = index.maxTimestamps[block];
+                final int bucket = bucket(min, start, end, buckets.length);
+                if (index.hasRollups() && min >= start && max <= end && bucket == bucket(max, start, end, buckets.length)) {
+                    buckets[bucket].merge(index.rollup(buffer, block));
+                } else {
+                    decoded.clear();
+                    decodeBlock(buffer, index.offsets[block], decoded, null);
+                    for (final Value value : decoded) {
+                        final long timestamp = value.getTimestamp().getTime();
+                        if (timestamp >= start && timestamp <= end) {
+                            buckets[bucket(timestamp, start, end, buckets.length)].add(timestamp, value.getDoubleValue());
+                        }
+                    }
+                }
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            throw new IOException("corrupt value segment", ex);
+        }
+    }
+
+    /**
+     * @return the bucket of a timestamp between start and end when that span is cut into count equal buckets
+     */
+    public static int bucket(final long timestamp, final long start, final long end, final int count) {
+        if (timestamp <= start) {
+            return 0;
+        }
+        if (timestamp >= end) {
+            return count - 1;
+        }
+        return (int) Math.min(count - 1, (long) ((double) (timestamp - start) / ((double) (end - start) + 1) * count));
+    }
+
+    private static Range<Date> blockRange(final BlockIndex index, final int block) {
+        return Range.closed(new Date(index.minTimestamps[block]), new Date(index.maxTimestamps[block]));
+    }
+
+    /**
+     * @param text where the block's notes are looked up, null to leave the note column untouched
+     */
+    private static void decodeBlock(final ByteBuffer buffer, final int blockStart, final List<Value> values, final TextDictionary text) {
+        final int count = buffer.getInt(blockStart + 4);
+        final int columns = buffer.get(blockStart + 24);
+        int position = blockStart + BLOCK_HEADER_SIZE;
+
+        final BitInput timestamps = column(buffer, position);
+        position += 4 + buffer.getInt(position);
+        final ValueEncoding.Decoder doubles = ValueEncoding.decoder((columns & ValueEncoding.MASK) >>> ValueEncoding.SHIFT,
+                buffer, position + 4, buffer.getInt(position));
+        position += 4 + buffer.getInt(position);
+
+        BitInput locations = null;
+        if ((columns & COLUMN_LOCATION) != 0) {
+            locations = column(buffer, position);
+            position += 4 + buffer.getInt(position);
+        }
+        int alerts = -1;
+        if ((columns & COLUMN_ALERT) != 0) {
+            alerts = position + 4;
+            position += 4 + buffer.getInt(position);
+        }
+        final int[] notes = {-1};
+        if (text != null && (columns & COLUMN_NOTE) != 0) {
+            notes[0] = position + 4;
+        }
+
+        final DeltaOfDeltaCodec timestampCodec = new DeltaOfDeltaCodec();
+        final XorCodec lat = new XorCodec();
+        final XorCodec lng = new XorCodec();
+        for (int i = 0; i < count; i++) {
+            final long timestamp = timestampCodec.decode(timestamps);
+            final double d = doubles.next();
+
+            Location location;
+            if (locations != null && locations.readBit()) {
+                location = LocationFactory.createLocation(lat.decode(locations), lng.decode(locations));
+            } else {
+                location = LocationFactory.createEmptyLocation();
+            }
+
+            final AlertType alert = alerts < 0 ? AlertType.OK : AlertType.get(buffer.get(alerts + i));
+
+            final ValueData data;
+            if (notes[0] < 0) {
+                data = ValueDataModel.getEmptyInstance();
+            } else {
+                final String note = text.isInline() ? readNote(buffer, notes) : text.get(readVarInt(buffer, notes));
+                data = note.isEmpty() ? ValueDataModel.getEmptyInstance() : ValueDataModel.getInstance(SimpleValue.getInstance(note));
+            }
+
+            values.add(ValueFactory.createValueModel(location, d, new Date(timestamp), data, alert));
+        }
+    }
+
+    private static final class BlockIterator implements Iterator<Value> {
+
+        private final ByteBuffer buffer;
+        private final BlockIndex index;
+        private final Range<Date> range;
+        private final boolean descending;
+        private final TextDictionary text;
+        private final int lastBlock;
+        private final List<Value> decoded = new ArrayList<Value>(BLOCK_SIZE);
+        private int block;
+        private int position;
+        private Value next;
+
+        private BlockIterator(final ByteBuffer buffer, final BlockIndex index, final Range<Date> range, final boolean descending,
+                              final TextDictionary text) {
+            this.buffer = buffer;
+            this.index = index;
+            this.range = range;
+            this.descending = descending;
+            this.text = text;
+            int first = 0;
+            int last = index.size() - 1;
+            if (range != null && range.hasLowerBound()) {
+                first = index.firstBlockEndingAtOrAfter(range.lowerEndpoint().getTime());
+            }
+            if (range != null && range.hasUpperBound()) {
+                last = index.lastBlockStartingAtOrBefore(range.upperEndpoint().getTime());
+            }
+            this.block = descending ? last : first;
+            this.lastBlock = descending ? first : last;
+            advance();
+        }
+
+        private boolean hasMoreBlocks() {
+            return descending ? block >= lastBlock : block <= lastBlock;
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null) {
+                if (position == decoded.size()) {
+                    if (!hasMoreBlocks()) {
+                        return;
+                    }
+                    decoded.clear();
+                    decodeBlock(buffer, index.offsets[block], decoded, text);
+                    if (descending) {
+                        Collections.reverse(decoded);
+                        block--;
+                    } else {
+                        block++;
+                    }
+                    position = 0;
+                } else {
+                    final Value candidate = decoded.get(position++);
+                    if (range == null || range.contains(candidate.getTimestamp())) {
+                        next = candidate;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Value next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final Value value = next;
+            advance();
+            return value;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static BitInput column(final ByteBuffer buffer, final int position) {
+        return new BitInput(buffer, position + 4, buffer.getInt(position));
+    }
+
+    static int readVarInt(final ByteBuffer buffer, final int[] cursor) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(cursor[0]++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static String readNote(final ByteBuffer buffer, final int[] cursor) {
+        final int length = readVarInt(buffer, cursor);
+        if (length == 0) {
+            return "";
+        }
+        final byte[] note = new byte[length];
+        for (int i = 0; i < length; i++) {
+            note[i] = buffer.get(cursor[0]++);
+        }
+        return new String(note, StandardCharsets.UTF_8);
+    }
+}
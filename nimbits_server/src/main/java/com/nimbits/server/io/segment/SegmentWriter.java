@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io.segment;
+
+import com.nimbits.client.enums.AlertType;
+import com.nimbits.client.enums.point.PointType;
+import com.nimbits.client.model.location.Location;
+import com.nimbits.client.model.value.Value;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.nimbits.server.io.segment.SegmentFormat.*;
+
+/**
+ * Encodes a collection of values into a version 2 segment, see {@link SegmentFormat}.
+ */
+public final class SegmentWriter {
+
+    static final Comparator<Value> ASCENDING = new Comparator<Value>() {
+        @Override
+        public int compare(final Value a, final Value b) {
+            long x = a.getTimestamp().getTime();
+            long y = b.getTimestamp().getTime();
+            return x < y ? -1 : x > y ? 1 : 0;
+        }
+    };
+
+    private SegmentWriter() {
+    }
+
+    public static byte[] write(final Collection<Value> values) throws IOException {
+        return write(values, null, -1, null);
+    }
+
+    /**
+     * Writes the values with each block's value column in the smallest encoding the point allows, see
+     * {@link ValueEncoding}.
+     *
+     * @param type      the point's type, null when not known
+     * @param precision the point's precision, negative when not known
+     * @param stats     collects the encodings chosen, may be null
+     */
+    public static byte[] write(final Collection<Value> values, final PointType type, final int precision,
+                               final EncodingStats stats) throws IOException {
+        final List<Value> sorted = new ArrayList<Value>(values);
+        Collections.sort(sorted, ASCENDING);
+
+        final int blockCount = (sorted.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + sorted.size() * 4);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        final TextDictionary.Builder text = hasNotes(sorted) ? new TextDictionary.Builder() : null;
+        out.writeByte(FLAG_BLOCK_INDEX | FLAG_ROLLUPS | (text == null ? 0 : FLAG_TEXT));
+        out.writeInt(blockCount);
+
+        final int[] offsets = new int[blockCount];
+        for (int i = 0, block = 0; i < sorted.size(); i += BLOCK_SIZE, block++) {
+            offsets[block] = out.size();
+            writeBlock(out, sorted.subList(i, Math.min(i + BLOCK_SIZE, sorted.size())), text, type, precision, stats);
+        }
+        int textOffset = -1;
+        if (text != null) {
+            textOffset = out.size();
+            text.write(out);
+        }
+        writeFooter(out, sorted, offsets, textOffset);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static boolean hasNotes(final List<Value> values) {
+        for (final Value value : values) {
+            if (!note(value).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeFooter(final DataOutputStream out, final List<Value> sorted, final int[] offsets,
+                                    final int textOffset) throws IOException {
+        final int footerOffset = out.size();
+        for (int block = 0; block < offsets.length; block++) {
+            final int first = block * BLOCK_SIZE;
+            final int last = Math.min(first + BLOCK_SIZE, sorted.size()) - 1;
+            out.writeInt(offsets[block]);
+            out.writeInt(last - first + 1);
+            out.writeLong(sorted.get(first).getTimestamp().getTime());
+            out.writeLong(sorted.get(last).getTimestamp().getTime());
+        }
+        for (int first = 0; first < sorted.size(); first += BLOCK_SIZE) {
+            final Rollup rollup = new Rollup();
+            for (final Value value : sorted.subList(first, Math.min(first + BLOCK_SIZE, sorted.size()))) {
+                rollup.add(value);
+            }
+            rollup.write(out);
+        }
+        if (textOffset >= 0) {
+            out.writeInt(textOffset);
+        }
+        out.writeInt(footerOffset);
+        out.writeInt(FOOTER_MAGIC);
+    }
+
+    private static void writeBlock(final DataOutputStream out, final List<Value> block, final TextDictionary.Builder text,
+                                   final PointType type, final int precision, final EncodingStats stats) throws IOException {
+        final int count = block.size();
+        final BitOutput timestamps = new BitOutput(count);
+        final BitOutput doubles = new BitOutput(count * 2);
+        final DeltaOfDeltaCodec timestampCodec = new DeltaOfDeltaCodec();
+        final XorCodec valueCodec = new XorCodec();
+
+        int columns = 0;
+        for (final Value value : block) {
+            timestampCodec.encode(timestamps, value.getTimestamp().getTime());
+            valueCodec.encode(doubles, value.getDoubleValue());
+            if (!value.getLocation().isEmpty()) {
+                columns |= COLUMN_LOCATION;
+            }
+            if (alertCode(value) != AlertType.OK.getCode()) {
+                columns |= COLUMN_ALERT;
+            }
+            if (!note(value).isEmpty()) {
+                columns |= COLUMN_NOTE;
+            }
+        }
+
+        final byte[] xor = doubles.toByteArray();
+        final ValueEncoding.Encoded encoded = ValueEncoding.choose(block, type, precision, xor);
+        if (stats != null) {
+            stats.add(encoded, xor.length);
+        }
+        columns |= encoded.encoding << ValueEncoding.SHIFT;
+
+        final List<byte[]> payload = new ArrayList<byte[]>(5);
+        payload.add(timestamps.toByteArray());
+        payload.add(encoded.bytes);
+        if ((columns & COLUMN_LOCATION) != 0) {
+            payload.add(locationColumn(block));
+        }
+        if ((columns & COLUMN_ALERT) != 0) {
+            payload.add(alertColumn(block));
+        }
+        if ((columns & COLUMN_NOTE) != 0) {
+            payload.add(noteColumn(block, text));
+        }
+
+        int length = BLOCK_HEADER_SIZE - 4;
+        for (final byte[] column : payload) {
+            length += 4 + column.length;
+        }
+
+        out.writeInt(length);
+        out.writeInt(count);
+        out.writeLong(block.get(0).getTimestamp().getTime());
+        out.writeLong(block.get(count - 1).getTimestamp().getTime());
+        out.writeByte(columns);
+        for (final byte[] column : payload) {
+            out.writeInt(column.length);
+            out.write(column);
+        }
+    }
+
+    private static byte[] locationColumn(final List<Value> block) {
+        final BitOutput out = new BitOutput(block.size());
+        final XorCodec lat = new XorCodec();
+        final XorCodec lng = new XorCodec();
+        for (final Value value : block) {
+            final Location location = value.getLocation();
+            if (location.isEmpty()) {
+                out.writeBit(false);
+            } else {
+                out.writeBit(true);
+                lat.encode(out, location.getLat());
+                lng.encode(out, location.getLng());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] alertColumn(final List<Value> block) {
+        final byte[] out = new byte[block.size()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) alertCode(block.get(i));
+        }
+        return out;
+    }
+
+    private static byte[] noteColumn(final List<Value> block, final TextDictionary.Builder text) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(block.size());
+        for (final Value value : block) {
+            writeVarInt(out, text.id(note(value)));
+        }
+        return out.toByteArray();
+    }
+
+    static void writeVarInt(final ByteArrayOutputStream out, final int value) {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            out.write((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        out.write(remaining);
+    }
+
+    /**
+     * values gson parsed straight into a ValueModel never had an alert state set, they are stored as OK
+     */
+    private static int alertCode(final Value value) {
+        final AlertType alert = value.getAlertState();
+        return alert == null ? AlertType.OK.getCode() : alert.getCode();
+    }
+
+    private static String note(final Value value) {
+        return value.getData() == null ? "" : value.getData().getContent();
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io.segment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The distinct notes of a segment, see {@link SegmentFormat#FLAG_TEXT}. A reader inflates the dictionary the first
+ * time a note is looked up, so reads that never ask for notes never touch the text bytes.
+ */
+final class TextDictionary {
+
+    private final ByteBuffer buffer;
+
+    private final int offset;
+
+    private String[] entries;
+
+    /**
+     * @param offset absolute position of the text section, -1 for segments that store their notes inline
+     */
+    TextDictionary(final ByteBuffer buffer, final int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+    }
+
+    boolean isInline() {
+        return offset < 0;
+    }
+
+    String get(final int id) {
+        if (id == 0) {
+            return "";
+        }
+        if (entries == null) {
+            entries = inflate();
+        }
+        return entries[id - 1];
+    }
+
+    private String[] inflate() {
+        final int rawLength = buffer.getInt(offset);
+        final byte[] deflated = new byte[buffer.getInt(offset + 4)];
+        final ByteBuffer source = buffer.duplicate();
+        source.position(offset + 8);
+        source.get(deflated);
+        final byte[] raw = new byte[rawLength];
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            if (inflater.inflate(raw) != rawLength) {
+                throw new IndexOutOfBoundsException("truncated text dictionary");
+            }
+        } catch (DataFormatException ex) {
+            throw new IndexOutOfBoundsException("corrupt text dictionary");
+        } finally {
+            inflater.end();
+        }
+
+        final ByteBuffer text = ByteBuffer.wrap(raw);
+        final int[] cursor = {0};
+        final String[] result = new String[SegmentReader.readVarInt(text, cursor)];
+        for (int i = 0; i < result.length; i++) {
+            final int length = SegmentReader.readVarInt(text, cursor);
+            result[i] = new String(raw, cursor[0], length, StandardCharsets.UTF_8);
+            cursor[0] += length;
+        }
+        return result;
+    }
+
+    /**
+     * collects the notes of a segment as its blocks are written
+     */
+    static final class Builder {
+
+        private final Map<String, Integer> ids = new LinkedHashMap<String, Integer>();
+
+        /**
+         * @return the id the note column stores for the note, 0 for no note
+         */
+        int id(final String note) {
+            if (note.isEmpty()) {
+                return 0;
+            }
+            Integer id = ids.get(note);
+            if (id == null) {
+                id = ids.size() + 1;
+                ids.put(note, id);
+            }
+            return id;
+        }
+
+        void write(final DataOutputStream out) throws IOException {
+            final ByteArrayOutputStream raw = new ByteArrayOutputStream(ids.size() * 8);
+            SegmentWriter.writeVarInt(raw, ids.size());
+            for (final String note : ids.keySet()) {
+                final byte[] bytes = note.getBytes(StandardCharsets.UTF_8);
+                SegmentWriter.writeVarInt(raw, bytes.length);
+                raw.write(bytes, 0, bytes.length);
+            }
+            final byte[] input = raw.toByteArray();
+            final Deflater deflater = new Deflater();
+            final ByteArrayOutputStream deflated = new ByteArrayOutputStream(input.length / 2 + 16);
+            try {
+                deflater.setInput(input);
+                deflater.finish();
+                final byte[] chunk = new byte[4096];
+                while (!deflater.finished()) {
+                    deflated.write(chunk, 0, deflater.deflate(chunk));
+                }
+            } finally {
+                deflater.end();
+            }
+            out.writeInt(input.length);
+            out.writeInt(deflated.size());
+            deflated.writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io.segment;
+
+import com.nimbits.client.enums.point.PointType;
+import com.nimbits.client.model.value.Value;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Encodings of a block's value column, recorded in the upper bits of the block's column byte.
+ *
+ * <ul>
+ * <li>xor - gorilla xor compression, see {@link XorCodec}, the default for any series</li>
+ * <li>run length - varint run length and raw double per run, for flag points that toggle rarely</li>
+ * <li>delta - the values scaled by a power of ten to whole numbers, then a zig-zag varint of the first and of
+ * the change from each value to the next. Scale 0 suits cumulative counters, a higher scale stores readings taken
+ * at a fixed number of decimals, up to the point's precision, in a few bits each</li>
+ * </ul>
+ *
+ * Every encoding is lossless, a block only uses delta when each value survives the scaling exactly. The writer
+ * encodes a block in each encoding the point could use and keeps the smallest.
+ */
+final class ValueEncoding {
+
+    static final int XOR = 0;
+
+    static final int RUN_LENGTH = 1;
+
+    static final int DELTA = 2;
+
+    static final int SHIFT = 4;
+
+    static final int MASK = 0x70;
+
+    /**
+     * the highest scale tried for points without a precision, and for rewrites that do not know the point
+     */
+    static final int DEFAULT_MAX_SCALE = 4;
+
+    private static final int MAX_SCALE = 9;
+
+    private static final double[] POWERS = {1, 10, 100, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9};
+
+    private static final double MAX_EXACT = 9007199254740992.0; // 2^53
+
+    private ValueEncoding() {
+    }
+
+    interface Decoder {
+        double next();
+    }
+
+    /**
+     * a block's value column in the encoding chosen for it
+     */
+    static final class Encoded {
+
+        final int encoding;
+        final byte[] bytes;
+        final int scale;
+
+        private Encoded(final int encoding, final byte[] bytes, final int scale) {
+            this.encoding = encoding;
+            this.bytes = bytes;
+            this.scale = scale;
+        }
+    }
+
+    /**
+     * @param type      the point's type, null when not known
+     * @param precision the point's precision, negative when not known
+     * @param xor       the block already encoded as xor
+     */
+    static Encoded choose(final List<Value> block, final PointType type, final int precision, final byte[] xor) {
+        Encoded best = new Encoded(XOR, xor, -1);
+        if (type == PointType.flag || runs(block) <= block.size() / 8) {
+            final byte[] runs = runLength(block);
+            if (runs.length < best.bytes.length) {
+                best = new Encoded(RUN_LENGTH, runs, -1);
+            }
+        }
+        final int maxScale = type != null && precision >= 0 ? Math.min(precision, MAX_SCALE) : DEFAULT_MAX_SCALE;
+        final int scale = exactScale(block, maxScale);
+        if (scale >= 0) {
+            final byte[] delta = delta(block, scale);
+            if (delta.length < best.bytes.length) {
+                best = new Encoded(DELTA, delta, scale);
+            }
+        }
+        return best;
+    }
+
+    static Decoder decoder(final int encoding, final ByteBuffer buffer, final int position, final int length) {
+        switch (encoding) {
+            case XOR:
+                final BitInput in = new BitInput(buffer, position, length);
+                final XorCodec codec = new XorCodec();
+                return new Decoder() {
+                    @Override
+                    public double next() {
+                        return codec.decode(in);
+                    }
+                };
+            case RUN_LENGTH:
+                return new Decoder() {
+                    private final int[] cursor = {position};
+                    private int remaining;
+                    private double current;
+
+                    @Override
+                    public double next() {
+                        if (remaining == 0) {
+                            remaining = SegmentReader.readVarInt(buffer, cursor);
+                            current = Double.longBitsToDouble(buffer.getLong(cursor[0]));
+                            cursor[0] += 8;
+                        }
+                        remaining--;
+                        return current;
+                    }
+                };
+            case DELTA:
+                final int scale = buffer.get(position);
+                return new Decoder() {
+                    private final int[] cursor = {position + 1};
+                    private long current;
+
+                    @Override
+                    public double next() {
+                        current += unZigZag(readVarLong(buffer, cursor));
+                        return scale == 0 ? (double) current : current / POWERS[scale];
+                    }
+                };
+            default:
+                throw new IndexOutOfBoundsException("unknown value encoding " + encoding);
+        }
+    }
+
+    private static int runs(final List<Value> block) {
+        int runs = 1;
+        for (int i = 1; i < block.size(); i++) {
+            if (bits(block.get(i)) != bits(block.get(i - 1))) {
+                runs++;
+            }
+        }
+        return runs;
+    }
+
+    private static byte[] runLength(final List<Value> block) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < block.size()) {
+            final long bits = bits(block.get(i));
+            int run = 1;
+            while (i + run < block.size() && bits(block.get(i + run)) == bits) {
+                run++;
+            }
+            SegmentWriter.writeVarInt(out, run);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (bits >>> shift));
+            }
+            i += run;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the smallest scale up to maxScale at which every value is a whole number that converts back to the
+     * same double, -1 if there is none
+     */
+    private static int exactScale(final List<Value> block, final int maxScale) {
+        int scale = 0;
+        for (final Value value : block) {
+            while (scale <= maxScale && !exact(value.getDoubleValue(), scale)) {
+                scale++;
+            }
+            if (scale > maxScale) {
+                return -1;
+            }
+        }
+        // a value exact at a smaller scale can still overflow the whole number range at the final one
+        for (final Value value : block) {
+            if (!exact(value.getDoubleValue(), scale)) {
+                return -1;
+            }
+        }
+        return scale;
+    }
+
+    private static boolean exact(final double value, final int scale) {
+        final double scaled = value * POWERS[scale];
+        if (!(Math.abs(scaled) < MAX_EXACT)) {
+            return false;
+        }
+        final long whole = Math.round(scaled);
+        final double back = scale == 0 ? (double) whole : whole / POWERS[scale];
+        return Double.doubleToRawLongBits(back) == Double.doubleToRawLongBits(value);
+    }
+
+    private static byte[] delta(final List<Value> block, final int scale) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(block.size() + 1);
+        out.write(scale);
+        long previous = 0;
+        for (final Value value : block) {
+            final long whole = Math.round(value.getDoubleValue() * POWERS[scale]);
+            final long delta = whole - previous;
+            writeVarLong(out, (delta << 1) ^ (delta >> 63));
+            previous = whole;
+        }
+        return out.toByteArray();
+    }
+
+    private static long bits(final Value value) {
+        return Double.doubleToRawLongBits(value.getDoubleValue());
+    }
+
+    private static long unZigZag(final long zigZag) {
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+
+    private static void writeVarLong(final ByteArrayOutputStream out, final long value) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            out.write((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        out.write((int) remaining);
+    }
+
+    private static long readVarLong(final ByteBuffer buffer, final int[] cursor) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(cursor[0]++);
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.io.segment;
+
+/**
+ * Xor compressed double column. Each value is xor'd with the previous one, a repeated value costs one
+ * bit and a value whose meaningful bits fit inside the previous window costs two bits plus the window.
+ * A codec instance carries the stream state and is used for one column only.
+ */
+class XorCodec {
+
+    private static final int MAX_LEADING = 31;
+
+    private boolean first = true;
+
+    private long previous;
+
+    private int leading = -1;
+
+    private int trailing;
+
+    void encode(final BitOutput out, final double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        if (first) {
+            out.writeBits(bits, 64);
+            first = false;
+        } else {
+            long xor = bits ^ previous;
+            if (xor == 0) {
+                out.writeBit(false);
+            } else {
+                out.writeBit(true);
+                int newLeading = Math.min(Long.numberOfLeadingZeros(xor), MAX_LEADING);
+                int newTrailing = Long.numberOfTrailingZeros(xor);
+                if (leading != -1 && newLeading >= leading && newTrailing >= trailing) {
+                    out.writeBit(false);
+                    out.writeBits(xor >>> trailing, 64 - leading - trailing);
+                } else {
+                    int significant = 64 - newLeading - newTrailing;
+                    out.writeBit(true);
+                    out.writeBits(newLeading, 5);
+                    out.writeBits(significant - 1, 6);
+                    out.writeBits(xor >>> newTrailing, significant);
+                    leading = newLeading;
+                    trailing = newTrailing;
+                }
+            }
+        }
+        previous = bits;
+    }
+
+    double decode(final BitInput in) {
+        if (first) {
+            previous = in.readBits(64);
+            first = false;
+        } else if (in.readBit()) {
+            if (in.readBit()) {
+                leading = (int) in.readBits(5);
+                int significant = (int) in.readBits(6) + 1;
+                trailing = 64 - leading - significant;
+            }
+            previous ^= in.readBits(64 - leading - trailing) << trailing;
+        }
+        return Double.longBitsToDouble(previous);
+    }
+}
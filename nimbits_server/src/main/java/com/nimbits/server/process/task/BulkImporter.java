@@ -0,0 +1,523 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.process.task;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.nimbits.client.constants.Const;
+import com.nimbits.client.model.common.SimpleValue;
+import com.nimbits.client.model.location.LocationFactory;
+import com.nimbits.client.model.point.Point;
+import com.nimbits.client.model.user.User;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.value.impl.ValueDataModel;
+import com.nimbits.client.model.value.impl.ValueFactory;
+import com.nimbits.server.gson.deserializer.ValueDeserializer;
+import com.nimbits.server.io.BlobStoreImpl;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads an uploaded file of historical values for one point straight into segments, for
+ * {@link TaskService#startUploadTask}. The file is either csv, one value per line as
+ * <code>timestamp,value[,note]</code> with the timestamp in epoch milliseconds or {@link Const#GSON_DATE_FORMAT},
+ * or json lines with one serialised value per line. A quoted csv note may span lines, as
+ * {@link com.nimbits.server.io.ValueFormatter} writes notes with line breaks. An optional csv header line is skipped.
+ *
+ * The file is streamed, values are grouped by day and every batchValues values the buffered days are handed to
+ * a pool of writers in chunks of daysPerTask days, each written through {@link BlobStoreImpl#backfill}. Several
+ * imports share the pool, so the load is parallel across days and points. At most maxPendingTasks chunks are in
+ * flight, which bounds the memory an import takes however large the file.
+ *
+ * Progress is checkpointed next to the upload as the number of lines whose values are durable, always at the end
+ * of a record. An import that
+ * fails or is interrupted by a restart resumes after the checkpoint when it is started again, values of the
+ * chunks that were in flight at the time can be written a second time. Alerts and subscriptions are not
+ * processed for imported values unless the import is started with process set, in which case every value is
+ * recorded through {@link ValueTask} one at a time instead.
+ */
+public class BulkImporter {
+
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private final Logger logger = Logger.getLogger(BulkImporter.class.getName());
+
+    private BlobStoreImpl blobStore;
+
+    private ValueTask valueTask;
+
+    private String uploadFolder = System.getProperty("java.io.tmpdir");
+
+    private int threads = 4;
+
+    private int batchValues = 100000;
+
+    private int daysPerTask = 8;
+
+    private int maxPendingTasks = 16;
+
+    private ExecutorService imports;
+
+    private ExecutorService writers;
+
+    private final Set<String> running = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final AtomicLong filesImported = new AtomicLong();
+
+    private final AtomicLong valuesImported = new AtomicLong();
+
+    private final AtomicLong linesRejected = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final Gson gson = new GsonBuilder()
+            .setDateFormat(Const.GSON_DATE_FORMAT)
+            .registerTypeAdapter(Value.class, new ValueDeserializer())
+            .create();
+
+    public void setBlobStore(final BlobStoreImpl blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    public void setValueTask(final ValueTask valueTask) {
+        this.valueTask = valueTask;
+    }
+
+    /**
+     * where upload blob keys are resolved, keys that are absolute paths are used as they are
+     */
+    public void setUploadFolder(final String uploadFolder) {
+        this.uploadFolder = uploadFolder;
+    }
+
+    public void setThreads(final int threads) {
+        this.threads = threads;
+    }
+
+    public void setBatchValues(final int batchValues) {
+        this.batchValues = batchValues;
+    }
+
+    public void setDaysPerTask(final int daysPerTask) {
+        this.daysPerTask = daysPerTask;
+    }
+
+    public void setMaxPendingTasks(final int maxPendingTasks) {
+        this.maxPendingTasks = maxPendingTasks;
+    }
+
+    @PostConstruct
+    public void start() {
+        imports = Executors.newCachedThreadPool(daemon("bulk-import"));
+        writers = Executors.newFixedThreadPool(threads, daemon("bulk-import-writer"));
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (imports != null) {
+            imports.shutdownNow();
+        }
+        if (writers != null) {
+            writers.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts importing the upload in the background, unless an import of the same upload is already running.
+     *
+     * @param process true records every value through the value task so alerts and subscriptions fire
+     * @return false if the upload is already being imported
+     */
+    public boolean submit(final User user, final Point point, final String blobKey, final boolean process) {
+        final File file = resolve(blobKey);
+        if (!running.add(file.getPath())) {
+            return false;
+        }
+        imports.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final long values = importFile(user, point, file, process);
+                    filesImported.incrementAndGet();
+                    logger.info("imported " + values + " values into " + point.getKey() + " from " + file);
+                } catch (Exception ex) {
+                    failures.incrementAndGet();
+                    logger.log(Level.WARNING, "import of " + file + " into " + point.getKey()
+                            + " failed, starting it again resumes from the last checkpoint", ex);
+                } finally {
+                    running.remove(file.getPath());
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * imports the file on the calling thread
+     *
+     * @return the number of values imported by this run
+     */
+    long importFile(final User user, final Point point, final File file, final boolean process) throws IOException, InterruptedException {
+        final File checkpointFile = new File(file.getPath() + CHECKPOINT_SUFFIX);
+        final long resumeAfter = readCheckpoint(checkpointFile);
+        final Import job = new Import(point, checkpointFile);
+        long lineNumber;
+        long values = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            final Records records = new Records(reader);
+            records.skip(resumeAfter);
+            lineNumber = records.getLineNumber();
+            String record;
+            while ((record = records.next()) != null) {
+                lineNumber = records.getLineNumber();
+                if (record.trim().isEmpty()) {
+                    continue;
+                }
+                final Value value = parse(record.trim(), lineNumber);
+                if (value == null) {
+                    continue;
+                }
+                if (process) {
+                    valueTask.recordValue(value, user, point, true);
+                } else {
+                    job.add(value);
+                    if (job.buffered >= batchValues) {
+                        job.flush(lineNumber);
+                    }
+                }
+                values++;
+            }
+        }
+        if (!process) {
+            job.flush(lineNumber);
+            job.await();
+        }
+        valuesImported.addAndGet(values);
+        Files.deleteIfExists(checkpointFile.toPath());
+        return values;
+    }
+
+    /**
+     * @param lineNumber the last line of the record
+     * @return the value in the record, null for a csv header or a record that could not be parsed
+     */
+    Value parse(final String line, final long lineNumber) {
+        try {
+            if (line.startsWith("{")) {
+                return gson.fromJson(line, Value.class);
+            }
+            final String[] fields = line.split(",", 3);
+            if (fields.length < 2) {
+                throw new IllegalArgumentException("expected timestamp,value[,note]");
+            }
+            final Date timestamp = parseTimestamp(fields[0].trim());
+            final double d = Double.parseDouble(fields[1].trim());
+            if (fields.length == 3 && !fields[2].trim().isEmpty()) {
+                return ValueFactory.createValueModel(LocationFactory.createEmptyLocation(), d, timestamp,
+                        ValueDataModel.getInstance(SimpleValue.getInstance(unquote(fields[2].trim()))), null);
+            }
+            return ValueFactory.createValueModel(d, timestamp);
+        } catch (IllegalArgumentException | ParseException | JsonParseException ex) {
+            if (lineNumber > 1) {
+                linesRejected.incrementAndGet();
+                logger.fine("skipped line " + lineNumber + ": " + ex.getMessage());
+            }
+            return null;
+        }
+    }
+
+    private static String unquote(final String field) {
+        if (field.length() >= 2 && field.startsWith("\"") && field.endsWith("\"")) {
+            return field.substring(1, field.length() - 1).replace("\"\"", "\"");
+        }
+        return field;
+    }
+
+    private static Date parseTimestamp(final String field) throws ParseException {
+        if (field.matches("-?\\d+")) {
+            return new Date(Long.parseLong(field));
+        }
+        return new SimpleDateFormat(Const.GSON_DATE_FORMAT).parse(field);
+    }
+
+    private File resolve(final String blobKey) {
+        final File file = new File(blobKey);
+        return file.isAbsolute() ? file : new File(uploadFolder, blobKey);
+    }
+
+    private static long readCheckpoint(final File checkpointFile) throws IOException {
+        if (!checkpointFile.exists()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(checkpointFile.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    public int getRunning() {
+        return running.size();
+    }
+
+    public long getFilesImported() {
+        return filesImported.get();
+    }
+
+    public long getValuesImported() {
+        return valuesImported.get();
+    }
+
+    public long getLinesRejected() {
+        return linesRejected.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            private final AtomicLong count = new AtomicLong();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * the days buffered by one import and the batches it has handed to the writers
+     */
+    private final class Import {
+
+        private final Point point;
+
+        private final File checkpointFile;
+
+        private final Semaphore permits = new Semaphore(maxPendingTasks);
+
+        private final TreeMap<Long, List<Value>> days = new TreeMap<>();
+
+        private final Deque<Batch> batches = new ArrayDeque<>();
+
+        private volatile Exception failure;
+
+        private int buffered;
+
+        private Import(final Point point, final File checkpointFile) {
+            this.point = point;
+            this.checkpointFile = checkpointFile;
+        }
+
+        private void add(final Value value) {
+            final long timestamp = value.getTimestamp().getTime();
+            final long day = TimeUnit.MILLISECONDS.toDays(timestamp + TimeZone.getDefault().getOffset(timestamp));
+            List<Value> list = days.get(day);
+            if (list == null) {
+                list = new ArrayList<>();
+                days.put(day, list);
+            }
+            list.add(value);
+            buffered++;
+        }
+
+        /**
+         * hands every buffered day to the writers, the batch is done once lines up to lineNumber are durable
+         */
+        private void flush(final long lineNumber) throws IOException, InterruptedException {
+            checkFailure();
+            final List<List<Value>> chunks = new ArrayList<>();
+            List<Value> chunk = new ArrayList<>();
+            int daysInChunk = 0;
+            for (final Map.Entry<Long, List<Value>> day : days.entrySet()) {
+                chunk.addAll(day.getValue());
+                if (++daysInChunk == daysPerTask) {
+                    chunks.add(chunk);
+                    chunk = new ArrayList<>();
+                    daysInChunk = 0;
+                }
+            }
+            if (!chunk.isEmpty()) {
+                chunks.add(chunk);
+            }
+            days.clear();
+            buffered = 0;
+
+            final Batch batch = new Batch(lineNumber, chunks.size());
+            batches.addLast(batch);
+            for (final List<Value> values : chunks) {
+                permits.acquire();
+                checkFailure();
+                writers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            blobStore.backfill(point, values);
+                            batch.remaining.decrementAndGet();
+                        } catch (Exception ex) {
+                            failure = ex;
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            }
+            checkpoint();
+        }
+
+        /**
+         * waits for every batch handed to the writers
+         */
+        private void await() throws IOException, InterruptedException {
+            permits.acquire(maxPendingTasks);
+            permits.release(maxPendingTasks);
+            checkFailure();
+            checkpoint();
+        }
+
+        /**
+         * records the last line of the newest batch that finished after all batches before it
+         */
+        private void checkpoint() throws IOException {
+            long durable = -1;
+            while (!batches.isEmpty() && batches.peekFirst().remaining.get() == 0) {
+                durable = batches.pollFirst().lineNumber;
+            }
+            if (durable >= 0) {
+                final File temp = new File(checkpointFile.getPath() + ".tmp");
+                try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+                    writer.write(Long.toString(durable));
+                }
+                Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure != null) {
+                throw new IOException("could not write imported values of " + point.getKey(), failure);
+            }
+        }
+    }
+
+    /**
+     * Reads an upload record by record. A csv line with an open quote is joined with the lines after it until the
+     * quote closes, an unterminated quote takes in the rest of the file. Json lines are never joined.
+     */
+    static final class Records {
+
+        private final BufferedReader reader;
+
+        private long lineNumber;
+
+        Records(final BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * skips lines up to and including the given line, for resuming after a checkpoint
+         */
+        void skip(final long lines) throws IOException {
+            while (lineNumber < lines && reader.readLine() != null) {
+                lineNumber++;
+            }
+        }
+
+        /**
+         * @return the next record without its line break, null at the end of the file
+         */
+        String next() throws IOException {
+            final String line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+            lineNumber++;
+            int quotes = quotes(line);
+            if (quotes % 2 == 0 || line.trim().startsWith("{")) {
+                return line;
+            }
+            final StringBuilder record = new StringBuilder(line);
+            String more;
+            while (quotes % 2 != 0 && (more = reader.readLine()) != null) {
+                lineNumber++;
+                record.append('\n').append(more);
+                quotes += quotes(more);
+            }
+            return record.toString();
+        }
+
+        /**
+         * the line the last record returned ended on
+         */
+        long getLineNumber() {
+            return lineNumber;
+        }
+
+        private static int quotes(final String line) {
+            int count = 0;
+            for (int i = 0; i < line.length(); i++) {
+                if (line.charAt(i) == '"') {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private static final class Batch {
+
+        private final long lineNumber;
+
+        private final AtomicInteger remaining;
+
+        private Batch(final long lineNumber, final int tasks) {
+            this.lineNumber = lineNumber;
+            this.remaining = new AtomicInteger(tasks);
+        }
+    }
+}
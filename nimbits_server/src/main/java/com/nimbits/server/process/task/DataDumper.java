@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.process.task;
+
+import com.google.common.collect.Range;
+import com.nimbits.client.enums.EntityType;
+import com.nimbits.client.enums.ExportType;
+import com.nimbits.client.model.entity.Entity;
+import com.nimbits.client.model.point.Point;
+import com.nimbits.client.model.timespan.Timespan;
+import com.nimbits.client.model.user.User;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.server.io.ScanOrder;
+import com.nimbits.server.io.ValueFormatter;
+import com.nimbits.server.io.ValueScanner;
+import com.nimbits.server.transaction.entity.dao.EntityDao;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Background export of every point under an entity, or of a whole account when the entity is the user, into one
+ * zip archive with a file per point, for {@link TaskService#startDataDumpTask}. The archive is written to a
+ * temporary name in dumpFolder and renamed once complete.
+ *
+ * Points are scanned on a pool of reader threads, each rendering its point in chunks of CHUNK_CHARS into a
+ * bounded queue of queuedChunks chunks. A single thread writes the archive entry by entry, draining each point's
+ * queue in turn while the readers of the following points fill theirs, so at most threads times queuedChunks
+ * chunks are held however long the series are. Dumps run one at a time and report their progress and throughput
+ * in the log.
+ */
+public class DataDumper {
+
+    private static final int CHUNK_CHARS = 64 * 1024;
+
+    private static final char[] END = new char[0];
+
+    private final Logger logger = Logger.getLogger(DataDumper.class.getName());
+
+    private EntityDao entityDao;
+
+    private ValueScanner blobStore;
+
+    private String dumpFolder = System.getProperty("java.io.tmpdir");
+
+    private ExportType exportType = ExportType.text_csv;
+
+    private int threads = 4;
+
+    private int queuedChunks = 4;
+
+    private ExecutorService dumps;
+
+    private ExecutorService readers;
+
+    private final AtomicLong dumpsCompleted = new AtomicLong();
+
+    private final AtomicLong pointsDumped = new AtomicLong();
+
+    private final AtomicLong valuesDumped = new AtomicLong();
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile String progress = "idle";
+
+    public void setEntityDao(final EntityDao entityDao) {
+        this.entityDao = entityDao;
+    }
+
+    public void setBlobStore(final ValueScanner blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    public void setDumpFolder(final String dumpFolder) {
+        this.dumpFolder = dumpFolder;
+    }
+
+    /**
+     * {@link ExportType#json} writes json lines, anything else csv
+     */
+    public void setExportType(final ExportType exportType) {
+        this.exportType = exportType;
+    }
+
+    public void setThreads(final int threads) {
+        this.threads = threads;
+    }
+
+    public void setQueuedChunks(final int queuedChunks) {
+        this.queuedChunks = queuedChunks;
+    }
+
+    @PostConstruct
+    public void start() {
+        dumps = Executors.newSingleThreadExecutor(daemon("data-dump"));
+        readers = Executors.newFixedThreadPool(threads, daemon("data-dump-reader"));
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (dumps != null) {
+            dumps.shutdownNow();
+        }
+        if (readers != null) {
+            readers.shutdownNow();
+        }
+    }
+
+    /**
+     * queues a dump of the entity's points for the timespan, null for all time
+     */
+    public void submit(final User user, final Entity entity, final Timespan timespan) {
+        dumps.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dump(user, entity, timespan);
+                } catch (Exception ex) {
+                    failures.incrementAndGet();
+                    progress = "failed: " + ex.getMessage();
+                    logger.log(Level.WARNING, "data dump of " + entity.getKey() + " failed", ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * dumps on the calling thread
+     *
+     * @return the archive written
+     */
+    File dump(final User user, final Entity entity, final Timespan timespan) throws IOException, InterruptedException {
+        final Range<Date> range = timespan == null ? Range.<Date>all() : Range.closed(timespan.getStart(), timespan.getEnd());
+        final List<Point> points = findPoints(user, entity);
+        final ValueFormatter formatter = new ValueFormatter(exportType);
+        final String name = safeName(user.getKey()) + "-" + safeName(entity.getKey()) + "-" + System.currentTimeMillis() + ".zip";
+        final File archive = new File(dumpFolder, name);
+        final File temp = new File(dumpFolder, name + ".tmp");
+
+        final long started = System.currentTimeMillis();
+        final List<PointStream> streams = new ArrayList<>(points.size());
+        for (final Point point : points) {
+            final PointStream stream = new PointStream(point, range, formatter);
+            streams.add(stream);
+            readers.execute(stream);
+        }
+        long values = 0;
+        final Set<String> names = new HashSet<>();
+        try (CountingOutputStream counting = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath())));
+             ZipOutputStream zip = new ZipOutputStream(counting, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < streams.size(); i++) {
+                final PointStream stream = streams.get(i);
+                String entryName = safeName(stream.point.getName().getValue()) + "." + formatter.getExtension();
+                if (!names.add(entryName)) {
+                    entryName = safeName(stream.point.getName().getValue()) + "-" + safeName(stream.point.getKey())
+                            + "." + formatter.getExtension();
+                }
+                zip.putNextEntry(new ZipEntry(entryName));
+                char[] chunk;
+                while ((chunk = stream.chunks.take()) != END) {
+                    zip.write(new String(chunk).getBytes(StandardCharsets.UTF_8));
+                }
+                zip.closeEntry();
+                if (stream.failure != null) {
+                    throw new IOException("could not read " + stream.point.getKey(), stream.failure);
+                }
+                values += stream.values;
+                pointsDumped.incrementAndGet();
+                valuesDumped.addAndGet(stream.values);
+                progress = report(entity, i + 1, streams.size(), values, counting.count, started);
+            }
+            zip.finish();
+            bytesWritten.addAndGet(counting.count);
+        } catch (IOException | InterruptedException | RuntimeException ex) {
+            for (final PointStream stream : streams) {
+                stream.cancelled = true;
+                stream.chunks.clear();
+            }
+            Files.deleteIfExists(temp.toPath());
+            throw ex;
+        }
+        Files.move(temp.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        dumpsCompleted.incrementAndGet();
+        logger.info("dumped " + progress + " to " + archive);
+        return archive;
+    }
+
+    /**
+     * the entity itself if it is a point, every point the user owns if it is the user, otherwise its child points
+     */
+    private List<Point> findPoints(final User user, final Entity entity) {
+        final List<Point> points = new ArrayList<>();
+        if (entity.getEntityType() == EntityType.point && entity instanceof Point) {
+            points.add((Point) entity);
+            return points;
+        }
+        final boolean account = entity.getEntityType() == EntityType.user;
+        long pos = 0;
+        List<Point> sample;
+        while (!(sample = entityDao.getPoint(pos++)).isEmpty()) {
+            final Point point = sample.get(0);
+            if (account ? user.getKey().equals(point.getOwner()) : entity.getKey().equals(point.getParent())) {
+                points.add(point);
+            }
+        }
+        return points;
+    }
+
+    private static String report(final Entity entity, final int done, final int total, final long values,
+                                 final long bytes, final long started) {
+        final long seconds = Math.max(1, (System.currentTimeMillis() - started) / 1000);
+        return entity.getKey() + ": " + done + " of " + total + " points, " + values + " values, " + bytes / 1024
+                + " KB compressed, " + values / seconds + " values/s";
+    }
+
+    private static String safeName(final String name) {
+        return name == null ? "" : name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * the state of the running dump, or how the last one ended
+     */
+    public String getProgress() {
+        return progress;
+    }
+
+    public long getDumpsCompleted() {
+        return dumpsCompleted.get();
+    }
+
+    public long getPointsDumped() {
+        return pointsDumped.get();
+    }
+
+    public long getValuesDumped() {
+        return valuesDumped.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            private final AtomicLong count = new AtomicLong();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * scans one point into its bounded queue of rendered chunks, ending with END
+     */
+    private final class PointStream implements Runnable {
+
+        private final Point point;
+        private final Range<Date> range;
+        private final ValueFormatter formatter;
+        private final BlockingQueue<char[]> chunks = new ArrayBlockingQueue<>(queuedChunks);
+        private volatile boolean cancelled;
+        private volatile Exception failure;
+        private long values;
+
+        private PointStream(final Point point, final Range<Date> range, final ValueFormatter formatter) {
+            this.point = point;
+            this.range = range;
+            this.formatter = formatter;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final StringBuilder out = new StringBuilder(CHUNK_CHARS + 256);
+                if (formatter.header() != null) {
+                    out.append(formatter.header()).append('\n');
+                }
+                final Iterator<Value> scan = blobStore.scan(point, range, ScanOrder.ascending, Integer.MAX_VALUE);
+                while (scan.hasNext() && !cancelled) {
+                    formatter.append(out, scan.next());
+                    values++;
+                    if (out.length() >= CHUNK_CHARS) {
+                        put(out);
+                    }
+                }
+                put(out);
+            } catch (Exception ex) {
+                failure = ex;
+            } finally {
+                try {
+                    if (!cancelled) {
+                        chunks.put(END);
+                    }
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void put(final StringBuilder out) throws InterruptedException {
+            if (out.length() > 0 && !cancelled) {
+                final char[] chunk = new char[out.length()];
+                out.getChars(0, out.length(), chunk, 0);
+                chunks.put(chunk);
+                out.setLength(0);
+            }
+        }
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private long count;
+
+        private CountingOutputStream(final OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
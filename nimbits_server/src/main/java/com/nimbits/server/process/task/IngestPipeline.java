@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.process.task;
+
+import com.nimbits.client.model.point.Point;
+import com.nimbits.client.model.user.User;
+import com.nimbits.client.model.value.Value;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records values off the request thread, for {@link TaskService#startRecordValueTask}. A value passes through
+ * a chain of stages, each with its own workers. A stage is split into partitions, one worker and one bounded
+ * queue each, and a value always goes to the partition its point key hashes to, so the values of a point are
+ * handled in the order they were submitted while different points run in parallel.
+ *
+ * When a partition of the first stage is full, submitting waits up to offerTimeoutMillis and then throws
+ * {@link RejectedExecutionException}, so an overloaded server pushes back on its clients instead of queueing
+ * without bound. Later stages block the stage before them the same way. Queue depth, throughput and latency are
+ * kept per stage.
+ *
+ * The pipeline starts with a single record stage running {@link ValueTask#recordValue}, which checks alerts,
+ * runs calculations and subscriptions and stores the value. Further stages can be added with {@link #addStage}
+ * before the pipeline starts.
+ */
+public class IngestPipeline {
+
+    private final Logger logger = Logger.getLogger(IngestPipeline.class.getName());
+
+    private ValueTask valueTask;
+
+    private int partitions = 8;
+
+    private int queueCapacity = 1024;
+
+    private long offerTimeoutMillis = 2000;
+
+    private long drainSeconds = 30;
+
+    private final List<Stage> stages = new ArrayList<>();
+
+    private volatile boolean accepting;
+
+    /**
+     * one stage's work on a submitted value
+     */
+    public interface Handler {
+        void handle(Item item) throws Exception;
+    }
+
+    /**
+     * a value on its way through the pipeline
+     */
+    public static final class Item {
+
+        private final User user;
+        private final Point point;
+        private final Value value;
+        private final boolean preAuthorised;
+        private long enqueued;
+
+        private Item(final User user, final Point point, final Value value, final boolean preAuthorised) {
+            this.user = user;
+            this.point = point;
+            this.value = value;
+            this.preAuthorised = preAuthorised;
+        }
+
+        public User getUser() {
+            return user;
+        }
+
+        public Point getPoint() {
+            return point;
+        }
+
+        public Value getValue() {
+            return value;
+        }
+
+        public boolean isPreAuthorised() {
+            return preAuthorised;
+        }
+    }
+
+    public void setValueTask(final ValueTask valueTask) {
+        this.valueTask = valueTask;
+    }
+
+    public void setPartitions(final int partitions) {
+        this.partitions = partitions;
+    }
+
+    public void setQueueCapacity(final int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setOfferTimeoutMillis(final long offerTimeoutMillis) {
+        this.offerTimeoutMillis = offerTimeoutMillis;
+    }
+
+    public void setDrainSeconds(final long drainSeconds) {
+        this.drainSeconds = drainSeconds;
+    }
+
+    /**
+     * appends a stage, only before the pipeline starts
+     */
+    public synchronized void addStage(final String name, final Handler handler) {
+        if (accepting) {
+            throw new IllegalStateException("stages can not be added to a running pipeline");
+        }
+        stages.add(new Stage(name, handler));
+    }
+
+    @PostConstruct
+    public synchronized void start() {
+        stages.add(0, new Stage("record", new Handler() {
+            @Override
+            public void handle(final Item item) {
+                valueTask.recordValue(item.value, item.user, item.point, item.preAuthorised);
+            }
+        }));
+        for (int i = 0; i < stages.size(); i++) {
+            stages.get(i).start(i + 1 < stages.size() ? stages.get(i + 1) : null);
+        }
+        accepting = true;
+    }
+
+    /**
+     * stops taking values and gives the queued ones drainSeconds to finish
+     */
+    @PreDestroy
+    public void stop() {
+        accepting = false;
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(drainSeconds);
+        for (final Stage stage : stages) {
+            stage.stop(deadline);
+        }
+    }
+
+    /**
+     * Queues the value behind any earlier values of the same point.
+     *
+     * @throws RejectedExecutionException if the point's partition stayed full for offerTimeoutMillis or the
+     *                                    pipeline is stopped
+     */
+    public void submit(final User user, final Point point, final Value value, final boolean preAuthorised) {
+        if (!accepting) {
+            throw new RejectedExecutionException("value ingest is not running");
+        }
+        final Item item = new Item(user, point, value, preAuthorised);
+        try {
+            if (!stages.get(0).offer(item, offerTimeoutMillis)) {
+                throw new RejectedExecutionException("value ingest queue for " + point.getKey() + " is full");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("interrupted while queueing a value for " + point.getKey());
+        }
+    }
+
+    public List<Stage> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * values queued in every stage
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (final Stage stage : stages) {
+            depth += stage.getQueueDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * one step of the pipeline, with a worker and a bounded queue per partition
+     */
+    public final class Stage {
+
+        private final String name;
+        private final Handler handler;
+        private final List<BlockingQueue<Item>> queues = new ArrayList<>();
+        private final List<Thread> workers = new ArrayList<>();
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong latencyNanos = new AtomicLong();
+        private final AtomicLong maxLatencyNanos = new AtomicLong();
+        private volatile boolean running;
+
+        private Stage(final String name, final Handler handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+
+        private void start(final Stage next) {
+            running = true;
+            for (int i = 0; i < partitions; i++) {
+                final BlockingQueue<Item> queue = new ArrayBlockingQueue<>(queueCapacity);
+                queues.add(queue);
+                final Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        work(queue, next);
+                    }
+                }, "ingest-" + name + "-" + i);
+                worker.setDaemon(true);
+                workers.add(worker);
+                worker.start();
+            }
+        }
+
+        private boolean offer(final Item item, final long timeoutMillis) throws InterruptedException {
+            item.enqueued = System.nanoTime();
+            final int partition = (item.point.getKey().hashCode() & Integer.MAX_VALUE) % queues.size();
+            return queues.get(partition).offer(item, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void work(final BlockingQueue<Item> queue, final Stage next) {
+            while (running || !queue.isEmpty()) {
+                final Item item;
+                try {
+                    item = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                if (item == null) {
+                    continue;
+                }
+                try {
+                    handler.handle(item);
+                } catch (Exception ex) {
+                    failures.incrementAndGet();
+                    logger.log(Level.WARNING, name + " failed for a value of " + item.point.getKey(), ex);
+                }
+                final long latency = System.nanoTime() - item.enqueued;
+                processed.incrementAndGet();
+                latencyNanos.addAndGet(latency);
+                long max = maxLatencyNanos.get();
+                while (latency > max && !maxLatencyNanos.compareAndSet(max, latency)) {
+                    max = maxLatencyNanos.get();
+                }
+                if (next != null) {
+                    try {
+                        // waiting here holds back this partition, which is how a slow stage slows the ones before it
+                        next.offer(item, Long.MAX_VALUE);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void stop(final long deadline) {
+            running = false;
+            for (final Thread worker : workers) {
+                try {
+                    worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (worker.isAlive()) {
+                    worker.interrupt();
+                }
+            }
+            final int dropped = getQueueDepth();
+            if (dropped > 0) {
+                logger.warning(name + " stopped with " + dropped + " values still queued");
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getQueueDepth() {
+            int depth = 0;
+            for (final BlockingQueue<Item> queue : queues) {
+                depth += queue.size();
+            }
+            return depth;
+        }
+
+        public long getProcessed() {
+            return processed.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * mean time from queueing to done, in microseconds
+         */
+        public long getMeanLatencyMicros() {
+            final long count = processed.get();
+            return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(latencyNanos.get() / count);
+        }
+
+        public long getMaxLatencyMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos.get());
+        }
+    }
+}
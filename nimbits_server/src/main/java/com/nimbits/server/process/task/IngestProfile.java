@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.process.task;
+
+import com.nimbits.client.enums.AlertType;
+import com.nimbits.client.enums.FilterType;
+import com.nimbits.client.model.point.Point;
+
+/**
+ * The filter and alarm settings of a point read once into final primitives, so checking a value on its way in is
+ * a few compares on doubles with no model lookups and no allocation. A value the filter drops is turned away
+ * before anything is built for it.
+ *
+ * Profiles are immutable, a point whose settings change gets a new one, see {@link IngestProfiles}.
+ */
+public final class IngestProfile {
+
+    private static final int NONE = 0;
+    private static final int FIXED = 1;
+    private static final int PERCENTAGE = 2;
+    private static final int CEILING = 3;
+    private static final int FLOOR = 4;
+
+    private final String key;
+    private final FilterType filterType;
+    private final double filterValue;
+    private final int filter;
+    private final double bound;
+    private final boolean highAlarmOn;
+    private final double highAlarm;
+    private final boolean lowAlarmOn;
+    private final double lowAlarm;
+
+    private IngestProfile(final Point point) {
+        key = point.getKey();
+        filterType = point.getFilterType();
+        filterValue = point.getFilterValue();
+        highAlarmOn = point.isHighAlarmOn();
+        highAlarm = point.getHighAlarm();
+        lowAlarmOn = point.isLowAlarmOn();
+        lowAlarm = point.getLowAlarm();
+        if (filterType == null) {
+            filter = NONE;
+            bound = 0;
+            return;
+        }
+        switch (filterType) {
+            case fixedHysteresis:
+                filter = FIXED;
+                bound = filterValue;
+                break;
+            case percentageHysteresis:
+                filter = filterValue > 0 ? PERCENTAGE : NONE;
+                bound = filterValue / 100;
+                break;
+            case ceiling:
+                filter = CEILING;
+                bound = filterValue;
+                break;
+            case floor:
+                filter = FLOOR;
+                bound = filterValue;
+                break;
+            default:
+                filter = NONE;
+                bound = 0;
+        }
+    }
+
+    public static IngestProfile compile(final Point point) {
+        return new IngestProfile(point);
+    }
+
+    /**
+     * @return true if the profile was compiled from the point's current settings
+     */
+    public boolean isCurrent(final Point point) {
+        return key.equals(point.getKey())
+                && filterType == point.getFilterType()
+                && Double.compare(filterValue, point.getFilterValue()) == 0
+                && highAlarmOn == point.isHighAlarmOn()
+                && Double.compare(highAlarm, point.getHighAlarm()) == 0
+                && lowAlarmOn == point.isLowAlarmOn()
+                && Double.compare(lowAlarm, point.getLowAlarm()) == 0;
+    }
+
+    /**
+     * @return true when the point's filter drops the value given the value before it
+     */
+    public boolean ignores(final double previous, final double d) {
+        switch (filter) {
+            case FIXED:
+                return Math.abs(d - previous) <= bound;
+            case PERCENTAGE:
+                return Math.abs(d - previous) <= Math.abs(previous * bound);
+            case CEILING:
+                return d >= bound;
+            case FLOOR:
+                return d <= bound;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if the filter looks at no value but the new one, ceiling and floor
+     */
+    public boolean ignoresAlone(final double d) {
+        return filter == CEILING && d >= bound || filter == FLOOR && d <= bound;
+    }
+
+    /**
+     * @return true if the filter compares a value with the one before it
+     */
+    public boolean isHysteresis() {
+        return filter == FIXED || filter == PERCENTAGE;
+    }
+
+    public AlertType classify(final double d) {
+        if (highAlarmOn && d >= highAlarm) {
+            return AlertType.HighAlert;
+        }
+        if (lowAlarmOn && d <= lowAlarm) {
+            return AlertType.LowAlert;
+        }
+        return AlertType.OK;
+    }
+
+    public String getKey() {
+        return key;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.process.task;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.nimbits.client.model.point.Point;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Caches the compiled {@link IngestProfile} of each point by key. A cached profile is checked against the point
+ * it is asked for and recompiled if the point's settings changed, so a stale profile is never used. Whatever
+ * updates points should still call {@link #invalidate} so the old profile does not linger.
+ */
+public class IngestProfiles {
+
+    private long maxProfiles = 100000;
+
+    private Cache<String, IngestProfile> cache;
+
+    public void setMaxProfiles(final long maxProfiles) {
+        this.maxProfiles = maxProfiles;
+    }
+
+    @PostConstruct
+    public void start() {
+        cache = CacheBuilder.newBuilder().maximumSize(maxProfiles).recordStats().build();
+    }
+
+    /**
+     * @return the point's profile, compiled if it is not cached or the point changed since
+     */
+    public IngestProfile get(final Point point) {
+        final IngestProfile cached = cache.getIfPresent(point.getKey());
+        if (cached != null && cached.isCurrent(point)) {
+            return cached;
+        }
+        final IngestProfile profile = IngestProfile.compile(point);
+        cache.put(point.getKey(), profile);
+        return profile;
+    }
+
+    /**
+     * drops the profile of a point that was updated or deleted
+     */
+    public void invalidate(final String key) {
+        cache.invalidate(key);
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.process.task;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.nimbits.client.model.point.Point;
+import com.nimbits.server.transaction.entity.dao.EntityDao;
+import com.nimbits.server.transaction.entity.service.EntityService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs {@link EntityService#doPointMaint} over every point, for {@link TaskService#startPointTask}. A run pages
+ * points batchSize at a time, splits each batch over a pool of workers and waits for it before paging the next,
+ * so nothing recurses and at most one batch is in memory.
+ *
+ * The position after every finished batch is checkpointed to a file. A run that is cut short, by a restart or
+ * an error, resumes from there the next time a run starts at position 0. The checkpoint also keeps the number of
+ * points the last complete run saw, and the next run paces itself to spread that many points over spreadFraction
+ * of intervalSeconds, the cron interval, instead of maintaining them all in one burst.
+ */
+public class PointMaintenanceScheduler {
+
+    private final Logger logger = Logger.getLogger(PointMaintenanceScheduler.class.getName());
+
+    private EntityDao entityDao;
+
+    private EntityService entityService;
+
+    private int threads = 4;
+
+    private int batchSize = 200;
+
+    private long intervalSeconds = TimeUnit.HOURS.toSeconds(1);
+
+    private double spreadFraction = 0.8;
+
+    private String checkpointFile = new File(System.getProperty("java.io.tmpdir"), "point-maintenance.checkpoint").getPath();
+
+    private ExecutorService runner;
+
+    private ExecutorService workers;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final AtomicLong runs = new AtomicLong();
+
+    private final AtomicLong pointsMaintained = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile long position;
+
+    private volatile long lastRunMillis;
+
+    public void setEntityDao(final EntityDao entityDao) {
+        this.entityDao = entityDao;
+    }
+
+    public void setEntityService(final EntityService entityService) {
+        this.entityService = entityService;
+    }
+
+    public void setThreads(final int threads) {
+        this.threads = threads;
+    }
+
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * how often the cron starts a run
+     */
+    public void setIntervalSeconds(final long intervalSeconds) {
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    public void setSpreadFraction(final double spreadFraction) {
+        this.spreadFraction = spreadFraction;
+    }
+
+    public void setCheckpointFile(final String checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    @PostConstruct
+    public void start() {
+        runner = Executors.newSingleThreadExecutor(daemon("point-maintenance"));
+        workers = Executors.newFixedThreadPool(threads, daemon("point-maintenance-worker"));
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (runner != null) {
+            runner.shutdownNow();
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts a run in the background unless one is already going.
+     *
+     * @param from the position to start at, 0 resumes an interrupted run or starts a new one
+     * @return false if a run is already going
+     */
+    public boolean submit(final long from) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        runner.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runFrom(from);
+                } catch (Exception ex) {
+                    failures.incrementAndGet();
+                    logger.log(Level.WARNING, "point maintenance stopped at " + position + ", the next run resumes there", ex);
+                } finally {
+                    running.set(false);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * runs on the calling thread
+     *
+     * @return the number of points maintained
+     */
+    long runFrom(final long from) throws IOException, InterruptedException, ExecutionException {
+        final long[] checkpoint = readCheckpoint();
+        final long lastTotal = checkpoint[1];
+        long pos = from == 0 ? checkpoint[0] : from;
+        final RateLimiter limiter = lastTotal > 0 && intervalSeconds > 0
+                ? RateLimiter.create(Math.max(0.1, lastTotal / (intervalSeconds * spreadFraction)))
+                : null;
+        if (pos > 0) {
+            logger.info("resuming point maintenance at " + pos);
+        }
+
+        long maintained = 0;
+        while (true) {
+            final List<Point> batch = new ArrayList<>(batchSize);
+            List<Point> sample;
+            while (batch.size() < batchSize && !(sample = entityDao.getPoint(pos)).isEmpty()) {
+                batch.add(sample.get(0));
+                pos++;
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            maintain(batch, limiter);
+            maintained += batch.size();
+            position = pos;
+            writeCheckpoint(pos, lastTotal);
+            if (batch.size() < batchSize) {
+                break;
+            }
+        }
+        writeCheckpoint(0, pos);
+        position = 0;
+        runs.incrementAndGet();
+        lastRunMillis = System.currentTimeMillis();
+        logger.info("point maintenance finished, " + maintained + " points maintained, " + pos + " points in total");
+        return maintained;
+    }
+
+    /**
+     * splits the batch over the workers and waits for all of them
+     */
+    private void maintain(final List<Point> batch, final RateLimiter limiter) throws InterruptedException, ExecutionException {
+        final int parts = Math.min(threads, batch.size());
+        final List<Callable<Void>> tasks = new ArrayList<>(parts);
+        for (int i = 0; i < parts; i++) {
+            final int part = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int j = part; j < batch.size(); j += parts) {
+                        if (limiter != null) {
+                            limiter.acquire();
+                        }
+                        final Point point = batch.get(j);
+                        try {
+                            entityService.doPointMaint(point);
+                            pointsMaintained.incrementAndGet();
+                        } catch (RuntimeException ex) {
+                            // one broken point must not hold up the rest of the run
+                            failures.incrementAndGet();
+                            logger.log(Level.WARNING, "maintenance of " + point.getKey() + " failed", ex);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        for (final Future<Void> future : workers.invokeAll(tasks)) {
+            future.get();
+        }
+    }
+
+    /**
+     * @return the position to resume at and the point count of the last complete run
+     */
+    private long[] readCheckpoint() throws IOException {
+        final File file = new File(checkpointFile);
+        if (!file.exists()) {
+            return new long[]{0, 0};
+        }
+        try {
+            final String[] fields = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+            return new long[]{Long.parseLong(fields[0]), fields.length > 1 ? Long.parseLong(fields[1]) : 0};
+        } catch (NumberFormatException ex) {
+            return new long[]{0, 0};
+        }
+    }
+
+    private void writeCheckpoint(final long pos, final long total) throws IOException {
+        final File file = new File(checkpointFile);
+        final File temp = new File(checkpointFile + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(pos + " " + total);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * where the running or interrupted run has got to, 0 between runs
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public long getRuns() {
+        return runs.get();
+    }
+
+    public long getPointsMaintained() {
+        return pointsMaintained.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public Date getLastRun() {
+        return lastRunMillis == 0 ? null : new Date(lastRunMillis);
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            private final AtomicLong count = new AtomicLong();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        };
+    }
+}
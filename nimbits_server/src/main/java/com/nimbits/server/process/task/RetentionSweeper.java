@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.process.task;
+
+import com.nimbits.client.model.point.Point;
+import com.nimbits.server.io.BlobStore;
+import com.nimbits.server.transaction.entity.dao.EntityDao;
+import com.nimbits.server.transaction.value.service.ValueService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodic purge of expired values. Each sweep walks every point, collects the ones with an expire setting in
+ * chunks, and fans each chunk out over a small fork join pool of low priority threads that drop the point's
+ * expired segments through {@link ValueService#deleteExpiredData}. The pool is also where blob files handed to
+ * {@link TaskService#startDeleteBlobTask} are unlinked, off the caller's thread.
+ */
+public class RetentionSweeper {
+
+    private static final int CHUNK = 256;
+
+    private static final int POINTS_PER_TASK = 8;
+
+    private final Logger logger = Logger.getLogger(RetentionSweeper.class.getName());
+
+    private EntityDao entityDao;
+
+    private ValueService valueService;
+
+    private BlobStore blobStore;
+
+    private boolean enabled = true;
+
+    private int parallelism = 2;
+
+    private long intervalSeconds = TimeUnit.HOURS.toSeconds(6);
+
+    private ForkJoinPool pool;
+
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicLong sweeps = new AtomicLong();
+
+    private final AtomicLong pointsScanned = new AtomicLong();
+
+    private final AtomicLong pointsSwept = new AtomicLong();
+
+    private final AtomicLong segmentsDropped = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile boolean running;
+
+    private volatile long lastSweepDurationMillis;
+
+    public void setEntityDao(final EntityDao entityDao) {
+        this.entityDao = entityDao;
+    }
+
+    public void setValueService(final ValueService valueService) {
+        this.valueService = valueService;
+    }
+
+    public void setBlobStore(final BlobStore blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setParallelism(final int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public void setIntervalSeconds(final long intervalSeconds) {
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    @PostConstruct
+    public void start() {
+        pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+                final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("retention-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        }, null, false);
+        if (!enabled) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "retention-sweep");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                } catch (RuntimeException ex) {
+                    logger.log(Level.WARNING, "retention sweep failed", ex);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * one pass over every point, returns once all expired segments found are dropped
+     *
+     * @return the number of segments dropped by this sweep
+     */
+    public synchronized long sweep() {
+        running = true;
+        final long started = System.currentTimeMillis();
+        final long dropped = segmentsDropped.get();
+        try {
+            List<Point> chunk = new ArrayList<>(CHUNK);
+            long pos = 0;
+            List<Point> sample;
+            while (!(sample = entityDao.getPoint(pos++)).isEmpty()) {
+                pointsScanned.incrementAndGet();
+                final Point point = sample.get(0);
+                if (point.getExpire() > 0) {
+                    chunk.add(point);
+                    if (chunk.size() == CHUNK) {
+                        pool.invoke(new Sweep(chunk, 0, chunk.size()));
+                        chunk = new ArrayList<>(CHUNK);
+                    }
+                }
+            }
+            if (!chunk.isEmpty()) {
+                pool.invoke(new Sweep(chunk, 0, chunk.size()));
+            }
+        } finally {
+            running = false;
+            lastSweepDurationMillis = System.currentTimeMillis() - started;
+            sweeps.incrementAndGet();
+        }
+        final long result = segmentsDropped.get() - dropped;
+        logger.info("retention sweep done in " + lastSweepDurationMillis + " ms, dropped " + result + " segments");
+        return result;
+    }
+
+    /**
+     * unlinks a blob file on the retention pool
+     */
+    public void deleteBlob(final String key) {
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blobStore.deleteBlobStore(key);
+                } catch (RuntimeException ex) {
+                    failures.incrementAndGet();
+                    logger.log(Level.WARNING, "could not delete blob " + key, ex);
+                }
+            }
+        });
+    }
+
+    private void sweep(final Point point) {
+        try {
+            segmentsDropped.addAndGet(valueService.deleteExpiredData(point));
+            pointsSwept.incrementAndGet();
+        } catch (RuntimeException ex) {
+            failures.incrementAndGet();
+            logger.log(Level.WARNING, "could not drop expired data of " + point.getKey(), ex);
+        }
+    }
+
+    private class Sweep extends RecursiveAction {
+
+        private final List<Point> points;
+        private final int from;
+        private final int to;
+
+        Sweep(final List<Point> points, final int from, final int to) {
+            this.points = points;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= POINTS_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    sweep(points.get(i));
+                }
+            } else {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new Sweep(points, from, mid), new Sweep(points, mid, to));
+            }
+        }
+    }
+
+    public long getSweeps() {
+        return sweeps.get();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * points looked at so far, in the running sweep and all before it
+     */
+    public long getPointsScanned() {
+        return pointsScanned.get();
+    }
+
+    public long getPointsSwept() {
+        return pointsSwept.get();
+    }
+
+    public long getSegmentsDropped() {
+        return segmentsDropped.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * how long the last finished sweep took, 0 before the first one
+     */
+    public long getLastSweepDurationMillis() {
+        return lastSweepDurationMillis;
+    }
+}
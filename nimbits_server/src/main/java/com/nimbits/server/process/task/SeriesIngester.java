@@ -0,0 +1,472 @@
+/*
+ * Copyright (c) 2013 Nimbits Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.nimbits.server.process.task;
+
+import com.google.common.collect.Range;
+import com.google.gson.annotations.Expose;
+import com.nimbits.client.enums.AlertType;
+import com.nimbits.client.enums.EntityType;
+import com.nimbits.client.model.common.SimpleValue;
+import com.nimbits.client.model.entity.Entity;
+import com.nimbits.client.model.location.Location;
+import com.nimbits.client.model.location.LocationFactory;
+import com.nimbits.client.model.point.Point;
+import com.nimbits.client.model.user.User;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.value.impl.ValueDataModel;
+import com.nimbits.client.model.value.impl.ValueFactory;
+import com.nimbits.server.io.BlobStoreImpl;
+import com.nimbits.server.io.ScanOrder;
+import com.nimbits.server.io.SeriesReader;
+import com.nimbits.server.io.ValueBatch;
+import com.nimbits.server.transaction.entity.dao.EntityDao;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records a posted series, the points of a <code>POST /service/v2/series</code> body each carrying a batch of
+ * values. Points are handled in parallel. Each point's batch is sorted once and run through the point's compiled
+ * {@link IngestProfile} in a single pass, starting from the last stored value before the batch. What is left and
+ * newer than anything the point has, or at a timestamp its memtable still holds, goes to the memtable through
+ * {@link BlobStoreImpl#record}. Other older values are written with {@link BlobStoreImpl#backfill}, one delta
+ * segment per day they cover instead of one write per value.
+ * Values that pass are stored with the alert state the pass gave them.
+ *
+ * Unlike values recorded one at a time through {@link ValueTask#recordValue}, a posted series only stores its
+ * values. It does not trigger the point's subscriptions or calculations and sends no alert notifications, a
+ * device flushing a backlog would otherwise fire them once per buffered value. The result reports how many
+ * accepted values were in alarm instead.
+ *
+ * The result holds a count per point of the values accepted, dropped by the filter and rejected, so devices
+ * flushing an offline buffer know what made it.
+ */
+public class SeriesIngester {
+
+    private final Logger logger = Logger.getLogger(SeriesIngester.class.getName());
+
+    private EntityDao entityDao;
+
+    private BlobStoreImpl blobStore;
+
+    private IngestProfiles ingestProfiles;
+
+    private int threads = 4;
+
+    private int batchSize = 500;
+
+    private ExecutorService workers;
+
+    private final AtomicLong accepted = new AtomicLong();
+
+    private final AtomicLong filtered = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * what happened to the values posted for one point
+     */
+    public static final class Result {
+
+        @Expose
+        private final String key;
+        @Expose
+        private int accepted;
+        @Expose
+        private int filtered;
+        @Expose
+        private int rejected;
+        @Expose
+        private int alerts;
+        @Expose
+        private String error;
+
+        Result(final String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public int getAccepted() {
+            return accepted;
+        }
+
+        /**
+         * values the point's filter dropped, these are not errors
+         */
+        public int getFiltered() {
+            return filtered;
+        }
+
+        public int getRejected() {
+            return rejected;
+        }
+
+        /**
+         * accepted values in high or low alarm
+         */
+        public int getAlerts() {
+            return alerts;
+        }
+
+        /**
+         * why the values were rejected, null if none were
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+    /**
+     * a point being written, with the last value admitted so the filter carries over from batch to batch
+     */
+    private static final class Series {
+
+        private final Result result;
+        private Point point;
+        private IngestProfile profile;
+        private boolean seeded;
+        private boolean hasLast;
+        private double last;
+        private long lastTimestamp = Long.MIN_VALUE;
+        private Long newest;
+
+        private Series(final String key) {
+            result = new Result(key);
+        }
+    }
+
+    public void setEntityDao(final EntityDao entityDao) {
+        this.entityDao = entityDao;
+    }
+
+    public void setBlobStore(final BlobStoreImpl blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    public void setIngestProfiles(final IngestProfiles ingestProfiles) {
+        this.ingestProfiles = ingestProfiles;
+    }
+
+    public void setThreads(final int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * values per batch when streaming a body
+     */
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @PostConstruct
+    public void start() {
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicLong count = new AtomicLong();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "series-ingest-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * records the values of every posted point, in parallel, and waits for all of them
+     *
+     * @return a result per posted point, in the order they were posted
+     */
+    public List<Result> record(final User user, final List<Point> posted) throws InterruptedException {
+        final List<Callable<Result>> tasks = new ArrayList<>(posted.size());
+        for (final Point point : posted) {
+            tasks.add(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return record(user, point);
+                }
+            });
+        }
+        final List<Result> results = new ArrayList<>(posted.size());
+        final List<Future<Result>> futures = workers.invokeAll(tasks);
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (ExecutionException ex) {
+                final Result result = new Result(posted.get(i).getKey());
+                result.rejected = posted.get(i).getValues().size();
+                result.error = String.valueOf(ex.getCause());
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Records a series body as {@link SeriesReader} streams it, batchSize values at a time, without building the
+     * posted points and values. Each batch goes through the same filter and alarm pass and is written before the
+     * next is read, so the heap used does not depend on the size of the body.
+     *
+     * @return a result per point key, in the order the keys first appear in the body
+     */
+    public List<Result> record(final User user, final Reader body) throws IOException {
+        final Map<String, Series> seen = new LinkedHashMap<>();
+        new SeriesReader(batchSize).read(body, new SeriesReader.Sink() {
+            @Override
+            public void accept(final ValueBatch batch) {
+                Series series = seen.get(batch.getKey());
+                if (series == null) {
+                    series = open(user, batch.getKey());
+                    seen.put(batch.getKey(), series);
+                }
+                write(series, batch);
+            }
+        });
+        final List<Result> results = new ArrayList<>(seen.size());
+        for (final Series series : seen.values()) {
+            results.add(series.result);
+        }
+        return results;
+    }
+
+    private Result record(final User user, final Point posted) {
+        final Series series = open(user, posted.getKey());
+        final List<Value> values = posted.getValues();
+        if (series.point == null) {
+            reject(series, values.size(), null);
+            return series.result;
+        }
+
+        final List<Value> sorted = new ArrayList<>(values.size());
+        for (final Value value : values) {
+            if (value == null || value.getTimestamp() == null) {
+                reject(series, 1, "values without a timestamp");
+            } else {
+                sorted.add(value);
+            }
+        }
+        Collections.sort(sorted, new Comparator<Value>() {
+            @Override
+            public int compare(final Value a, final Value b) {
+                return a.getTimestamp().compareTo(b.getTimestamp());
+            }
+        });
+
+        final List<Value> kept = new ArrayList<>(sorted.size());
+        for (final Value value : sorted) {
+            final AlertType alert = admit(series, value.getTimestamp().getTime(), value.getDoubleValue());
+            if (alert != null) {
+                kept.add(alert == value.getAlertState() ? value : ValueFactory.createValueModel(value, alert));
+            }
+        }
+        store(series, kept);
+        return series.result;
+    }
+
+    private void write(final Series series, final ValueBatch batch) {
+        if (series.point == null) {
+            reject(series, batch.size(), null);
+            return;
+        }
+        final int[] order = order(batch);
+        final List<Value> kept = new ArrayList<>(batch.size());
+        for (final int i : order) {
+            final long timestamp = batch.timestamp(i);
+            final AlertType alert = admit(series, timestamp, batch.value(i));
+            if (alert != null) {
+                final Location location = Double.isNaN(batch.lat(i)) || Double.isNaN(batch.lng(i))
+                        ? LocationFactory.createEmptyLocation()
+                        : LocationFactory.createLocation(batch.lat(i), batch.lng(i));
+                kept.add(ValueFactory.createValueModel(location, batch.value(i), new Date(timestamp),
+                        ValueDataModel.getInstance(SimpleValue.getInstance(batch.note(i))), alert));
+            }
+        }
+        store(series, kept);
+    }
+
+    /**
+     * the batch's positions in timestamp order, a batch is usually already in order and is not sorted then
+     */
+    private static int[] order(final ValueBatch batch) {
+        final int[] order = new int[batch.size()];
+        if (batch.isAscending()) {
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            return order;
+        }
+        final Integer[] boxed = new Integer[batch.size()];
+        for (int i = 0; i < boxed.length; i++) {
+            boxed[i] = i;
+        }
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer a, final Integer b) {
+                return Long.compare(batch.timestamp(a), batch.timestamp(b));
+            }
+        });
+        for (int i = 0; i < order.length; i++) {
+            order[i] = boxed[i];
+        }
+        return order;
+    }
+
+    private Series open(final User user, final String key) {
+        final Series series = new Series(key);
+        final List<Entity> found = key == null
+                ? Collections.<Entity>emptyList()
+                : entityDao.getEntityByKey(user, key, EntityType.point);
+        if (!found.isEmpty() && found.get(0) instanceof Point) {
+            series.point = (Point) found.get(0);
+            series.profile = ingestProfiles.get(series.point);
+        } else {
+            series.result.error = "point not found";
+        }
+        return series;
+    }
+
+    /**
+     * Runs one value through the point's compiled profile. Ceiling and floor look at the value alone, the
+     * hysteresis filters compare it with the value before it, which is looked up in the store for the first value
+     * and again when one is older than the last one admitted.
+     *
+     * @return the value's alert state, null if the filter drops it
+     */
+    private AlertType admit(final Series series, final long timestamp, final double d) {
+        final IngestProfile profile = series.profile;
+        if (profile.ignoresAlone(d)) {
+            return drop(series);
+        }
+        if (profile.isHysteresis()) {
+            if (!series.seeded || timestamp < series.lastTimestamp) {
+                final Value previous = lastBefore(series.point, new Date(timestamp));
+                series.hasLast = previous != null;
+                series.last = previous == null ? 0 : previous.getDoubleValue();
+                series.seeded = true;
+            }
+            if (series.hasLast && profile.ignores(series.last, d)) {
+                return drop(series);
+            }
+        }
+        series.hasLast = true;
+        series.last = d;
+        series.lastTimestamp = timestamp;
+        final AlertType alert = profile.classify(d);
+        if (alert != AlertType.OK) {
+            series.result.alerts++;
+        }
+        return alert;
+    }
+
+    private AlertType drop(final Series series) {
+        series.result.filtered++;
+        filtered.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Values after the newest one the point has go to its memtable and reach a segment with the next flush, and
+     * so does a value for a timestamp the memtable still holds, so it replaces the value there. Only other older
+     * values are written as delta segments with {@link BlobStoreImpl#backfill}.
+     *
+     * @param kept the admitted values, oldest first
+     */
+    private void store(final Series series, final List<Value> kept) {
+        if (kept.isEmpty()) {
+            return;
+        }
+        try {
+            if (series.newest == null) {
+                final Iterator<Value> scan = blobStore.scan(series.point, Range.<Date>all(), ScanOrder.descending, 1);
+                series.newest = scan.hasNext() ? scan.next().getTimestamp().getTime() : Long.MIN_VALUE;
+            }
+            final List<Value> late = new ArrayList<>();
+            final List<Value> recent = new ArrayList<>();
+            for (final Value value : kept) {
+                final long timestamp = value.getTimestamp().getTime();
+                if (timestamp <= series.newest && !blobStore.isInMemtable(series.point, timestamp)) {
+                    late.add(value);
+                } else {
+                    recent.add(value);
+                }
+            }
+            if (!late.isEmpty()) {
+                blobStore.backfill(series.point, late);
+            }
+            if (!recent.isEmpty()) {
+                blobStore.record(series.point, recent);
+                series.newest = Math.max(series.newest, recent.get(recent.size() - 1).getTimestamp().getTime());
+            }
+            series.result.accepted += kept.size();
+            accepted.addAndGet(kept.size());
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "could not record the series of " + series.point.getKey(), ex);
+            reject(series, kept.size(), "could not store values: " + ex.getMessage());
+        }
+    }
+
+    private void reject(final Series series, final int count, final String error) {
+        series.result.rejected += count;
+        if (error != null) {
+            series.result.error = error;
+        }
+        rejected.addAndGet(count);
+    }
+
+    private Value lastBefore(final Point point, final Date timestamp) {
+        final Iterator<Value> scan = blobStore.scan(point, Range.lessThan(timestamp), ScanOrder.descending, 1);
+        return scan.hasNext() ? scan.next() : null;
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getFiltered() {
+        return filtered.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+}
@@ -18,14 +18,11 @@ import com.nimbits.client.model.point.Point;
 import com.nimbits.client.model.timespan.Timespan;
 import com.nimbits.client.model.user.User;
 import com.nimbits.client.model.value.Value;
-import com.nimbits.server.transaction.entity.dao.EntityDao;
-import com.nimbits.server.transaction.entity.service.EntityService;
 import com.nimbits.server.transaction.value.service.ValueService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
-import java.util.List;
 
 @Service
 public class TaskServiceImpl implements TaskService {
@@ -36,13 +33,19 @@ public class TaskServiceImpl implements TaskService {
     private ValueService valueService;
 
     @Autowired
-    private EntityService entityService;
+    private RetentionSweeper retentionSweeper;
 
     @Autowired
-    private EntityDao entityDao;
+    private BulkImporter bulkImporter;
 
     @Autowired
-    private ValueTask valueTask;
+    private DataDumper dataDumper;
+
+    @Autowired
+    private IngestPipeline ingestPipeline;
+
+    @Autowired
+    private PointMaintenanceScheduler pointMaintenanceScheduler;
 
 
 
@@ -58,17 +61,17 @@ public class TaskServiceImpl implements TaskService {
 
     @Override
     public void startDeleteBlobTask(String key) {
-
+        retentionSweeper.deleteBlob(key);
     }
 
     @Override
     public void startDataDumpTask(User user, Entity entity, Timespan timespan) {
-
+        dataDumper.submit(user, entity, timespan);
     }
 
     @Override
     public void startUploadTask(User user, Point entity, String blobKey) {
-
+        bulkImporter.submit(user, entity, blobKey, false);
     }
 
 
@@ -81,11 +84,7 @@ public class TaskServiceImpl implements TaskService {
 
     @Override
     public void startPointTask(long pos) {
-        List<Point> sample = entityDao.getPoint(pos);
-        if (! sample.isEmpty()) {
-            entityService.doPointMaint(sample.get(0));
-            startPointTask(++pos);
-        }
+        pointMaintenanceScheduler.submit(pos);
     }
 
     @Override
@@ -96,13 +95,7 @@ public class TaskServiceImpl implements TaskService {
 
     @Override
     public void startRecordValueTask(final User user, final Point entity, final Value value, final boolean preAuthorised) {
-      //  new Thread(new Runnable() {
-       //     @Override
-       //     public void run() {
-                valueTask.recordValue(value, user, entity, preAuthorised);
-        //    }
-       // }).run();
-
+        ingestPipeline.submit(user, entity, value, preAuthorised);
     }
 
 
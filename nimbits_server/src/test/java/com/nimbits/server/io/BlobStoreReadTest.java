@@ -0,0 +1,83 @@
+package com.nimbits.server.io;
+
+import com.google.common.collect.Range;
+import com.nimbits.client.enums.EntityType;
+import com.nimbits.client.enums.ProtectionLevel;
+import com.nimbits.client.model.common.impl.CommonFactory;
+import com.nimbits.client.model.entity.Entity;
+import com.nimbits.client.model.entity.EntityModelFactory;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.value.impl.ValueFactory;
+import com.nimbits.server.io.segment.SegmentWriter;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class BlobStoreReadTest {
+
+    /**
+     * a blob store over segment files in the default store folder, indexed without a database
+     */
+    private static class IndexedBlobStore extends BlobStoreImpl {
+
+        private final SegmentIndex index = new SegmentIndex();
+
+        @Override
+        SegmentIndex getSegmentIndex() {
+            return index;
+        }
+
+        private void segment(final long id, final double... valueAtSecond) throws Exception {
+            List<Value> values = new ArrayList<Value>();
+            for (int i = 0; i < valueAtSecond.length; i += 2) {
+                values.add(ValueFactory.createValueModel(valueAtSecond[i + 1], new Date((long) valueAtSecond[i] * 1000)));
+            }
+            String key = "read-test-" + UUID.randomUUID();
+            File file = new File(System.getProperty("java.io.tmpdir"), key);
+            file.deleteOnExit();
+            Files.write(file.toPath(), SegmentWriter.write(values));
+            index.add(new FakeSegment(key, id, file.length(), values.get(0).getTimestamp(),
+                    values.get(values.size() - 1).getTimestamp()));
+        }
+    }
+
+    private static Entity entity() {
+        Entity entity = EntityModelFactory.createEntity(CommonFactory.createName("p", EntityType.point), "",
+                EntityType.point, ProtectionLevel.everyone, "parent", "owner", "uuid");
+        entity.setKey("e");
+        return entity;
+    }
+
+    private static String render(final List<Value> values) {
+        StringBuilder sb = new StringBuilder();
+        for (Value value : values) {
+            sb.append(value.getTimestamp().getTime() / 1000).append('=').append(value.getDoubleValue()).append(' ');
+        }
+        return sb.toString().trim();
+    }
+
+    @Test
+    public void testParallelReadMatchesSerialRead() throws Exception {
+        IndexedBlobStore store = new IndexedBlobStore();
+        store.segment(1, 1, 1.0, 2, 2.0, 3, 3.0);
+        store.segment(2, 3, 30.0, 4, 4.0);
+        store.segment(3, 5, 5.0, 6, 6.0);
+        store.segment(4, 7, 7.0);
+        store.record(entity(), Collections.singletonList(ValueFactory.createValueModel(60.0, new Date(6000))));
+
+        String expected = "7=7.0 6=60.0 5=5.0 4=4.0 3=30.0 2=2.0 1=1.0";
+        assertEquals(expected, render(store.read(entity(), Range.<Date>all(), 1)));
+        assertEquals(expected, render(store.read(entity(), Range.<Date>all(), 4)));
+        assertEquals("4=4.0 3=30.0 2=2.0", render(store.read(entity(),
+                Range.closed(new Date(2000), new Date(4000)), 8)));
+    }
+}
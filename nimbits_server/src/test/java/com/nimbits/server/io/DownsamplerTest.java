@@ -0,0 +1,68 @@
+package com.nimbits.server.io;
+
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.value.impl.ValueFactory;
+import com.nimbits.server.io.segment.Rollup;
+import com.nimbits.server.io.segment.SegmentReader;
+import com.nimbits.server.io.segment.SegmentWriter;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class DownsamplerTest {
+
+    private static List<Value> sine(int count) {
+        List<Value> values = new ArrayList<Value>();
+        for (int i = 0; i < count; i++) {
+            values.add(ValueFactory.createValueModel(i == 5000 ? 100.0 : Math.sin(i / 500.0), new Date(i * 1000L)));
+        }
+        return values;
+    }
+
+    @Test
+    public void testLttb() {
+        List<Value> values = sine(20000);
+        List<Value> points = Downsampler.lttb(values.iterator(), 0, 19999000L, 200);
+        assertTrue(points.size() <= 200);
+        assertEquals(0L, points.get(0).getTimestamp().getTime());
+        assertEquals(19999000L, points.get(points.size() - 1).getTimestamp().getTime());
+        boolean spike = false;
+        for (Value point : points) {
+            spike |= point.getDoubleValue() == 100.0;
+        }
+        assertTrue(spike);
+        assertEquals(1, Downsampler.lttb(values.iterator(), 0, 19999000L, 1).size());
+    }
+
+    @Test
+    public void testMinMaxFromRollups() throws Exception {
+        List<Value> values = sine(20000);
+        ByteBuffer segment = ByteBuffer.wrap(SegmentWriter.write(values));
+        Rollup[] buckets = new Rollup[10];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Rollup();
+        }
+        SegmentReader.rollupBuckets(segment, 0, 19999000L, buckets);
+
+        for (int i = 0; i < buckets.length; i++) {
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (Value value : values) {
+                if (SegmentReader.bucket(value.getTimestamp().getTime(), 0, 19999000L, buckets.length) == i) {
+                    min = Math.min(min, value.getDoubleValue());
+                    max = Math.max(max, value.getDoubleValue());
+                }
+            }
+            assertEquals(min, buckets[i].getMin(), 0.0);
+            assertEquals(max, buckets[i].getMax(), 0.0);
+        }
+        assertEquals(20, Downsampler.minMax(buckets).size());
+    }
+}
@@ -0,0 +1,68 @@
+package com.nimbits.server.io;
+
+import com.nimbits.client.model.valueblobstore.ValueBlobStore;
+
+import java.util.Date;
+
+/**
+ * a segment index entry with no file behind it
+ */
+public class FakeSegment implements ValueBlobStore {
+
+    private final String key;
+    private final long id;
+    private final Date min;
+    private final Date max;
+    private final long length;
+
+    public FakeSegment(final String key, final long id, final long length, final Date min, final Date max) {
+        this.key = key;
+        this.id = id;
+        this.length = length;
+        this.min = min;
+        this.max = max;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getEntity() {
+        return "e";
+    }
+
+    public Date getTimestamp() {
+        return new Date(0);
+    }
+
+    public Date getMaxTimestamp() {
+        return max;
+    }
+
+    public Date getMinTimestamp() {
+        return min;
+    }
+
+    public String getBlobKey() {
+        return key;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public void validate() {
+    }
+
+    public Integer getVersion() {
+        return 2;
+    }
+
+    public String getEntityUUID() {
+        return "";
+    }
+
+    public int compareTo(final ValueBlobStore o) {
+        return min.compareTo(o.getMinTimestamp());
+    }
+}
@@ -0,0 +1,85 @@
+package com.nimbits.server.io;
+
+import com.google.common.collect.Range;
+import com.nimbits.client.enums.EntityType;
+import com.nimbits.client.enums.point.PointType;
+import com.nimbits.client.model.entity.Entity;
+import com.nimbits.client.model.entity.EntityModelFactory;
+import com.nimbits.client.model.point.Point;
+import com.nimbits.client.model.point.PointModelFactory;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.value.impl.ValueFactory;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class MemtableLogTest {
+
+    private static Point point(String key) {
+        Point point = PointModelFactory.createPoint(EntityModelFactory.createEntity(key, EntityType.point));
+        point.setKey(key);
+        point.setUUID("uuid-" + key);
+        point.setPointType(PointType.cumulative);
+        point.setPrecision(2);
+        return point;
+    }
+
+    private static List<Value> values(double... valueAtSecond) {
+        Value[] values = new Value[valueAtSecond.length / 2];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = ValueFactory.createValueModel(valueAtSecond[i * 2 + 1], new Date((long) valueAtSecond[i * 2] * 1000));
+        }
+        return Arrays.asList(values);
+    }
+
+    @Test
+    public void testReplaySkipsFlushedMemtables() throws Exception {
+        String folder = Files.createTempDirectory("memtable-log").toString();
+        MemtableLog log = new MemtableLog(folder, 256);
+        log.append(1, point("a"), values(1, 1.0, 2, 2.0));
+        log.append(2, point("b"), values(1, 10.0));
+        log.append(2, point("b"), values(2, 20.0, 3, 30.0));
+        log.sync();
+        log.flushed(Arrays.asList(1L));
+        // a crash, the log is never closed
+
+        MemtableLog reopened = new MemtableLog(folder, 256);
+        List<MemtableLog.Batch> replayed = reopened.getReplayed();
+        assertEquals(2, replayed.size());
+        Entity entity = replayed.get(0).getEntity();
+        assertEquals("b", entity.getKey());
+        assertEquals("uuid-b", entity.getUUID());
+        assertEquals(PointType.cumulative, ((Point) entity).getPointType());
+        assertEquals(2, ((Point) entity).getPrecision());
+        assertEquals(10.0, replayed.get(0).getValues().get(0).getDoubleValue(), 0.0);
+        assertEquals(3000L, replayed.get(1).getValues().get(1).getTimestamp().getTime());
+
+        reopened.dropReplayed();
+        reopened.close();
+        assertTrue(new MemtableLog(folder).getReplayed().isEmpty());
+    }
+
+    @Test
+    public void testRecordedValuesSurviveARestart() throws Exception {
+        String folder = Files.createTempDirectory("memtable-log").toString() + "/";
+        BlobStoreImpl store = new BlobStoreImpl();
+        store.openMemtableLog(folder);
+        store.record(point("a"), values(1, 1.0, 2, 2.0));
+        store.record(point("a"), values(2, 3.0));
+
+        BlobStoreImpl restarted = new BlobStoreImpl();
+        restarted.openMemtableLog(folder);
+        assertEquals(2, restarted.getMemtableSize());
+
+        BlobStoreImpl again = new BlobStoreImpl();
+        again.openMemtableLog(folder);
+        assertEquals(2, again.getMemtableSize());
+    }
+}
@@ -0,0 +1,87 @@
+package com.nimbits.server.io;
+
+import com.google.common.collect.Range;
+import com.nimbits.client.enums.EntityType;
+import com.nimbits.client.model.entity.Entity;
+import com.nimbits.client.model.entity.EntityModelFactory;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.value.impl.ValueFactory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class MemtableTest {
+
+    private static Entity point(String key) {
+        Entity entity = EntityModelFactory.createEntity(key, EntityType.point);
+        entity.setKey(key);
+        entity.setUUID(key);
+        return entity;
+    }
+
+    @Test
+    public void testSnapshotAndDays() throws Exception {
+        Calendar c = Calendar.getInstance();
+        c.set(2014, Calendar.MARCH, 1, 22, 0, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        long start = c.getTimeInMillis();
+
+        Entity entity = point("a");
+        Memtable memtable = new Memtable(entity);
+        List<Value> values = new ArrayList<Value>();
+        for (int i = 0; i < 240; i++) {
+            values.add(ValueFactory.createValueModel((double) i, new Date(start + i * 60000L)));
+        }
+        assertEquals(240, memtable.add(entity, values, null));
+        // a value recorded again replaces the old one
+        assertEquals(0, memtable.add(entity, Arrays.asList(ValueFactory.createValueModel(-1.0, new Date(start))), null));
+        assertEquals(240, memtable.size());
+
+        List<List<Value>> days = memtable.days();
+        assertEquals(2, days.size());
+        assertEquals(120, days.get(0).size());
+        assertEquals(-1.0, days.get(0).get(0).getDoubleValue(), 0.0);
+
+        Memtable.Snapshot snapshot = memtable.snapshot(Range.closed(new Date(start + 60000L), new Date(start + 600000L)));
+        assertEquals(10, snapshot.getValues().size());
+        assertEquals(start + 600000L, snapshot.getMaxTimestamp().getTime());
+        assertEquals(start + 60000L, snapshot.getMinTimestamp().getTime());
+        assertTrue(snapshot.getId() < 0);
+        assertNull(memtable.snapshot(Range.lessThan(new Date(start))));
+
+        memtable.seal();
+        assertEquals(-1, memtable.add(entity, values, null));
+    }
+
+    @Test
+    public void testSealMovesToFlushing() throws Exception {
+        Memtables memtables = new Memtables();
+        Entity a = point("a");
+        Entity b = point("b");
+        memtables.add(a, Arrays.asList(ValueFactory.createValueModel(1.0, new Date(1000L))), null);
+        memtables.add(b, Arrays.asList(ValueFactory.createValueModel(2.0, new Date(1000L)),
+                ValueFactory.createValueModel(3.0, new Date(2000L))), null);
+        assertEquals(3, memtables.size());
+
+        List<Memtable> sealed = memtables.seal(2, 0);
+        assertEquals(1, sealed.size());
+        assertEquals("b", sealed.get(0).getEntityKey());
+
+        // still readable while flushing, and a new memtable takes further values
+        memtables.add(b, Arrays.asList(ValueFactory.createValueModel(4.0, new Date(3000L))), null);
+        assertEquals(2, memtables.snapshots("b", Range.<Date>all()).size());
+
+        memtables.flushed(sealed, new ArrayList<Memtable.Snapshot>(), new SegmentIndex());
+        assertEquals(1, memtables.snapshots("b", Range.<Date>all()).size());
+        assertEquals(2, memtables.size());
+    }
+}
@@ -0,0 +1,62 @@
+package com.nimbits.server.io;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class PackFileTest {
+
+    @Test
+    public void testAppendAndMap() throws Exception {
+        Path folder = Files.createTempDirectory("pack");
+        String pack = folder.resolve(StoreLayout.packPath("2c5e6a3c-0bd1-4b5d-9a4e-6c1f0b3c1f00", "key")).toString();
+
+        PackFile.append(pack, Arrays.asList(new byte[]{1, 2, 3}, new byte[]{4, 5}), Arrays.asList(1000L, 2000L));
+        List<PackFile.Entry> appended = PackFile.append(pack, Arrays.asList(new byte[]{6, 7, 8, 9}), Arrays.asList(3000L));
+
+        List<PackFile.Entry> index = PackFile.readIndex(pack);
+        assertEquals(3, index.size());
+        assertEquals(3000L, index.get(2).getDay());
+
+        PackFile.Entry entry = appended.get(0);
+        ByteBuffer segment = PackFile.map(pack, entry.getOffset(), entry.getLength());
+        assertEquals(4, segment.remaining());
+        assertEquals(6, segment.get(0));
+        assertEquals(9, segment.get(3));
+    }
+
+    @Test
+    public void testKeys() {
+        String sharded = StoreLayout.segmentKey("2c5e6a3c-0bd1-4b5d-9a4e-6c1f0b3c1f00", "key", "name");
+        assertTrue(StoreLayout.isSharded(sharded));
+        assertFalse(StoreLayout.isPacked(sharded));
+        assertFalse(StoreLayout.isSharded("point@example.com_2c5e6a3c"));
+        assertFalse(StoreLayout.isPacked("point@example.com_2c5e6a3c"));
+
+        String packed = StoreLayout.packKey(StoreLayout.packPath("", "user@example.com/point"), 1234, 56);
+        assertTrue(StoreLayout.isPacked(packed));
+        assertEquals(1234L, StoreLayout.packOffset(packed));
+        assertEquals(56L, StoreLayout.packLength(packed));
+        assertEquals(StoreLayout.packPath("", "user@example.com/point"), StoreLayout.packFile(packed));
+    }
+
+    @Test
+    public void testPackGenerations() {
+        String first = StoreLayout.packPath("", "user@example.com/point");
+        assertEquals(0L, StoreLayout.packGeneration(first));
+        String next = StoreLayout.siblingPack(first, 1381000000000L);
+        assertEquals(StoreLayout.packPath("", "user@example.com/point", 1381000000000L), next);
+        assertEquals(1381000000000L, StoreLayout.packGeneration(next));
+        assertEquals(next, StoreLayout.packFile(StoreLayout.packKey(next, 12, 34)));
+        assertEquals(first, StoreLayout.siblingPack(next, 0));
+    }
+}
@@ -0,0 +1,64 @@
+package com.nimbits.server.io;
+
+import com.google.common.collect.Range;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.value.impl.ValueFactory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class SegmentCacheTest {
+
+    private static List<Value> newestFirst(int count) {
+        List<Value> values = new ArrayList<Value>();
+        for (int i = count - 1; i >= 0; i--) {
+            values.add(ValueFactory.createValueModel(i, new Date(i * 1000L)));
+        }
+        return values;
+    }
+
+    @Test
+    public void testSlice() {
+        List<Value> values = newestFirst(100);
+        List<Value> slice = SegmentCache.slice(values, Range.closedOpen(new Date(10000L), new Date(20000L)));
+        assertEquals(10, slice.size());
+        assertEquals(19000L, slice.get(0).getTimestamp().getTime());
+        assertEquals(10000L, slice.get(9).getTimestamp().getTime());
+
+        assertEquals(100, SegmentCache.slice(values, Range.<Date>all()).size());
+        assertEquals(0, SegmentCache.slice(values, Range.atLeast(new Date(100000L))).size());
+        assertEquals(1, SegmentCache.slice(values, Range.atMost(new Date(0L))).size());
+    }
+
+    @Test
+    public void testOffHeap() {
+        SegmentCache cache = new SegmentCache(1024 * 1024, true);
+        assertNull(cache.get("a", 2));
+        cache.put("a", 2, newestFirst(5000));
+        List<Value> read = cache.get("a", 2);
+        assertEquals(5000, read.size());
+        assertEquals(4999000L, read.get(0).getTimestamp().getTime());
+        assertNull(cache.get("a", 1));
+
+        cache.invalidate("a");
+        assertNull(cache.get("a", 2));
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testEviction() {
+        SegmentCache cache = new SegmentCache(1000 * 160, false);
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, 2, newestFirst(300));
+        }
+        assertTrue(cache.getEvictionCount() > 0);
+        assertTrue(cache.getBytes() <= 1000 * 160);
+    }
+}
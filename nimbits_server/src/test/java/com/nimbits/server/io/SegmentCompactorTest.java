@@ -0,0 +1,85 @@
+package com.nimbits.server.io;
+
+import com.nimbits.client.model.valueblobstore.ValueBlobStore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class SegmentCompactorTest {
+
+    private static final long KB = 1024;
+
+    private static List<ValueBlobStore> day(final long baseBytes, final int deltas, final long deltaBytes) {
+        return day(baseBytes, deltas, deltaBytes, true);
+    }
+
+    /**
+     * @param backfilled whether the deltas were written by a backfill or by memtable flushes
+     */
+    private static List<ValueBlobStore> day(final long baseBytes, final int deltas, final long deltaBytes,
+                                            final boolean backfilled) {
+        List<ValueBlobStore> day = new ArrayList<ValueBlobStore>();
+        day.add(new FakeSegment("aa/bb/uuid/base", 1, baseBytes, new Date(0), new Date(1)));
+        for (int i = 0; i < deltas; i++) {
+            String name = (backfilled ? StoreLayout.DELTA_PREFIX : "") + i;
+            day.add(new FakeSegment("aa/bb/uuid/" + name, 2 + i, deltaBytes, new Date(0), new Date(1)));
+        }
+        return day;
+    }
+
+    @Test
+    public void testManyDeltasFoldIntoSmallBase() {
+        SegmentCompactor compactor = new SegmentCompactor();
+        assertEquals(5, compactor.plan(day(1024 * KB, 4, KB)).size());
+    }
+
+    @Test
+    public void testManyDeltasNextToLargeBaseMergeAmongThemselves() {
+        SegmentCompactor compactor = new SegmentCompactor();
+        List<ValueBlobStore> plan = compactor.plan(day(128 * KB * KB, 4, KB));
+        assertEquals(4, plan.size());
+        for (ValueBlobStore store : plan) {
+            assertFalse("aa/bb/uuid/base".equals(store.getBlobKey()));
+        }
+    }
+
+    @Test
+    public void testBaseFoldsOnRatio() {
+        SegmentCompactor compactor = new SegmentCompactor();
+        assertEquals(3, compactor.plan(day(10 * KB * KB, 2, 600 * KB)).size());
+        assertEquals(0, compactor.plan(day(10 * KB * KB, 1, KB)).size());
+    }
+
+    @Test
+    public void testFoldStaysUnderMaxMergedBytes() {
+        SegmentCompactor compactor = new SegmentCompactor();
+        assertEquals(0, compactor.plan(day(60 * KB * KB, 2, 6 * KB * KB)).size());
+    }
+
+    @Test
+    public void testFlushedSegmentsDoNotFoldTheDay() {
+        SegmentCompactor compactor = new SegmentCompactor();
+        assertEquals(0, compactor.plan(day(10 * KB * KB, 2, 600 * KB, false)).size());
+        // many small flushes are merged with each other, the base is not rewritten with them
+        List<ValueBlobStore> plan = compactor.plan(day(10 * KB * KB, 4, KB, false));
+        assertEquals(4, plan.size());
+        for (ValueBlobStore store : plan) {
+            assertFalse("aa/bb/uuid/base".equals(store.getBlobKey()));
+        }
+    }
+
+    @Test
+    public void testDeltaKeys() {
+        assertTrue(StoreLayout.isDelta("aa/bb/uuid/" + StoreLayout.DELTA_PREFIX + "x"));
+        assertTrue(StoreLayout.isDelta("point_" + StoreLayout.DELTA_PREFIX + "x"));
+        assertFalse(StoreLayout.isDelta("delta-point_x"));
+        assertFalse(StoreLayout.isDelta("aa/bb/uuid/values.pack@0+10"));
+    }
+}
@@ -0,0 +1,73 @@
+package com.nimbits.server.io;
+
+import com.nimbits.client.model.valueblobstore.ValueBlobStore;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class SegmentIndexTest {
+
+    private static ValueBlobStore segment(final String key, final long min, final long max) {
+        return new FakeSegment(key, 1, 0, new Date(min), new Date(max));
+    }
+
+    private static String keys(final List<ValueBlobStore> segments) {
+        StringBuilder sb = new StringBuilder();
+        for (ValueBlobStore segment : segments) {
+            sb.append(segment.getBlobKey()).append(' ');
+        }
+        return sb.toString().trim();
+    }
+
+    @Test
+    public void testFindOverlapping() {
+        SegmentIndex index = new SegmentIndex();
+        index.load(Arrays.asList(segment("a", 0, 99), segment("b", 100, 199), segment("c", 200, 299)));
+        // a long segment that started early still overlaps ranges after the ones between it
+        index.add(segment("long", 50, 250));
+
+        assertEquals("b long", keys(index.findOverlapping("e", 120, 130)));
+        assertEquals("long a", keys(index.findOverlapping("e", 60, 70)));
+        assertEquals("c b long", keys(index.findOverlapping("e", 199, 260)));
+        assertEquals("c", keys(index.findOverlapping("e", 251, 1000)));
+        assertEquals("a", keys(index.findOverlapping("e", -10, 10)));
+        assertTrue(index.findOverlapping("e", 300, 400).isEmpty());
+        assertTrue(index.findOverlapping("other", 0, 400).isEmpty());
+    }
+
+    @Test
+    public void testWritesKeepMinOrder() {
+        SegmentIndex index = new SegmentIndex();
+        index.add(segment("c", 200, 299));
+        index.add(segment("a", 0, 99));
+        index.add(segment("b", 100, 199));
+        assertEquals("a b c", keys(index.getSegments("e")));
+
+        // adding a segment again under its blob key replaces it
+        index.add(segment("a", 300, 399));
+        assertEquals("b c a", keys(index.getSegments("e")));
+
+        index.remove(Arrays.asList(segment("b", 100, 199), segment("c", 200, 299)));
+        assertEquals("a", keys(index.getSegments("e")));
+        index.remove(Collections.singletonList(segment("a", 300, 399)));
+        assertEquals(0, index.size("e"));
+        assertTrue(index.getEntities().isEmpty());
+    }
+
+    @Test
+    public void testReplace() {
+        SegmentIndex index = new SegmentIndex();
+        index.load(Arrays.asList(segment("base", 0, 99), segment("delta", 10, 20), segment("next", 100, 199)));
+        index.replace(Arrays.asList(segment("base", 0, 99), segment("delta", 10, 20)),
+                Collections.singletonList(segment("merged", 0, 99)));
+        assertEquals("merged next", keys(index.getSegments("e")));
+        assertEquals("merged", keys(index.findOverlapping("e", 15, 15)));
+    }
+}
@@ -0,0 +1,132 @@
+package com.nimbits.server.io;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class SegmentJournalTest {
+
+    @Test
+    public void testReplayRestoresLostSegment() throws Exception {
+        Path folder = Files.createTempDirectory("journal");
+        byte[] bytes = {1, 2, 3, 4, 5};
+
+        SegmentJournal journal = new SegmentJournal(folder.toString());
+        journal.write("a", bytes);
+        assertTrue(Arrays.equals(bytes, Files.readAllBytes(folder.resolve("a"))));
+        assertFalse(Files.exists(folder.resolve("a" + SegmentJournal.TEMP_SUFFIX)));
+
+        // simulate a crash that lost the unforced rename of a segment that was never retired
+        Files.delete(folder.resolve("a"));
+        appendGarbage(folder.resolve(SegmentJournal.LOG_NAME));
+
+        journal = new SegmentJournal(folder.toString());
+        assertTrue(Arrays.equals(bytes, Files.readAllBytes(folder.resolve("a"))));
+        assertEquals(0, Files.size(folder.resolve(SegmentJournal.LOG_NAME)));
+        journal.close();
+    }
+
+    @Test
+    public void testReplaySkipsRetiredSegment() throws Exception {
+        Path folder = Files.createTempDirectory("journal");
+        SegmentJournal journal = new SegmentJournal(folder.toString());
+        journal.write("a", new byte[]{1, 2, 3});
+        journal.write("b", new byte[]{4, 5, 6});
+        journal.retire("a");
+        Files.delete(folder.resolve("a"));
+        Files.delete(folder.resolve("b"));
+
+        journal = new SegmentJournal(folder.toString());
+        assertFalse(Files.exists(folder.resolve("a")));
+        assertTrue(Arrays.equals(new byte[]{4, 5, 6}, Files.readAllBytes(folder.resolve("b"))));
+        journal.close();
+    }
+
+    @Test
+    public void testReplayRewritesSegmentWithOtherContents() throws Exception {
+        Path folder = Files.createTempDirectory("journal");
+        byte[] bytes = {1, 2, 3, 4, 5};
+        SegmentJournal journal = new SegmentJournal(folder.toString());
+        journal.write("a", bytes);
+        // renamed but the data blocks never reached the disk
+        Files.write(folder.resolve("a"), new byte[5]);
+
+        journal = new SegmentJournal(folder.toString());
+        assertTrue(Arrays.equals(bytes, Files.readAllBytes(folder.resolve("a"))));
+        journal.close();
+    }
+
+    @Test
+    public void testCheckpointEmptiesLog() throws Exception {
+        Path folder = Files.createTempDirectory("journal");
+        SegmentJournal journal = new SegmentJournal(folder.toString(), 100);
+        journal.write("a", new byte[10]);
+        assertTrue(Files.size(folder.resolve(SegmentJournal.LOG_NAME)) > 0);
+        journal.write("b", new byte[200]);
+        assertEquals(0, Files.size(folder.resolve(SegmentJournal.LOG_NAME)));
+        assertEquals(200, Files.size(folder.resolve("b")));
+        journal.close();
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        Path folder = Files.createTempDirectory("journal");
+        final SegmentJournal journal = new SegmentJournal(folder.toString());
+        final List<Thread> threads = new ArrayList<Thread>();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < 8; t++) {
+            final int id = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 25; i++) {
+                            journal.write(id + "_" + i, new byte[]{(byte) id, (byte) i});
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.isEmpty());
+        assertTrue("sync count " + journal.getSyncCount(), journal.getSyncCount() < 200);
+        for (int t = 0; t < 8; t++) {
+            for (int i = 0; i < 25; i++) {
+                assertTrue(Arrays.equals(new byte[]{(byte) t, (byte) i}, Files.readAllBytes(folder.resolve(t + "_" + i))));
+            }
+        }
+        journal.close();
+    }
+
+    private static void appendGarbage(Path log) throws IOException {
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0x4E, 0x42, 0x57}));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.nimbits.server.io;
+
+import com.google.common.collect.Range;
+import com.nimbits.client.enums.EntityType;
+import com.nimbits.client.enums.ExportType;
+import com.nimbits.client.model.entity.Entity;
+import com.nimbits.client.model.entity.EntityModelFactory;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.value.impl.ValueFactory;
+import com.nimbits.server.io.segment.Rollup;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class SeriesExporterTest {
+
+    private static class FakeScanner implements ValueScanner {
+        private final Map<String, List<Value>> series = new HashMap<String, List<Value>>();
+
+        @Override
+        public Iterator<Value> scan(Entity entity, Range<Date> range, ScanOrder order, int limit) {
+            return series.get(entity.getKey()).iterator();
+        }
+
+        @Override
+        public List<Value> read(Entity entity, Range<Date> range, int concurrency) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Rollup aggregate(Entity entity, Range<Date> range) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Value> downsample(Entity entity, Range<Date> range, int maxPoints, DownsampleMode mode) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static Entity point(String name) {
+        Entity entity = EntityModelFactory.createEntity(name, EntityType.point);
+        entity.setKey(name);
+        return entity;
+    }
+
+    @Test
+    public void testSeparateColumnsJoinOnTimestamp() throws Exception {
+        FakeScanner scanner = new FakeScanner();
+        scanner.series.put("a", Arrays.<Value>asList(ValueFactory.createValueModel(1.0, new Date(1000L)),
+                ValueFactory.createValueModel(2.0, new Date(2000L))));
+        scanner.series.put("b", Arrays.<Value>asList(ValueFactory.createValueModel(5.0, new Date(2000L)),
+                ValueFactory.createValueModel(6.0, new Date(3000L))));
+        StringWriter out = new StringWriter();
+        long written = new SeriesExporter(scanner).export(Arrays.asList(point("a"), point("b")), Range.<Date>all(),
+                ExportType.csvSeparateColumns, out);
+        assertEquals(4, written);
+        assertEquals("timestamp,a,b\n1000,1.0,\n2000,2.0,5.0\n3000,,6.0\n", out.toString());
+    }
+
+    @Test
+    public void testRows() throws Exception {
+        FakeScanner scanner = new FakeScanner();
+        scanner.series.put("a", Arrays.<Value>asList(ValueFactory.createValueModel(1.0, new Date(1000L))));
+        StringWriter out = new StringWriter();
+        new SeriesExporter(scanner).export(Arrays.asList(point("a")), Range.<Date>all(), ExportType.text_csv, out);
+        assertEquals("name,timestamp,value,note\na,1000,1.0,\n", out.toString());
+    }
+
+    @Test
+    public void testJsonWritesNonFiniteValuesAsNull() throws Exception {
+        FakeScanner scanner = new FakeScanner();
+        scanner.series.put("a", Arrays.<Value>asList(ValueFactory.createValueModel(Double.NaN, new Date(1000L)),
+                ValueFactory.createValueModel(Double.POSITIVE_INFINITY, new Date(2000L)),
+                ValueFactory.createValueModel(3.0, new Date(3000L))));
+        StringWriter out = new StringWriter();
+        assertEquals(3, new SeriesExporter(scanner).export(Arrays.asList(point("a")), Range.<Date>all(),
+                ExportType.json, out));
+        assertEquals("{\"a\":[{\"t\":1000,\"d\":null},{\"t\":2000,\"d\":null},{\"t\":3000,\"d\":3.0}]}", out.toString());
+    }
+
+    @Test
+    public void testDuplicatePointsAndNames() throws Exception {
+        FakeScanner scanner = new FakeScanner();
+        scanner.series.put("a", Arrays.<Value>asList(ValueFactory.createValueModel(1.0, new Date(1000L))));
+        scanner.series.put("other/a", Arrays.<Value>asList(ValueFactory.createValueModel(2.0, new Date(1000L))));
+        Entity sameName = point("a");
+        sameName.setKey("other/a");
+        StringWriter out = new StringWriter();
+        assertEquals(2, new SeriesExporter(scanner).export(Arrays.asList(point("a"), point("a"), sameName),
+                Range.<Date>all(), ExportType.json, out));
+        assertEquals("{\"a\":[{\"t\":1000,\"d\":1.0}],\"other/a\":[{\"t\":1000,\"d\":2.0}]}", out.toString());
+
+        out = new StringWriter();
+        new SeriesExporter(scanner).export(Arrays.asList(point("a"), sameName, point("a")), Range.<Date>all(),
+                ExportType.csvSeparateColumns, out);
+        assertEquals("timestamp,a,other/a\n1000,1.0,2.0\n", out.toString());
+    }
+}
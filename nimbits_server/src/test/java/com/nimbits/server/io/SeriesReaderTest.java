@@ -0,0 +1,80 @@
+package com.nimbits.server.io;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class SeriesReaderTest {
+
+    private static final String BODY = "[{\"name\":\"a\",\"key\":\"k1\",\"filterType\":0,\"values\":["
+            + "{\"t\":1000,\"d\":1.5},{\"t\":2000,\"d\":2.5,\"dx\":\"on\",\"lt\":1.0,\"lg\":2.0},{\"d\":3.0}]},"
+            + "{\"key\":\"k2\",\"values\":[{\"t\":4000,\"d\":null}],\"description\":{\"x\":[1,2]}}]";
+
+    @Test
+    public void testBatches() throws IOException {
+        final List<String> seen = new ArrayList<>();
+        final long count = new SeriesReader(2).read(new StringReader(BODY), new SeriesReader.Sink() {
+            @Override
+            public void accept(final ValueBatch batch) {
+                StringBuilder sb = new StringBuilder(batch.getKey());
+                for (int i = 0; i < batch.size(); i++) {
+                    sb.append(' ').append(batch.timestamp(i)).append('=').append(batch.value(i));
+                }
+                seen.add(sb.toString());
+            }
+        });
+        assertEquals(4, count);
+        assertEquals(3, seen.size());
+        assertEquals("k1 1000=1.5 2000=2.5", seen.get(0));
+        assertTrue(seen.get(1).startsWith("k1 ") && seen.get(1).endsWith("=3.0"));
+        assertEquals("k2 4000=0.0", seen.get(2));
+    }
+
+    @Test
+    public void testFields() throws IOException {
+        new SeriesReader(10).read(new StringReader(BODY), new SeriesReader.Sink() {
+            @Override
+            public void accept(final ValueBatch batch) {
+                if (batch.getKey().equals("k1")) {
+                    assertNull(batch.note(0));
+                    assertTrue(Double.isNaN(batch.lat(0)));
+                    assertEquals("on", batch.note(1));
+                    assertEquals(2.0, batch.lng(1), 0);
+                    assertTrue(batch.isAscending());
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testMissingOrZeroTimestampIsNow() throws IOException {
+        final long before = System.currentTimeMillis();
+        new SeriesReader(10).read(new StringReader("{\"key\":\"k\",\"values\":[{\"d\":1},{\"t\":0,\"d\":2},{\"t\":5,\"d\":3}]}"),
+                new SeriesReader.Sink() {
+                    @Override
+                    public void accept(final ValueBatch batch) {
+                        assertEquals(3, batch.size());
+                        assertTrue(batch.timestamp(0) >= before && batch.timestamp(0) <= System.currentTimeMillis());
+                        assertTrue(batch.timestamp(1) >= before && batch.timestamp(1) <= System.currentTimeMillis());
+                        assertEquals(5, batch.timestamp(2));
+                    }
+                });
+    }
+
+    @Test(expected = IOException.class)
+    public void testKeyAfterValues() throws IOException {
+        new SeriesReader(10).read(new StringReader("{\"values\":[{\"t\":1}],\"key\":\"k\"}"), new SeriesReader.Sink() {
+            @Override
+            public void accept(final ValueBatch batch) {
+            }
+        });
+    }
+}
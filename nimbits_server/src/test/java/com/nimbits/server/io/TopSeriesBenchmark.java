@@ -0,0 +1,132 @@
+package com.nimbits.server.io;
+
+import com.google.common.collect.Range;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.value.impl.ValueFactory;
+import com.nimbits.client.model.value.impl.ValueModel;
+import com.nimbits.client.model.valueblobstore.ValueBlobStore;
+import com.nimbits.server.io.segment.SegmentReader;
+import com.nimbits.server.io.segment.SegmentWriter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Latency of reading the newest N values of a point, the getTopDataSeries path. Writes 30 day segments of one
+ * value a second in both the v1 json and the v2 binary format to a temp directory and times the old loop, which
+ * read whole segments newest day first until it had N values, against the bounded ValueScan merge.
+ *
+ * Not a unit test, run it by hand: java com.nimbits.server.io.TopSeriesBenchmark [days]
+ */
+public class TopSeriesBenchmark {
+
+    private static final long DAY = 86400000L;
+
+    private static final Gson GSON = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
+
+    public static void main(final String[] args) throws Exception {
+        final int days = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        final Path folder = Files.createTempDirectory("top-series");
+        final List<ValueBlobStore> segments = write(folder, days);
+        final List<ValueBlobStore> newestFirst = new ArrayList<ValueBlobStore>(segments);
+        Collections.reverse(newestFirst);
+
+        System.out.println("N, old loop v1 json, old loop v2 whole segments, bounded merge v2 (best ms)");
+        for (final int n : new int[]{1, 100, 10000}) {
+            final double json = best(3, n, folder, newestFirst, segments, 0);
+            final double whole = best(20, n, folder, newestFirst, segments, 1);
+            final double merge = best(20, n, folder, newestFirst, segments, 2);
+            System.out.printf("%d, %.2f, %.2f, %.2f%n", n, json, whole, merge);
+        }
+    }
+
+    private static List<ValueBlobStore> write(final Path folder, final int days) throws IOException {
+        final List<ValueBlobStore> segments = new ArrayList<ValueBlobStore>();
+        final Random random = new Random(1);
+        for (int day = 0; day < days; day++) {
+            final List<Value> values = new ArrayList<Value>(86400);
+            double d = 20;
+            for (int i = 0; i < 86400; i++) {
+                d = Math.round((d + random.nextGaussian() * 0.1) * 100) / 100.0;
+                values.add(ValueFactory.createValueModel(d, new Date(day * DAY + i * 1000L)));
+            }
+            final String key = "s" + day;
+            Files.write(folder.resolve(key), SegmentWriter.write(values));
+            Files.write(folder.resolve(key + ".json"), GSON.toJson(values).getBytes(StandardCharsets.UTF_8));
+            segments.add(new FakeSegment(key, day + 1, 0, new Date(day * DAY), new Date(day * DAY + DAY - 1000)));
+        }
+        return segments;
+    }
+
+    /**
+     * @param mode 0 old loop over json, 1 old loop over whole binary segments, 2 bounded merge
+     * @return the fastest of the runs after two warm up runs, in milliseconds
+     */
+    private static double best(final int runs, final int n, final Path folder, final List<ValueBlobStore> newestFirst,
+                               final List<ValueBlobStore> segments, final int mode) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < runs + 2; run++) {
+            final long start = System.nanoTime();
+            final List<Value> top = new ArrayList<Value>(n);
+            if (mode == 2) {
+                final ValueScan scan = new ValueScan(segments, Range.<Date>all(), ScanOrder.descending, n, source(folder));
+                while (scan.hasNext()) {
+                    top.add(scan.next());
+                }
+            } else {
+                for (final ValueBlobStore segment : newestFirst) {
+                    for (final Value value : mode == 0 ? readJson(folder, segment) : readBinary(folder, segment)) {
+                        top.add(value);
+                        if (top.size() >= n) {
+                            break;
+                        }
+                    }
+                }
+            }
+            final long elapsed = System.nanoTime() - start;
+            if (run >= 2) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best / 1e6;
+    }
+
+    private static List<Value> readJson(final Path folder, final ValueBlobStore segment) throws IOException {
+        final String json = new String(Files.readAllBytes(folder.resolve(segment.getBlobKey() + ".json")), StandardCharsets.UTF_8);
+        final List<Value> values = GSON.fromJson(json, new TypeToken<List<ValueModel>>() {
+        }.getType());
+        Collections.sort(values);
+        return values;
+    }
+
+    private static List<Value> readBinary(final Path folder, final ValueBlobStore segment) throws IOException {
+        final List<Value> values = SegmentReader.read(SegmentReader.map(folder.resolve(segment.getBlobKey()).toString()));
+        Collections.reverse(values);
+        return values;
+    }
+
+    private static ValueScan.SegmentSource source(final Path folder) {
+        return new ValueScan.SegmentSource() {
+            @Override
+            public Iterator<Value> open(final ValueBlobStore store, final Range<Date> range, final ScanOrder order) {
+                try {
+                    return SegmentReader.iterate(SegmentReader.map(folder.resolve(store.getBlobKey()).toString()),
+                            range, order == ScanOrder.descending);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,40 @@
+package com.nimbits.server.io;
+
+import com.nimbits.client.enums.ExportType;
+import com.nimbits.client.model.common.SimpleValue;
+import com.nimbits.client.model.location.LocationFactory;
+import com.nimbits.client.model.value.impl.ValueDataModel;
+import com.nimbits.client.model.value.impl.ValueFactory;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class ValueFormatterTest {
+
+    @Test
+    public void testCsv() {
+        ValueFormatter formatter = new ValueFormatter(ExportType.text_csv);
+        StringBuilder out = new StringBuilder();
+        formatter.append(out, ValueFactory.createValueModel(1.5, new Date(1000L)));
+        formatter.append(out, ValueFactory.createValueModel(LocationFactory.createEmptyLocation(), 2.0, new Date(2000L),
+                ValueDataModel.getInstance(SimpleValue.getInstance("on, \"really\"")), null));
+        assertEquals("1000,1.5,\n2000,2.0,\"on, \"\"really\"\"\"\n", out.toString());
+        assertEquals("csv", formatter.getExtension());
+    }
+
+    @Test
+    public void testJsonHasNoHeader() {
+        ValueFormatter formatter = new ValueFormatter(ExportType.json);
+        assertNull(formatter.header());
+        assertEquals("json", formatter.getExtension());
+        StringBuilder out = new StringBuilder();
+        formatter.append(out, ValueFactory.createValueModel(LocationFactory.createLocation(1.5, 2.5), 3.0, new Date(1000L),
+                ValueDataModel.getInstance(SimpleValue.getInstance("on")), null));
+        formatter.append(out, ValueFactory.createValueModel(4.0, new Date(2000L)));
+        assertEquals("{\"t\":1000,\"d\":3.0,\"dx\":\"on\",\"lt\":1.5,\"lg\":2.5}\n{\"t\":2000,\"d\":4.0}\n", out.toString());
+    }
+}
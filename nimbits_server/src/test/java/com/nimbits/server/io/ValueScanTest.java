@@ -0,0 +1,94 @@
+package com.nimbits.server.io;
+
+import com.google.common.collect.Range;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.value.impl.ValueFactory;
+import com.nimbits.client.model.valueblobstore.ValueBlobStore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class ValueScanTest {
+
+    private final Map<String, List<Value>> contents = new HashMap<String, List<Value>>();
+
+    private final ValueScan.SegmentSource source = new ValueScan.SegmentSource() {
+        @Override
+        public Iterator<Value> open(final ValueBlobStore store, final Range<Date> range, final ScanOrder order) {
+            List<Value> values = new ArrayList<Value>(contents.get(store.getBlobKey()));
+            if (order == ScanOrder.descending) {
+                Collections.reverse(values);
+            }
+            return values.iterator();
+        }
+    };
+
+    private ValueBlobStore segment(final String key, final long id, final double... valueAtSecond) {
+        List<Value> values = new ArrayList<Value>();
+        for (int i = 0; i < valueAtSecond.length; i += 2) {
+            values.add(ValueFactory.createValueModel(valueAtSecond[i + 1], new Date((long) valueAtSecond[i] * 1000)));
+        }
+        contents.put(key, values);
+        return new FakeSegment(key, id, 0, values.get(0).getTimestamp(), values.get(values.size() - 1).getTimestamp());
+    }
+
+    private static String render(final Iterator<Value> scan) {
+        StringBuilder sb = new StringBuilder();
+        while (scan.hasNext()) {
+            Value value = scan.next();
+            sb.append(value.getTimestamp().getTime() / 1000).append('=').append(value.getDoubleValue()).append(' ');
+        }
+        return sb.toString().trim();
+    }
+
+    @Test
+    public void testNewestSegmentWinsOnSameTimestamp() {
+        List<ValueBlobStore> segments = Arrays.asList(
+                segment("base", 1, 1, 1.0, 2, 2.0, 3, 3.0),
+                segment("delta", 2, 2, 20.0, 4, 40.0),
+                segment("memtable", -1, 3, 300.0));
+        assertEquals("1=1.0 2=20.0 3=300.0 4=40.0",
+                render(new ValueScan(segments, Range.<Date>all(), ScanOrder.ascending, Integer.MAX_VALUE, source)));
+        assertEquals("4=40.0 3=300.0 2=20.0 1=1.0",
+                render(new ValueScan(segments, Range.<Date>all(), ScanOrder.descending, Integer.MAX_VALUE, source)));
+        assertEquals("4=40.0 3=300.0",
+                render(new ValueScan(segments, Range.<Date>all(), ScanOrder.descending, 2, source)));
+    }
+
+    @Test
+    public void testOverlappingSegmentsInterleave() {
+        List<ValueBlobStore> segments = Arrays.asList(
+                segment("odd", 1, 1, 1.0, 3, 3.0, 5, 5.0),
+                segment("even", 2, 2, 2.0, 4, 4.0, 6, 6.0),
+                segment("later", 3, 7, 7.0, 8, 8.0));
+        assertEquals("1=1.0 2=2.0 3=3.0 4=4.0 5=5.0 6=6.0 7=7.0 8=8.0",
+                render(new ValueScan(segments, Range.<Date>all(), ScanOrder.ascending, Integer.MAX_VALUE, source)));
+        assertEquals("8=8.0 7=7.0 6=6.0 5=5.0 4=4.0 3=3.0 2=2.0 1=1.0",
+                render(new ValueScan(segments, Range.<Date>all(), ScanOrder.descending, Integer.MAX_VALUE, source)));
+    }
+
+    @Test
+    public void testLimitLeavesLaterSegmentsClosed() {
+        List<ValueBlobStore> segments = Arrays.asList(
+                segment("day1", 1, 1, 1.0, 2, 2.0),
+                segment("day2", 2, 10, 10.0, 11, 11.0),
+                segment("day3", 3, 20, 20.0, 21, 21.0));
+        ValueScan newest = new ValueScan(segments, Range.<Date>all(), ScanOrder.descending, 2, source);
+        assertEquals("21=21.0 20=20.0", render(newest));
+        assertEquals(1, newest.getSegmentsOpened());
+
+        ValueScan oldest = new ValueScan(segments, Range.<Date>all(), ScanOrder.ascending, 3, source);
+        assertEquals("1=1.0 2=2.0 10=10.0", render(oldest));
+        assertEquals(2, oldest.getSegmentsOpened());
+    }
+}
@@ -0,0 +1,186 @@
+package com.nimbits.server.io.segment;
+
+import com.google.common.collect.Range;
+import com.google.gson.Gson;
+import com.nimbits.client.enums.AlertType;
+import com.nimbits.client.enums.SummaryType;
+import com.nimbits.client.enums.point.PointType;
+import com.nimbits.client.model.common.SimpleValue;
+import com.nimbits.client.model.location.LocationFactory;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.value.impl.ValueDataModel;
+import com.nimbits.client.model.value.impl.ValueFactory;
+import com.nimbits.client.model.value.impl.ValueModel;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class SegmentWriterTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Random random = new Random(42);
+        List<Value> values = new ArrayList<Value>();
+        long t = 1420070400000L;
+        double d = 20.0;
+        for (int i = 0; i < 5000; i++) {
+            t += i % 100 == 0 ? random.nextInt(100000) : 1000;
+            d += random.nextGaussian();
+            if (i % 7 == 0) {
+                values.add(ValueFactory.createValueModel(LocationFactory.createLocation(41.8 + i, -87.6), d, new Date(t),
+                        ValueDataModel.getInstance(SimpleValue.getInstance(i % 2 == 0 ? "ON" : "OFF")), AlertType.HighAlert));
+            } else {
+                values.add(ValueFactory.createValueModel(d, new Date(t)));
+            }
+        }
+
+        byte[] segment = SegmentWriter.write(values);
+        ByteBuffer buffer = ByteBuffer.wrap(segment);
+        assertTrue(SegmentFormat.isSegment(buffer));
+
+        List<Value> read = SegmentReader.read(buffer);
+        assertEquals(values.size(), read.size());
+        for (int i = 0; i < values.size(); i++) {
+            Value expected = values.get(i);
+            Value actual = read.get(i);
+            assertEquals(expected.getTimestamp(), actual.getTimestamp());
+            assertEquals(expected.getDoubleValue(), actual.getDoubleValue(), 0.0);
+            assertEquals(expected.getLocation().isEmpty(), actual.getLocation().isEmpty());
+            assertEquals(expected.getAlertState(), actual.getAlertState());
+            assertEquals(expected.getData().getContent(), actual.getData().getContent());
+        }
+    }
+
+    @Test
+    public void testValueWithoutAlertState() throws Exception {
+        Value parsed = new Gson().fromJson("{\"t\":1000,\"d\":1.5}", ValueModel.class);
+        List<Value> read = SegmentReader.read(ByteBuffer.wrap(SegmentWriter.write(Collections.singletonList(parsed))));
+        assertEquals(AlertType.OK, read.get(0).getAlertState());
+        assertEquals("", read.get(0).getData().getContent());
+    }
+
+    @Test
+    public void testOutOfOrderTimestamps() throws Exception {
+        List<Value> values = new ArrayList<Value>();
+        values.add(ValueFactory.createValueModel(3.0, new Date(3000)));
+        values.add(ValueFactory.createValueModel(1.0, new Date(1000)));
+        values.add(ValueFactory.createValueModel(2.0, new Date(Long.MAX_VALUE / 2)));
+
+        List<Value> read = SegmentReader.read(ByteBuffer.wrap(SegmentWriter.write(values)));
+        assertEquals(1000, read.get(0).getTimestamp().getTime());
+        assertEquals(3000, read.get(1).getTimestamp().getTime());
+        assertEquals(Long.MAX_VALUE / 2, read.get(2).getTimestamp().getTime());
+    }
+
+    @Test
+    public void testRangeRead() throws Exception {
+        List<Value> values = new ArrayList<Value>();
+        for (int i = 0; i < 10000; i++) {
+            values.add(ValueFactory.createValueModel(i, new Date(i * 1000L)));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(SegmentWriter.write(values));
+
+        List<Value> read = SegmentReader.read(buffer, Range.closed(new Date(2500500L), new Date(2600000L)));
+        assertEquals(100, read.size());
+        assertEquals(2501000L, read.get(0).getTimestamp().getTime());
+        assertEquals(2600000L, read.get(99).getTimestamp().getTime());
+
+        assertEquals(0, SegmentReader.read(buffer, Range.atLeast(new Date(10000000L))).size());
+        assertEquals(10000, SegmentReader.read(buffer, Range.atMost(new Date(10000000L))).size());
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+        Random random = new Random(7);
+        List<Value> values = new ArrayList<Value>();
+        for (int i = 0; i < 10000; i++) {
+            values.add(ValueFactory.createValueModel(random.nextGaussian() * 5 + 100, new Date(i * 1000L)));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(SegmentWriter.write(values));
+        Range<Date> range = Range.closed(new Date(1500500L), new Date(8700000L));
+
+        Rollup expected = new Rollup();
+        for (Value value : values) {
+            if (range.contains(value.getTimestamp())) {
+                expected.add(value);
+            }
+        }
+        Rollup actual = SegmentReader.aggregate(buffer, range);
+        assertEquals(expected.getCount(), actual.getCount());
+        for (SummaryType type : SummaryType.values()) {
+            assertEquals(expected.get(type), actual.get(type), 1e-6 * Math.max(1.0, Math.abs(expected.get(type))));
+        }
+        assertEquals(values.get(1501).getDoubleValue(), actual.getFirst(), 0.0);
+        assertEquals(values.get(8700).getDoubleValue(), actual.getLast(), 0.0);
+    }
+
+    @Test
+    public void testTextDictionary() throws Exception {
+        String payload = "{\"state\":\"running\",\"rpm\":1200,\"operator\":\"second shift\"}";
+        List<Value> values = new ArrayList<Value>();
+        for (int i = 0; i < 5000; i++) {
+            String note = i % 3 == 0 ? "" : i % 3 == 1 ? "ON" : payload;
+            values.add(ValueFactory.createValueModel(LocationFactory.createEmptyLocation(), (double) i, new Date(i * 1000L),
+                    ValueDataModel.getInstance(SimpleValue.getInstance(note)), AlertType.OK));
+        }
+        byte[] segment = SegmentWriter.write(values);
+        assertTrue(segment.length < 5000 * 4);
+
+        ByteBuffer buffer = ByteBuffer.wrap(segment);
+        List<Value> read = SegmentReader.read(buffer);
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(values.get(i).getData().getContent(), read.get(i).getData().getContent());
+        }
+
+        Iterator<Value> numeric = SegmentReader.iterate(buffer, null, true, false);
+        Value last = numeric.next();
+        assertEquals(4999.0, last.getDoubleValue(), 0.0);
+        assertEquals("", last.getData().getContent());
+        assertEquals("ON", SegmentReader.iterate(buffer, null, true).next().getData().getContent());
+    }
+
+    @Test
+    public void testValueEncodings() throws Exception {
+        Random random = new Random(3);
+        List<Value> flags = new ArrayList<Value>();
+        List<Value> counter = new ArrayList<Value>();
+        List<Value> readings = new ArrayList<Value>();
+        List<Value> noise = new ArrayList<Value>();
+        long total = 0;
+        for (int i = 0; i < 4096; i++) {
+            Date t = new Date(i * 1000L);
+            flags.add(ValueFactory.createValueModel((i / 500) % 2 == 0 ? 0.0 : 1.0, t));
+            total += random.nextInt(50);
+            counter.add(ValueFactory.createValueModel((double) total, t));
+            readings.add(ValueFactory.createValueModel(Math.round((20 + random.nextGaussian()) * 10) / 10.0, t));
+            noise.add(ValueFactory.createValueModel(random.nextGaussian(), t));
+        }
+
+        assertEquals(4, assertEncoded(flags, PointType.flag, 0).getRunLengthBlocks());
+        assertEquals(4, assertEncoded(counter, PointType.cumulative, 0).getDeltaBlocks());
+        assertEquals(4, assertEncoded(readings, PointType.basic, 1).getQuantizedBlocks());
+        assertEquals(0, assertEncoded(readings, PointType.basic, 0).getQuantizedBlocks());
+        assertEquals(4, assertEncoded(noise, PointType.basic, 2).getXorBlocks());
+    }
+
+    private static EncodingStats assertEncoded(List<Value> values, PointType type, int precision) throws Exception {
+        EncodingStats stats = new EncodingStats();
+        ByteBuffer buffer = ByteBuffer.wrap(SegmentWriter.write(values, type, precision, stats));
+        List<Value> read = SegmentReader.read(buffer);
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(values.get(i).getDoubleValue(), read.get(i).getDoubleValue(), 0.0);
+        }
+        assertTrue(stats.getSavedBytes() >= 0);
+        return stats;
+    }
+}
@@ -0,0 +1,147 @@
+package com.nimbits.server.process.task;
+
+import com.nimbits.client.enums.EntityType;
+import com.nimbits.client.enums.ProtectionLevel;
+import com.nimbits.client.model.common.impl.CommonFactory;
+import com.nimbits.client.model.entity.Entity;
+import com.nimbits.client.model.entity.EntityModelFactory;
+import com.nimbits.client.model.point.Point;
+import com.nimbits.client.model.point.PointModelFactory;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.server.io.BlobStoreImpl;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class BulkImporterTest {
+
+    /**
+     * keeps the timestamps written, fails every write while failing is set
+     */
+    private static class RecordingBlobStore extends BlobStoreImpl {
+
+        private final Set<Long> written = new TreeSet<Long>();
+
+        private volatile boolean failing;
+
+        @Override
+        public int backfill(final Entity entity, final Collection<Value> values) throws IOException {
+            if (failing) {
+                throw new IOException("disk full");
+            }
+            synchronized (written) {
+                for (Value value : values) {
+                    written.add(value.getTimestamp().getTime());
+                }
+            }
+            return values.size();
+        }
+    }
+
+    private static Point point() {
+        Point point = PointModelFactory.createPoint(EntityModelFactory.createEntity(
+                CommonFactory.createName("p", EntityType.point), "", EntityType.point, ProtectionLevel.everyone,
+                "parent", "owner", "uuid"));
+        point.setKey("owner/p");
+        return point;
+    }
+
+    private static BulkImporter importer(final BlobStoreImpl blobStore) {
+        BulkImporter importer = new BulkImporter();
+        importer.setBlobStore(blobStore);
+        importer.setThreads(1);
+        importer.setBatchValues(2);
+        importer.setDaysPerTask(1);
+        importer.setMaxPendingTasks(1);
+        importer.start();
+        return importer;
+    }
+
+    private static File upload(final String contents) throws IOException {
+        File file = File.createTempFile("upload", ".csv");
+        file.deleteOnExit();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void testParse() {
+        BulkImporter importer = new BulkImporter();
+        assertNull(importer.parse("timestamp,value,note", 1));
+        assertEquals(0, importer.getLinesRejected());
+
+        Value plain = importer.parse("1000,1.5", 2);
+        assertEquals(1000L, plain.getTimestamp().getTime());
+        assertEquals(1.5, plain.getDoubleValue(), 0);
+
+        Value noted = importer.parse("2000,2,\"a, \"\"b\"\"\nc\"", 3);
+        assertEquals(2000L, noted.getTimestamp().getTime());
+        assertEquals("a, \"b\"\nc", noted.getData().getContent());
+
+        Value json = importer.parse("{\"t\":3000,\"d\":3.0}", 4);
+        assertEquals(3000L, json.getTimestamp().getTime());
+        assertEquals(3.0, json.getDoubleValue(), 0);
+
+        assertNull(importer.parse("3000,not a number", 5));
+        assertEquals(1, importer.getLinesRejected());
+    }
+
+    @Test
+    public void testRecordsJoinQuotedLines() throws IOException {
+        BulkImporter.Records records = new BulkImporter.Records(new BufferedReader(new StringReader(
+                "1000,1,\"first\nsecond\"\n{\"t\":2000,\"d\":2,\"dx\":\"x\\\"\"}\n3000,3\n")));
+        assertEquals("1000,1,\"first\nsecond\"", records.next());
+        assertEquals(2, records.getLineNumber());
+        assertEquals("{\"t\":2000,\"d\":2,\"dx\":\"x\\\"\"}", records.next());
+        assertEquals("3000,3", records.next());
+        assertEquals(4, records.getLineNumber());
+        assertNull(records.next());
+    }
+
+    @Test
+    public void testMultilineNoteImportsOneValue() throws Exception {
+        RecordingBlobStore blobStore = new RecordingBlobStore();
+        File file = upload("timestamp,value,note\n1000,1,\"two\nlines\"\n2000,2\n");
+        assertEquals(2, importer(blobStore).importFile(null, point(), file, false));
+        assertEquals("[1000, 2000]", blobStore.written.toString());
+        assertFalse(new File(file.getPath() + ".checkpoint").exists());
+    }
+
+    @Test
+    public void testResumeAfterCheckpoint() throws Exception {
+        RecordingBlobStore blobStore = new RecordingBlobStore();
+        File file = upload("1000,1\n2000,2\n3000,3\n4000,4\n5000,5\n6000,6\n");
+        File checkpoint = new File(file.getPath() + ".checkpoint");
+        Files.write(checkpoint.toPath(), "2".getBytes(StandardCharsets.UTF_8));
+
+        blobStore.failing = true;
+        try {
+            importer(blobStore).importFile(null, point(), file, false);
+            fail("the failed write should stop the import");
+        } catch (IOException expected) {
+            // the import can be started again
+        }
+        assertTrue(checkpoint.exists());
+        assertEquals("2", new String(Files.readAllBytes(checkpoint.toPath()), StandardCharsets.UTF_8));
+
+        blobStore.failing = false;
+        assertEquals(4, importer(blobStore).importFile(null, point(), file, false));
+        assertEquals("[3000, 4000, 5000, 6000]", blobStore.written.toString());
+        assertFalse(checkpoint.exists());
+    }
+}
@@ -0,0 +1,129 @@
+package com.nimbits.server.process.task;
+
+import com.nimbits.client.enums.EntityType;
+import com.nimbits.client.model.entity.EntityModelFactory;
+import com.nimbits.client.model.point.Point;
+import com.nimbits.client.model.point.PointModelFactory;
+import com.nimbits.client.model.user.User;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.value.impl.ValueFactory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class IngestPipelineTest {
+
+    /**
+     * keeps the recorded values in order, each record waits for the gate
+     */
+    private static class GatedValueTask extends ValueTask {
+
+        private final List<Double> recorded = Collections.synchronizedList(new ArrayList<Double>());
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private final CountDownLatch gate = new CountDownLatch(1);
+
+        private volatile long delayMillis;
+
+        @Override
+        public void recordValue(final Value value, final User user, final Point point, final boolean preAuthorised) {
+            started.countDown();
+            try {
+                gate.await();
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            recorded.add(value.getDoubleValue());
+        }
+    }
+
+    private static Point point(final String key) {
+        Point point = PointModelFactory.createPoint(EntityModelFactory.createEntity(key, EntityType.point));
+        point.setKey(key);
+        return point;
+    }
+
+    private static IngestPipeline pipeline(final ValueTask valueTask, final int queueCapacity) {
+        IngestPipeline pipeline = new IngestPipeline();
+        pipeline.setValueTask(valueTask);
+        pipeline.setPartitions(1);
+        pipeline.setQueueCapacity(queueCapacity);
+        pipeline.setOfferTimeoutMillis(50);
+        pipeline.setDrainSeconds(10);
+        return pipeline;
+    }
+
+    @Test
+    public void testFullPartitionRejects() throws Exception {
+        GatedValueTask valueTask = new GatedValueTask();
+        IngestPipeline pipeline = pipeline(valueTask, 2);
+        pipeline.start();
+        Point point = point("a");
+
+        pipeline.submit(null, point, ValueFactory.createValueModel(1.0, new Date(1000L)), true);
+        assertTrue(valueTask.started.await(5, TimeUnit.SECONDS));
+        // the worker holds the first value, the queue takes two more
+        pipeline.submit(null, point, ValueFactory.createValueModel(2.0, new Date(2000L)), true);
+        pipeline.submit(null, point, ValueFactory.createValueModel(3.0, new Date(3000L)), true);
+        assertEquals(2, pipeline.getQueueDepth());
+        try {
+            pipeline.submit(null, point, ValueFactory.createValueModel(4.0, new Date(4000L)), true);
+            fail("a full partition should push back");
+        } catch (RejectedExecutionException expected) {
+            // the client is told to retry
+        }
+
+        valueTask.gate.countDown();
+        pipeline.stop();
+        assertEquals("[1.0, 2.0, 3.0]", valueTask.recorded.toString());
+    }
+
+    @Test
+    public void testStopDrainsQueuedValuesInOrder() throws Exception {
+        GatedValueTask valueTask = new GatedValueTask();
+        valueTask.delayMillis = 5;
+        IngestPipeline pipeline = pipeline(valueTask, 100);
+        final List<Double> secondStage = Collections.synchronizedList(new ArrayList<Double>());
+        pipeline.addStage("after", new IngestPipeline.Handler() {
+            @Override
+            public void handle(final IngestPipeline.Item item) {
+                secondStage.add(item.getValue().getDoubleValue());
+            }
+        });
+        pipeline.start();
+        Point point = point("a");
+        for (int i = 0; i < 20; i++) {
+            pipeline.submit(null, point, ValueFactory.createValueModel(i, new Date(i * 1000L)), true);
+        }
+        valueTask.gate.countDown();
+        pipeline.stop();
+
+        assertEquals(20, valueTask.recorded.size());
+        assertEquals(valueTask.recorded, secondStage);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, valueTask.recorded.get(i), 0.0);
+        }
+        assertEquals(0, pipeline.getQueueDepth());
+        assertEquals(20, pipeline.getStages().get(0).getProcessed());
+        try {
+            pipeline.submit(null, point, ValueFactory.createValueModel(1.0, new Date()), true);
+            fail("a stopped pipeline takes no values");
+        } catch (RejectedExecutionException expected) {
+            // not accepting
+        }
+    }
+}
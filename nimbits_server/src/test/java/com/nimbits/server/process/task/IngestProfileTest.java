@@ -0,0 +1,82 @@
+package com.nimbits.server.process.task;
+
+import com.nimbits.client.enums.AlertType;
+import com.nimbits.client.enums.EntityType;
+import com.nimbits.client.enums.FilterType;
+import com.nimbits.client.enums.ProtectionLevel;
+import com.nimbits.client.model.common.impl.CommonFactory;
+import com.nimbits.client.model.entity.EntityModelFactory;
+import com.nimbits.client.model.point.Point;
+import com.nimbits.client.model.point.PointModelFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class IngestProfileTest {
+
+    private static Point point(final FilterType type, final double filterValue) {
+        Point point = PointModelFactory.createPoint(EntityModelFactory.createEntity(
+                CommonFactory.createName("p", EntityType.point), "", EntityType.point, ProtectionLevel.everyone,
+                "parent", "owner", "uuid"));
+        point.setKey("owner/p");
+        point.setFilterType(type);
+        point.setFilterValue(filterValue);
+        return point;
+    }
+
+    @Test
+    public void testHysteresis() {
+        IngestProfile fixed = IngestProfile.compile(point(FilterType.fixedHysteresis, 0.5));
+        assertTrue(fixed.isHysteresis());
+        assertTrue(fixed.ignores(10, 10.4));
+        assertFalse(fixed.ignores(10, 10.6));
+
+        IngestProfile percentage = IngestProfile.compile(point(FilterType.percentageHysteresis, 10));
+        assertTrue(percentage.ignores(100, 109));
+        assertFalse(percentage.ignores(100, 89));
+        assertFalse(percentage.ignoresAlone(1000));
+    }
+
+    @Test
+    public void testCeilingAndFloor() {
+        IngestProfile ceiling = IngestProfile.compile(point(FilterType.ceiling, 50));
+        assertFalse(ceiling.isHysteresis());
+        assertTrue(ceiling.ignoresAlone(50));
+        assertFalse(ceiling.ignoresAlone(49));
+        IngestProfile floor = IngestProfile.compile(point(FilterType.floor, 5));
+        assertTrue(floor.ignoresAlone(4));
+        assertFalse(floor.ignoresAlone(6));
+    }
+
+    @Test
+    public void testClassify() {
+        Point point = point(FilterType.none, 0);
+        point.setHighAlarmOn(true);
+        point.setHighAlarm(100);
+        point.setLowAlarmOn(true);
+        point.setLowAlarm(0);
+        IngestProfile profile = IngestProfile.compile(point);
+        assertEquals(AlertType.HighAlert, profile.classify(100));
+        assertEquals(AlertType.LowAlert, profile.classify(-1));
+        assertEquals(AlertType.OK, profile.classify(50));
+    }
+
+    @Test
+    public void testCacheRecompilesChangedPoint() {
+        IngestProfiles profiles = new IngestProfiles();
+        profiles.start();
+        Point point = point(FilterType.fixedHysteresis, 1);
+        IngestProfile first = profiles.get(point);
+        assertSame(first, profiles.get(point));
+        point.setFilterValue(2);
+        IngestProfile second = profiles.get(point);
+        assertNotSame(first, second);
+        assertTrue(second.isCurrent(point));
+        assertFalse(first.isCurrent(point));
+    }
+}
@@ -0,0 +1,127 @@
+package com.nimbits.server.process.task;
+
+import com.nimbits.client.enums.EntityType;
+import com.nimbits.client.model.entity.EntityModelFactory;
+import com.nimbits.client.model.point.Point;
+import com.nimbits.client.model.point.PointModelFactory;
+import com.nimbits.server.transaction.entity.dao.EntityDao;
+import com.nimbits.server.transaction.entity.service.EntityService;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+
+public class PointMaintenanceSchedulerTest {
+
+    /**
+     * pages through a fixed number of points and can fail at a position, like a database going away mid run
+     */
+    private static class Points implements InvocationHandler {
+
+        private final int count;
+
+        private final Set<Long> maintained = Collections.synchronizedSet(new TreeSet<Long>());
+
+        private volatile long failAt = -1;
+
+        private Points(final int count) {
+            this.count = count;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            if (method.getName().equals("getPoint")) {
+                final long pos = (Long) args[0];
+                if (pos == failAt) {
+                    throw new IllegalStateException("connection lost");
+                }
+                if (pos >= count) {
+                    return Collections.emptyList();
+                }
+                final Point point = PointModelFactory.createPoint(EntityModelFactory.createEntity("p" + pos, EntityType.point));
+                point.setKey(String.valueOf(pos));
+                return Collections.singletonList(point);
+            }
+            if (method.getName().equals("doPointMaint")) {
+                maintained.add(Long.parseLong(((Point) args[0]).getKey()));
+                return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    private static PointMaintenanceScheduler scheduler(final Points points, final File checkpoint) {
+        PointMaintenanceScheduler scheduler = new PointMaintenanceScheduler();
+        scheduler.setEntityDao((EntityDao) Proxy.newProxyInstance(EntityDao.class.getClassLoader(),
+                new Class[]{EntityDao.class}, points));
+        scheduler.setEntityService((EntityService) Proxy.newProxyInstance(EntityService.class.getClassLoader(),
+                new Class[]{EntityService.class}, points));
+        scheduler.setBatchSize(3);
+        scheduler.setThreads(2);
+        // no pacing, the test would otherwise wait on the rate limiter
+        scheduler.setIntervalSeconds(0);
+        scheduler.setCheckpointFile(checkpoint.getPath());
+        scheduler.start();
+        return scheduler;
+    }
+
+    private static String read(final File file) throws Exception {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testInterruptedRunResumesAtCheckpoint() throws Exception {
+        File checkpoint = new File(Files.createTempDirectory("maintenance").toFile(), "checkpoint");
+        Points points = new Points(10);
+        PointMaintenanceScheduler scheduler = scheduler(points, checkpoint);
+
+        points.failAt = 7;
+        try {
+            scheduler.runFrom(0);
+            fail("the failing page should stop the run");
+        } catch (IllegalStateException expected) {
+            // the next run resumes
+        }
+        // the batch 6..8 never finished, so the run resumes at its start
+        assertEquals("6 0", read(checkpoint));
+        assertEquals(6, scheduler.getPosition());
+        assertEquals("[0, 1, 2, 3, 4, 5]", points.maintained.toString());
+
+        points.failAt = -1;
+        points.maintained.clear();
+        assertEquals(4, scheduler.runFrom(0));
+        assertEquals("[6, 7, 8, 9]", points.maintained.toString());
+        assertEquals("0 10", read(checkpoint));
+        assertEquals(0, scheduler.getPosition());
+
+        // a complete run starts over from the first point
+        points.maintained.clear();
+        assertEquals(10, scheduler.runFrom(0));
+        assertEquals(10, points.maintained.size());
+        scheduler.stop();
+    }
+
+    @Test
+    public void testExplicitPositionIgnoresCheckpoint() throws Exception {
+        File checkpoint = new File(Files.createTempDirectory("maintenance").toFile(), "checkpoint");
+        Files.write(checkpoint.toPath(), "6 10".getBytes(StandardCharsets.UTF_8));
+        Points points = new Points(10);
+        PointMaintenanceScheduler scheduler = scheduler(points, checkpoint);
+
+        assertEquals(2, scheduler.runFrom(8));
+        assertEquals("[8, 9]", points.maintained.toString());
+        assertEquals("0 10", read(checkpoint));
+        scheduler.stop();
+    }
+}
@@ -0,0 +1,166 @@
+package com.nimbits.server.process.task;
+
+import com.google.common.collect.Range;
+import com.nimbits.client.enums.EntityType;
+import com.nimbits.client.model.entity.Entity;
+import com.nimbits.client.model.entity.EntityModelFactory;
+import com.nimbits.client.model.point.Point;
+import com.nimbits.client.model.point.PointModelFactory;
+import com.nimbits.client.model.value.Value;
+import com.nimbits.client.model.value.impl.ValueFactory;
+import com.nimbits.server.io.BlobStoreImpl;
+import com.nimbits.server.io.ScanOrder;
+import com.nimbits.server.transaction.entity.dao.EntityDao;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class SeriesIngesterTest {
+
+    /**
+     * records into real memtables, keeps what was written in a map for scans and counts backfilled values
+     */
+    private static class MapBlobStore extends BlobStoreImpl {
+
+        private final TreeMap<Long, Value> stored = new TreeMap<Long, Value>();
+
+        private final List<Long> backfilled = new ArrayList<Long>();
+
+        @Override
+        public synchronized void record(final Entity entity, final List<Value> values) throws IOException {
+            super.record(entity, values);
+            put(values);
+        }
+
+        @Override
+        public synchronized int backfill(final Entity entity, final Collection<Value> values) {
+            for (Value value : values) {
+                backfilled.add(value.getTimestamp().getTime());
+            }
+            put(values);
+            return 1;
+        }
+
+        @Override
+        public synchronized Iterator<Value> scan(final Entity entity, final Range<Date> range, final ScanOrder order,
+                                                 final int limit) {
+            List<Value> values = new ArrayList<Value>();
+            for (Value value : stored.descendingMap().values()) {
+                if (range.contains(value.getTimestamp()) && values.size() < limit) {
+                    values.add(value);
+                }
+            }
+            return values.iterator();
+        }
+
+        private void put(final Collection<Value> values) {
+            for (Value value : values) {
+                stored.put(value.getTimestamp().getTime(), value);
+            }
+        }
+    }
+
+    private static Point point(final String key, final Value... values) {
+        Point point = PointModelFactory.createPoint(EntityModelFactory.createEntity(key, EntityType.point));
+        point.setKey(key);
+        point.setValues(new ArrayList<Value>(Arrays.asList(values)));
+        return point;
+    }
+
+    private static Value value(final double d, final long timestamp) {
+        return ValueFactory.createValueModel(d, new Date(timestamp));
+    }
+
+    private static SeriesIngester ingester(final BlobStoreImpl blobStore, final Point... existing) {
+        final Map<String, Point> points = new TreeMap<String, Point>();
+        for (Point point : existing) {
+            points.put(point.getKey(), point);
+        }
+        SeriesIngester ingester = new SeriesIngester();
+        ingester.setEntityDao((EntityDao) Proxy.newProxyInstance(EntityDao.class.getClassLoader(),
+                new Class[]{EntityDao.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if (method.getName().equals("getEntityByKey")) {
+                            Point point = points.get((String) args[1]);
+                            return point == null ? Collections.emptyList() : Collections.singletonList(point);
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                }));
+        ingester.setBlobStore(blobStore);
+        IngestProfiles profiles = new IngestProfiles();
+        profiles.start();
+        ingester.setIngestProfiles(profiles);
+        ingester.setThreads(2);
+        ingester.start();
+        return ingester;
+    }
+
+    @Test
+    public void testCountsPerPoint() throws Exception {
+        MapBlobStore blobStore = new MapBlobStore();
+        SeriesIngester ingester = ingester(blobStore, point("a"), point("b"));
+
+        List<SeriesIngester.Result> results = ingester.record(null, Arrays.asList(
+                // 1.05 is inside the default 0.1 hysteresis of 1.0, the null has no timestamp
+                point("a", value(1.0, 1000), value(1.05, 2000), value(2.0, 3000), null),
+                point("missing", value(1.0, 1000), value(2.0, 2000)),
+                point("b", value(7.0, 1000))));
+
+        assertEquals(3, results.size());
+        SeriesIngester.Result a = results.get(0);
+        assertEquals("a", a.getKey());
+        assertEquals(2, a.getAccepted());
+        assertEquals(1, a.getFiltered());
+        assertEquals(1, a.getRejected());
+        assertEquals("values without a timestamp", a.getError());
+
+        SeriesIngester.Result missing = results.get(1);
+        assertEquals(0, missing.getAccepted());
+        assertEquals(2, missing.getRejected());
+        assertEquals("point not found", missing.getError());
+
+        SeriesIngester.Result b = results.get(2);
+        assertEquals(1, b.getAccepted());
+        assertEquals(0, b.getRejected());
+        assertNull(b.getError());
+
+        assertEquals(3, ingester.getAccepted());
+        assertEquals(1, ingester.getFiltered());
+        assertEquals(3, ingester.getRejected());
+        ingester.stop();
+    }
+
+    @Test
+    public void testRepostedTimestampReplacesTheMemtableValue() throws Exception {
+        MapBlobStore blobStore = new MapBlobStore();
+        SeriesIngester ingester = ingester(blobStore, point("a"));
+
+        ingester.record(null, Arrays.asList(point("a", value(1.0, 1000), value(2.0, 2000))));
+        assertEquals(2, blobStore.getMemtableSize());
+
+        // 1000 is still in the memtable, a backfill of it would lose to the memtable on reads
+        SeriesIngester.Result result = ingester.record(null, Arrays.asList(point("a", value(5.0, 1000), value(9.0, 500)))).get(0);
+        assertEquals(2, result.getAccepted());
+        assertEquals("[500]", blobStore.backfilled.toString());
+        assertEquals(2, blobStore.getMemtableSize());
+        ingester.stop();
+    }
+}